@@ -27,22 +27,28 @@
 package babel.evolution.likelihood;
 
 
-import beagle.Beagle;
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Tree;
 
 
 @Description("Treelikelihood for running the Multi-State Stochastic Dollo process")
-public class ALSTreeLikelihood extends TreeLikelihood implements PartialsProvider {
+public class ALSTreeLikelihood extends PartialsTreeLikelihood {
     public Input<AbstractObservationProcess> opInput = new Input<AbstractObservationProcess>("observationprocess", "description here");
+    public Input<Integer> threadsInput = new Input<>("threads", "number of threads used by the observation process for evaluating patterns, "
+            + "overriding the threads setting of the observation process. Ignored if 1 or less", -1);
 
     protected AbstractObservationProcess observationProcess;
+    // branch lengths in substitutions used by the java core before the last calculation
+    private double[] previousBranchLengths;
 
     @Override
     public void initAndValidate() {
         observationProcess = opInput.get();
+        if (threadsInput.get() > 1) {
+            observationProcess.setThreads(threadsInput.get());
+        }
         // ensure TreeLikelihood initialises the partials for tips
         m_useAmbiguities.setValue(true, this);
         super.initAndValidate();
@@ -50,8 +56,30 @@ public class ALSTreeLikelihood extends TreeLikelihood implements PartialsProvide
 
     @Override
     public double calculateLogP() {
+        if (beagle == null) {
+            if (previousBranchLengths == null) {
+                previousBranchLengths = new double[m_branchLengths.length];
+            }
+            System.arraycopy(m_branchLengths, 0, previousBranchLengths, 0, m_branchLengths.length);
+        }
         // Calculate the partial likelihoods
         super.calculateLogP();
+        if (hasDirt == Tree.IS_FILTHY) {
+            // partials of all nodes were recalculated
+            observationProcess.setAllNodesUpdated();
+        } else if (beagle == null) {
+            // the branch rate model of this likelihood, which the observation process does
+            // not know about, may have changed branches without the tree being dirty, and
+            // partials of the ancestors of such branches were recalculated
+            for (int i = 0; i < m_branchLengths.length; i++) {
+                if (m_branchLengths[i] != previousBranchLengths[i]) {
+                    observationProcess.setBranchChanged(i);
+                }
+            }
+        } else if (branchRateModelInput.get() != null && branchRateModelInput.get().isDirtyCalculation()) {
+            // BEAGLE does not tell which branches changed
+            observationProcess.setAllNodesUpdated();
+        }
         // get the frequency model
         double[] freqs = ((SiteModel.Base) siteModelInput.get()).substModelInput.get().getFrequencies();
         // let the observationProcess handle the rest
@@ -59,13 +87,17 @@ public class ALSTreeLikelihood extends TreeLikelihood implements PartialsProvide
         return logP;
     }
 
-    
-	@Override
-	public void getNodePartials(int iNode, double[] fPartials) {
-		if (beagle != null) {;
-			beagle.getBeagle().getPartials(beagle.getPartialBufferHelper().getOffsetIndex(iNode), Beagle.NONE, fPartials);
-		} else {
-			likelihoodCore.getNodePartials(iNode, fPartials);
-		}
-	}
+    // the observation process is only stored and restored by the framework when one of its
+    // own inputs changed, but its likelihood also changes when only inputs of this likelihood do
+    @Override
+    public void store() {
+        super.store();
+        observationProcess.store();
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        observationProcess.restore();
+    }
 }
@@ -28,7 +28,14 @@ package babel.evolution.likelihood;
 
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import babel.evolution.datatype.MutationDeathType;
 import beast.base.core.Description;
@@ -61,6 +68,7 @@ public class AbstractObservationProcess extends CalculationNode {
     public Input<RealParameter> muInput = new Input<>("mu", "description here", Validate.REQUIRED);
     public Input<RealParameter> lamInput = new Input<>("lam", "description here");
     public Input<Boolean> integrateGainRateInputInput = new Input<>("integrateGainRate", "description here", false);
+    public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for evaluating patterns. Ignored if 1 or less", -1);
 
 
 	@Override
@@ -110,9 +118,16 @@ public class AbstractObservationProcess extends CalculationNode {
 //        abstractobservationprocess.setIntegrateGainRate(integrateGainRate);
 //    }
 
-    protected boolean[] nodePatternInclusion;
-    protected boolean[] storedNodePatternInclusion;
+    // bit packed, 64 patterns per word: node i includes pattern j if bit (j % 64) of
+    // nodePatternInclusion[i * wordCount + j / 64] is set
+    protected long[] nodePatternInclusion;
+    protected long[] storedNodePatternInclusion;
+    protected int wordCount;
     protected double[] cumLike;
+    protected double[] storedCumLike;
+    // contribution of node i to cumLike[j], at nodeContributions[i * patternCount + j]
+    protected double[] nodeContributions;
+    protected double[] storedNodeContributions;
     protected double[] nodePartials;
     protected double[] nodeLikelihoods;
     protected int nodeCount;
@@ -137,6 +152,44 @@ public class AbstractObservationProcess extends CalculationNode {
     protected boolean nodePatternInclusionKnown = false;
     BranchRateModel branchRateModel;
 
+    // nodes whose partials, branch or set of tips below changed since the last evaluation
+    protected boolean[] nodeUpdated;
+    // whether all nodes need to be recalculated, e.g. after the site model changed
+    protected boolean allNodesUpdated = true;
+    // nodes whose partials changed for a reason the tree does not show, e.g. the branch
+    // rate model of the tree likelihood changed the branch length in substitutions above them
+    protected boolean[] branchChanged;
+    // nodes whose per pattern values were saved since the last store(), to be put back on restore()
+    private boolean[] nodeSaved;
+    private int[] savedNodes;
+    private int savedNodeCount = 0;
+    // frequencies used for the current node contributions
+    private double[] frequencies;
+    // cumLike is updated by adding differences in node contributions, which accumulates
+    // rounding errors, so it is recalculated from the node contributions every so often
+    private final static int FULL_SUM_INTERVAL = 1000;
+    private int updatesSinceFullSum = 0;
+
+    // patterns are evaluated in chunks of fixed size, and the log likelihood is summed per
+    // chunk and then over chunks in order, so the result does not depend on the number of threads
+    private final static int PATTERN_CHUNK_SIZE = 256;
+    private int chunkCount;
+    private double[] chunkLogL;
+    private int threads = 1;
+    private ForkJoinPool pool;
+    // nodes whose contributions are recalculated in the current evaluation,
+    // with their log survival probabilities and (when using threads) their partials
+    private int[] updatedNodes;
+    private double[] updatedLogProbs;
+    private double[][] updatedPartials;
+    private int updatedNodeCount;
+    // whether cumLike is summed from scratch in the current evaluation
+    private boolean fullSum;
+    private double ascertainmentCorrection;
+    // one task per chunk for each of the two parallel passes, created once in setThreads()
+    private List<Callable<Object>> updateTasks;
+    private List<Callable<Object>> accumulateTasks;
+
     public void init(String Name, Tree treeModel, Alignment patterns, SiteModel siteModel,
                                       BranchRateModel branchRateModel, RealParameter mu, RealParameter lam,
                                       boolean integrateGainRate) {
@@ -161,6 +214,7 @@ public class AbstractObservationProcess extends CalculationNode {
         stateCount = patterns.getDataType().getStateCount();
         this.patterns = patterns;
         patternCount = patterns.getPatternCount();
+        wordCount = (patternCount + 63) / 64;
         patternWeights = patterns.getWeights();
         totalPatterns = 0;
         for (int i = 0; i < patternCount; ++i) {
@@ -172,12 +226,56 @@ public class AbstractObservationProcess extends CalculationNode {
 
         dataType = (MutationDeathType) patterns.getDataType();
         this.deathState = MutationDeathType.DEATHSTATE;
-        setNodePatternInclusion();
         cumLike = new double[patternCount];
+        storedCumLike = new double[patternCount];
         nodeLikelihoods = new double[patternCount];
+        nodeContributions = new double[nodeCount * patternCount];
+        storedNodeContributions = new double[nodeCount * patternCount];
+        nodeUpdated = new boolean[nodeCount];
+        branchChanged = new boolean[nodeCount];
+        nodeSaved = new boolean[nodeCount];
+        savedNodes = new int[nodeCount];
+        allNodesUpdated = true;
+        Arrays.fill(nodeUpdated, true);
+        setNodePatternInclusion();
         weightKnown = false;
         
         this.integrateGainRate = integrateGainRate;
+
+        chunkCount = (patternCount + PATTERN_CHUNK_SIZE - 1) / PATTERN_CHUNK_SIZE;
+        chunkLogL = new double[chunkCount];
+        updatedNodes = new int[nodeCount];
+        updatedLogProbs = new double[nodeCount];
+        setThreads(threadsInput.get());
+    }
+
+    /** number of threads used for evaluating patterns, only used when larger than 1 **/
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, Math.min(threads, chunkCount));
+        if (this.threads > 1 && (pool == null || pool.getParallelism() != this.threads)) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(this.threads);
+        }
+        if (this.threads > 1) {
+            updatedPartials = new double[nodeCount][];
+            updateTasks = new ArrayList<>(chunkCount);
+            accumulateTasks = new ArrayList<>(chunkCount);
+            for (int c = 0; c < chunkCount; c++) {
+                final int chunk = c;
+                final int from = chunk * PATTERN_CHUNK_SIZE;
+                final int to = Math.min(patternCount, (chunk + 1) * PATTERN_CHUNK_SIZE);
+                updateTasks.add(() -> {
+                    updateChunk(from, to);
+                    return null;
+                });
+                accumulateTasks.add(() -> {
+                    chunkLogL[chunk] = accumulateCorrectedLikelihoods(ascertainmentCorrection, from, to);
+                    return null;
+                });
+            }
+        }
     }
 
     public RealParameter getMuParameter() {
@@ -213,27 +311,83 @@ public class AbstractObservationProcess extends CalculationNode {
             double prob = Math.log(getNodeSurvivalProbability(nodeIndex, averageRate));
 
             for (int j = 0; j < patternCount; ++j) {
-                if (nodePatternInclusion[nodeIndex * patternCount + j]) {
+                if ((nodePatternInclusion[nodeIndex * wordCount + (j >> 6)] & (1L << j)) != 0) {
                     cumLike[j] += Math.exp(calculateSiteLogLikelihood(j, nodePartials, freqs) + prob);
                 }
             }
     }
 
-    private double accumulateCorrectedLikelihoods(double[] cumLike, double ascertainmentCorrection,
-                                                  double[] patterWeights) {
+    private double accumulateCorrectedLikelihoods(double ascertainmentCorrection, int from, int to) {
         double logL = 0;
-        for (int j = 0; j < patternCount; ++j) {
+        for (int j = from; j < to; ++j) {
             logL += Math.log(cumLike[j] / ascertainmentCorrection) * patternWeights[j];
         }
         return logL;
     }
 
+    /** recalculate contributions of node to patterns from...to-1, adjusting cumLike unless fullSum **/
+    private void updateNodeContributions(int nodeIndex, double[] partials, double[] freqs, double logProb,
+                                         int from, int to, boolean fullSum) {
+        final int offset = nodeIndex * patternCount;
+        final int wordOffset = nodeIndex * wordCount;
+        for (int j = from; j < to; ++j) {
+            double contribution = 0.0;
+            if ((nodePatternInclusion[wordOffset + (j >> 6)] & (1L << j)) != 0) {
+//                cumLike[j] += Math.exp(nodeLikelihoods[j] + logProb);  // MAS Replaced with line below
+                contribution = Math.exp(calculateSiteLogLikelihood(j, partials, freqs)
+                                + logProb);
+            }
+            if (!fullSum) {
+                cumLike[j] += contribution - nodeContributions[offset + j];
+            }
+            nodeContributions[offset + j] = contribution;
+        }
+    }
+
+    /** sum cumLike of patterns from...to-1 over all nodes **/
+    private void sumNodeContributions(int from, int to) {
+        for (int j = from; j < to; ++j) cumLike[j] = 0;
+        for (int i = 0; i < nodeCount; ++i) {
+            final int offset = i * patternCount;
+            for (int j = from; j < to; ++j) {
+                cumLike[j] += nodeContributions[offset + j];
+            }
+        }
+    }
+
+    /** recalculate contributions of the updated nodes to patterns from...to-1, using the copied partials **/
+    private void updateChunk(int from, int to) {
+        for (int k = 0; k < updatedNodeCount; k++) {
+            updateNodeContributions(updatedNodes[k], updatedPartials[updatedNodes[k]], frequencies,
+                    updatedLogProbs[k], from, to, fullSum);
+        }
+        if (fullSum) {
+            sumNodeContributions(from, to);
+        }
+    }
+
+    /** run tasks, one for every chunk of patterns, on the pool, waiting for all to finish **/
+    private void forEachChunk(List<Callable<Object>> tasks) {
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public final double nodePatternLikelihood(double[] freqs, PartialsProvider likelihoodCore) {
         int i, j;
         double logL = gammaNorm;
 
         double birthRate = lam.getValue(0);
-        double logProb;
+        if (frequencies == null || !Arrays.equals(frequencies, freqs)) {
+            frequencies = freqs.clone();
+            allNodesUpdated = true;
+        }
+        evaluatedSinceStore = true;
+        markUpdatedNodes();
         if (!nodePatternInclusionKnown)
             setNodePatternInclusion();
         if (nodePartials == null) {
@@ -242,33 +396,65 @@ public class AbstractObservationProcess extends CalculationNode {
 
         double averageRate = getAverageRate();
 
-        for (j = 0; j < patternCount; ++j) cumLike[j] = 0;
+        // only nodes that changed get their contribution recalculated, and cumLike
+        // is adjusted by the difference unless it is summed from scratch below
+        fullSum = allNodesUpdated || ++updatesSinceFullSum >= FULL_SUM_INTERVAL;
 
+        updatedNodeCount = 0;
         for (i = 0; i < nodeCount; ++i) {
-            // get partials for node i
-            likelihoodCore.getNodePartials(i, nodePartials);
-            /*
-                multiply the partials by equilibrium probs
-                    this part could be optimized by first summing
-                    and then multiplying by equilibrium probs
-            */
-//            likelihoodCore.calculateLogLikelihoods(nodePartials, freqs, nodeLikelihoods);   // MAS Removed
-            logProb = Math.log(getNodeSurvivalProbability(i, averageRate));
-
-            for (j = 0; j < patternCount; ++j) {
-                if (nodePatternInclusion[i * patternCount + j]) {
-//                    cumLike[j] += Math.exp(nodeLikelihoods[j] + logProb);  // MAS Replaced with line below
-                    cumLike[j] += Math.exp(calculateSiteLogLikelihood(j, nodePartials, freqs)
-                                    + logProb);
+            if (nodeUpdated[i]) {
+                saveNodeState(i);
+                updatedNodes[updatedNodeCount] = i;
+                updatedLogProbs[updatedNodeCount] = Math.log(getNodeSurvivalProbability(i, averageRate));
+                updatedNodeCount++;
+            }
+        }
+
+        if (threads > 1) {
+            // partials are copied up front, since the provider is not necessarily thread safe
+            for (int k = 0; k < updatedNodeCount; k++) {
+                i = updatedNodes[k];
+                if (updatedPartials[i] == null) {
+                    updatedPartials[i] = new double[patternCount * stateCount];
                 }
+                likelihoodCore.getNodePartials(i, updatedPartials[i]);
+            }
+            forEachChunk(updateTasks);
+        } else {
+            for (int k = 0; k < updatedNodeCount; k++) {
+                // get partials for node i
+                i = updatedNodes[k];
+                likelihoodCore.getNodePartials(i, nodePartials);
+                /*
+                    multiply the partials by equilibrium probs
+                        this part could be optimized by first summing
+                        and then multiplying by equilibrium probs
+                */
+//                likelihoodCore.calculateLogLikelihoods(nodePartials, freqs, nodeLikelihoods);   // MAS Removed
+                updateNodeContributions(i, nodePartials, freqs, updatedLogProbs[k], 0, patternCount, fullSum);
             }
+            if (fullSum) {
+                sumNodeContributions(0, patternCount);
+            }
+        }
+        if (fullSum) {
+            updatesSinceFullSum = 0;
         }
+        allNodesUpdated = false;
 
-        double ascertainmentCorrection = getAscertainmentCorrection(cumLike);
+        ascertainmentCorrection = getAscertainmentCorrection(cumLike);
 //        System.err.println("AscertainmentCorrection: "+ascertainmentCorrection);
 
-        for (j = 0; j < patternCount; ++j) {
-            logL += Math.log(cumLike[j] / ascertainmentCorrection) * patternWeights[j];
+        if (threads > 1) {
+            forEachChunk(accumulateTasks);
+        } else {
+            for (int c = 0; c < chunkCount; c++) {
+                chunkLogL[c] = accumulateCorrectedLikelihoods(ascertainmentCorrection,
+                        c * PATTERN_CHUNK_SIZE, Math.min(patternCount, (c + 1) * PATTERN_CHUNK_SIZE));
+            }
+        }
+        for (int c = 0; c < chunkCount; c++) {
+            logL += chunkLogL[c];
         }
 
         double deathRate = mu.getValue(0);
@@ -323,6 +509,75 @@ public class AbstractObservationProcess extends CalculationNode {
     // should override this method
     void setNodePatternInclusion() {}
 
+    /**
+     * Determine which nodes need their contribution recalculated: those with a changed
+     * branch and their ancestors, whose partials and set of tips below are affected.
+     */
+    protected void markUpdatedNodes() {
+        if (allNodesUpdated) {
+            Arrays.fill(nodeUpdated, true);
+        } else {
+            markUpdatedNodes(treeModel.getRoot());
+        }
+        Arrays.fill(branchChanged, false);
+    }
+
+    private boolean markUpdatedNodes(Node node) {
+        boolean updated = node.isDirty() != Tree.IS_CLEAN || branchChanged[node.getNr()];
+        for (int i = 0; i < node.getChildCount(); i++) {
+            updated |= markUpdatedNodes(node.getChild(i));
+        }
+        nodeUpdated[node.getNr()] = updated;
+        return updated;
+    }
+
+    /** recalculate all node contributions at the next evaluation **/
+    public void setAllNodesUpdated() {
+        allNodesUpdated = true;
+    }
+
+    /**
+     * recalculate contributions of node and its ancestors at the next evaluation, e.g.
+     * because the partials of its ancestors changed while the tree did not
+     */
+    public void setBranchChanged(int nodeIndex) {
+        branchChanged[nodeIndex] = true;
+    }
+
+    /**
+     * Save per pattern values of a node before they are changed for the first time since
+     * the last store(), so restore() only needs to put back the nodes that changed.
+     */
+    protected final void saveNodeState(int nodeIndex) {
+        if (nodeSaved[nodeIndex]) {
+            return;
+        }
+        nodeSaved[nodeIndex] = true;
+        savedNodes[savedNodeCount++] = nodeIndex;
+        storeNode(nodeIndex);
+    }
+
+    protected void storeNode(int nodeIndex) {
+        final int offset = nodeIndex * patternCount;
+        final int wordOffset = nodeIndex * wordCount;
+        System.arraycopy(nodePatternInclusion, wordOffset, storedNodePatternInclusion, wordOffset, wordCount);
+        System.arraycopy(nodeContributions, offset, storedNodeContributions, offset, patternCount);
+    }
+
+    protected void restoreNode(int nodeIndex) {
+        final int offset = nodeIndex * patternCount;
+        final int wordOffset = nodeIndex * wordCount;
+        System.arraycopy(storedNodePatternInclusion, wordOffset, nodePatternInclusion, wordOffset, wordCount);
+        System.arraycopy(storedNodeContributions, offset, nodeContributions, offset, patternCount);
+    }
+
+    private void clearSavedNodes() {
+        for (int i = 0; i < savedNodeCount; i++) {
+            nodeSaved[savedNodes[i]] = false;
+        }
+        savedNodeCount = 0;
+    }
+
     final public double getAverageRate() {
         if (!averageRateKnown) {
             double avgRate = 0.0;
@@ -356,9 +611,15 @@ public class AbstractObservationProcess extends CalculationNode {
       	  averageRateKnown = false;
     	  weightKnown = false;
     	  nodePatternInclusionKnown = false;
+    	  allNodesUpdated = true;
     	}
     	if (siteModel.isDirtyCalculation()) {
     	  averageRateKnown = false;
+    	  allNodesUpdated = true;
+      }
+      if (branchRateModel instanceof CalculationNode && ((CalculationNode) branchRateModel).isDirtyCalculation()) {
+    	  weightKnown = false;
+    	  allNodesUpdated = true;
       }
       if (treeModel.somethingIsDirty()) {
     	  weightKnown = false;
@@ -390,11 +651,18 @@ public class AbstractObservationProcess extends CalculationNode {
 //        }
 //    }
 //
+    // store() and restore() are called both by the framework, when an input of the process
+    // changed, and by ALSTreeLikelihood, which changes cumLike when only its own inputs (such
+    // as its branch rate model) changed, so restore() should only undo an evaluation once
+    private boolean evaluatedSinceStore = false;
+
     @Override
 	public void store() {
 //        storedAverageRate = averageRate;
         storedLogTreeWeight = logTreeWeight;
-        System.arraycopy(nodePatternInclusion, 0, storedNodePatternInclusion, 0, storedNodePatternInclusion.length);
+        System.arraycopy(cumLike, 0, storedCumLike, 0, patternCount);
+        clearSavedNodes();
+        evaluatedSinceStore = false;
     }
 
     @Override
@@ -402,9 +670,17 @@ public class AbstractObservationProcess extends CalculationNode {
 //        averageRate = storedAverageRate;
         averageRateKnown = false;
         logTreeWeight = storedLogTreeWeight;
-        boolean[] tmp = storedNodePatternInclusion;
-        storedNodePatternInclusion = nodePatternInclusion;
-        nodePatternInclusion = tmp;
+        if (!evaluatedSinceStore) {
+            return;
+        }
+        for (int i = 0; i < savedNodeCount; i++) {
+            restoreNode(savedNodes[i]);
+        }
+        clearSavedNodes();
+        double[] tmp = storedCumLike;
+        storedCumLike = cumLike;
+        cumLike = tmp;
+        evaluatedSinceStore = false;
     }
 
     protected void acceptState() {
@@ -147,26 +147,33 @@ public class AnyTipObservationProcess extends AbstractObservationProcess {
 	public void setTipNodePatternInclusion() { // These values never change
         for (int i = 0; i < treeModel.getLeafNodeCount(); i++) {
             Node node = treeModel.getNode(i);
+            int taxonIndex = patterns.getTaxonIndex(node.getID());
 
             for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-                extantInTipsBelow[i * patternCount + patternIndex] = 1;
-                int taxonIndex = patterns.getTaxonIndex(node.getID());
+                boolean extant = true;
                 int patternItem = patterns.getPattern(taxonIndex, patternIndex);
                 int[] states = dataType.getStatesForCode(patternItem);
                 for (int state : states) {
                     if (state == deathState) {
-                        extantInTipsBelow[i * patternCount + patternIndex] = 0;
+                        extant = false;
                     }
                 }
-                extantInTips[patternIndex] += extantInTipsBelow[i * patternCount + patternIndex];
-
+                if (extant) {
+                    extantInTipsBelow[i * wordCount + (patternIndex >> 6)] |= 1L << patternIndex;
+                    extantInTips[patternIndex]++;
+                }
             }
         }
 
-        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+        // a tip includes all extant tips of a pattern if it is the only one, or there are none
+        for (int i = 0; i < treeModel.getLeafNodeCount(); i++) {
             for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-                nodePatternInclusion[i * patternCount + patternIndex] =
-                        (extantInTipsBelow[i * patternCount +patternIndex] >= extantInTips[patternIndex]);
+                final long bit = 1L << patternIndex;
+                final int word = i * wordCount + (patternIndex >> 6);
+                if (extantInTips[patternIndex] == 0 ||
+                        (extantInTips[patternIndex] == 1 && (extantInTipsBelow[word] & bit) != 0)) {
+                    nodePatternInclusion[word] |= bit;
+                }
             }
         }
     }
@@ -179,49 +186,85 @@ public class AnyTipObservationProcess extends AbstractObservationProcess {
         }
         
         if (nodePatternInclusion == null) {
-            nodePatternInclusion = new boolean[nodeCount * patternCount];
-            storedNodePatternInclusion = new boolean[nodeCount * patternCount];
+            nodePatternInclusion = new long[nodeCount * wordCount];
+            storedNodePatternInclusion = new long[nodeCount * wordCount];
         }
 
         if (extantInTips == null) {
             extantInTips = new int[patternCount];
-            extantInTipsBelow = new int[nodeCount * patternCount];
+            extantInTipsBelow = new long[nodeCount * wordCount];
+            storedExtantInTipsBelow = new long[nodeCount * wordCount];
             setTipNodePatternInclusion();
         }
 
         // Determine post-order traversal
         /*Tree.Utils.*/postOrderTraversalList(treeModel, postOrderNodeList);
 
-        // Do post-order traversal
-        // Do post-order traversal
+        // Do post-order traversal, only recounting nodes that changed (see markUpdatedNodes()),
+        // 64 patterns at a time
         for (int postOrderIndex = 0; postOrderIndex < nodeCount; postOrderIndex++) {
             Node node = treeModel.getNode(postOrderNodeList[postOrderIndex]);
             final int nChildren = node.getChildCount();
-            if (nChildren > 0) {
+            if (nChildren > 0 && nodeUpdated[node.getNr()]) {
                 final int nodeNumber = node.getNr();
-                for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-                    extantInTipsBelow[nodeNumber * patternCount + patternIndex] = 0;
+                saveNodeState(nodeNumber);
+                for (int word = 0; word < wordCount; word++) {
+                    long below = 0;
                     for (int j = 0; j < nChildren; j++) {
-                        final int childIndex = node.getChild(j).getNr();
-                        extantInTipsBelow[nodeNumber * patternCount + patternIndex] +=
-                                extantInTipsBelow[childIndex * patternCount + patternIndex];
+                        below |= extantInTipsBelow[node.getChild(j).getNr() * wordCount + word];
                     }
+                    extantInTipsBelow[nodeNumber * wordCount + word] = below;
                 }
             }
         }
 
-        for (int i = treeModel.getLeafNodeCount(); i < treeModel.getNodeCount(); ++i) {
-            for (int patternIndex = 0; patternIndex < patternCount; patternIndex++) {
-                nodePatternInclusion[i * patternCount + patternIndex] =
-                        (extantInTipsBelow[i * patternCount + patternIndex] >= extantInTips[patternIndex]);
+        // All extant tips of a pattern are below a node if they are all below its parent,
+        // and none are below its siblings. Ancestors of changed nodes changed as well, so
+        // a pre-order traversal has the parent up to date when the node is visited.
+        for (int postOrderIndex = nodeCount - 1; postOrderIndex >= 0; postOrderIndex--) {
+            Node node = treeModel.getNode(postOrderNodeList[postOrderIndex]);
+            final int nodeNumber = node.getNr();
+            if (node.getChildCount() == 0 || !nodeUpdated[nodeNumber]) {
+                // inclusion of tips never changes
+                continue;
+            }
+            Node parent = node.getParent();
+            for (int word = 0; word < wordCount; word++) {
+                long included = -1L;
+                if (parent != null) {
+                    included = nodePatternInclusion[parent.getNr() * wordCount + word];
+                    for (int j = 0; j < parent.getChildCount(); j++) {
+                        Node sibling = parent.getChild(j);
+                        if (sibling != node) {
+                            included &= ~extantInTipsBelow[sibling.getNr() * wordCount + word];
+                        }
+                    }
+                }
+                nodePatternInclusion[nodeNumber * wordCount + word] = included;
             }
         }
-        
+
         nodePatternInclusionKnown = true;
     }
 
+    @Override
+    protected void storeNode(int nodeIndex) {
+        super.storeNode(nodeIndex);
+        final int offset = nodeIndex * wordCount;
+        System.arraycopy(extantInTipsBelow, offset, storedExtantInTipsBelow, offset, wordCount);
+    }
+
+    @Override
+    protected void restoreNode(int nodeIndex) {
+        super.restoreNode(nodeIndex);
+        final int offset = nodeIndex * wordCount;
+        System.arraycopy(storedExtantInTipsBelow, offset, extantInTipsBelow, offset, wordCount);
+    }
+
     private int[] extantInTips;
-    private int[] extantInTipsBelow; // Easier to store/restore (later) if 1D array
+    // bit packed like nodePatternInclusion: whether a pattern has an extant tip below a node
+    private long[] extantInTipsBelow;
+    private long[] storedExtantInTipsBelow;
 
     private int[] postOrderNodeList;
 
@@ -0,0 +1,205 @@
+package babel.evolution.likelihood;
+
+import java.util.Arrays;
+
+import babel.evolution.substitutionmodel.BatchedSubstitutionModel;
+import beast.base.core.Description;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+@Description("Treelikelihood that, when the substitution model can calculate transition probability "
+		+ "matrices in batches, calculates the matrices of all branches that need updating in as "
+		+ "few calls as possible before the java likelihood core traverses the tree")
+public class BatchedTreeLikelihood extends TreeLikelihood {
+
+	/** substitution model handed to TreeLikelihood, which serves the precalculated matrices **/
+	private PrecalculatedSubstitutionModel precalculated;
+
+	private int categoryCount;
+	private int matrixSize;
+	/** nodes of branches to update, and their lengths in time **/
+	private Node [] branches;
+	private double [] branchLengths;
+	/** rates of all categories times branch rate, indexed by node number, then category **/
+	private double [] jointRates;
+	/** matrices of batched calls **/
+	private double [] matrices;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		SubstitutionModel substModel = (SubstitutionModel) m_siteModel.substModelInput.get();
+		if (beagle == null && substModel instanceof BatchedSubstitutionModel) {
+			int nodeCount = treeInput.get().getNodeCount();
+			categoryCount = m_siteModel.getCategoryCount();
+			matrixSize = substModel.getStateCount() * substModel.getStateCount();
+			branches = new Node[nodeCount];
+			branchLengths = new double[nodeCount];
+			jointRates = new double[nodeCount * categoryCount];
+			matrices = new double[nodeCount * categoryCount * matrixSize];
+			precalculated = new PrecalculatedSubstitutionModel(substModel, nodeCount);
+			substitutionModel = precalculated;
+		}
+	}
+
+	@Override
+	public double calculateLogP() {
+		if (precalculated == null) {
+			return super.calculateLogP();
+		}
+		precalculateTransitionProbabilities();
+		try {
+			return super.calculateLogP();
+		} finally {
+			precalculated.clear();
+		}
+	}
+
+	/**
+	 * calculate matrices of the branches TreeLikelihood.traverse() will update, using the
+	 * same criteria, with one batched call for all branches that share category rates
+	 * (e.g. all branches under a strict clock)
+	 */
+	private void precalculateTransitionProbabilities() {
+		BranchRateModel branchRateModel = branchRateModelInput.get();
+		int branchCount = 0;
+		for (Node node : treeInput.get().getNodesAsArray()) {
+			if (node.isRoot()) {
+				continue;
+			}
+			double branchRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+			double branchTime = node.getLength() * branchRate;
+			int nr = node.getNr();
+			if ((node.isDirty() | hasDirt) != Tree.IS_CLEAN || branchTime != m_branchLengths[nr]) {
+				for (int c = 0; c < categoryCount; c++) {
+					jointRates[nr * categoryCount + c] = m_siteModel.getRateForCategory(c, node) * branchRate;
+				}
+				branches[branchCount] = node;
+				branchLengths[branchCount] = node.getParent().getHeight() - node.getHeight();
+				branchCount++;
+			}
+		}
+		if (branchCount == 0) {
+			return;
+		}
+
+		BatchedSubstitutionModel batchedModel = (BatchedSubstitutionModel) precalculated.model;
+		if (haveSameRates(branchCount)) {
+			double [] rates = Arrays.copyOfRange(jointRates, branches[0].getNr() * categoryCount, (branches[0].getNr() + 1) * categoryCount);
+			batchedModel.getTransitionProbabilities(branchLengths, branchCount, rates, matrices);
+			for (int b = 0; b < branchCount; b++) {
+				precalculated.set(branches[b], b * categoryCount * matrixSize);
+			}
+		} else {
+			// e.g. relaxed clock: batch over categories only
+			double [] rates = new double[categoryCount];
+			double [] branchLength = new double[1];
+			for (int b = 0; b < branchCount; b++) {
+				System.arraycopy(jointRates, branches[b].getNr() * categoryCount, rates, 0, categoryCount);
+				branchLength[0] = branchLengths[b];
+				batchedModel.getTransitionProbabilities(branchLength, 1, rates, matrices);
+				precalculated.set(branches[b], 0);
+			}
+		}
+	}
+
+	/** whether the branches to update all have the category rates of the first one **/
+	private boolean haveSameRates(int branchCount) {
+		int first = branches[0].getNr() * categoryCount;
+		for (int b = 1; b < branchCount; b++) {
+			int nr = branches[b].getNr() * categoryCount;
+			for (int c = 0; c < categoryCount; c++) {
+				if (jointRates[nr + c] != jointRates[first + c]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Substitution model that returns the matrices calculated up front when asked for the
+	 * branch and rate they were calculated for, and delegates everything else to the
+	 * substitution model of the site model.
+	 */
+	private class PrecalculatedSubstitutionModel extends SubstitutionModel.Base {
+		final SubstitutionModel model;
+		/** matrices indexed by node number, then category **/
+		final double [] matrices;
+		final boolean [] isPrecalculated;
+		final double [] startTimes;
+		final double [] endTimes;
+
+		PrecalculatedSubstitutionModel(SubstitutionModel model, int nodeCount) {
+			this.model = model;
+			matrices = new double[nodeCount * categoryCount * matrixSize];
+			isPrecalculated = new boolean[nodeCount];
+			startTimes = new double[nodeCount];
+			endTimes = new double[nodeCount];
+		}
+
+		/** make matrices of branch above node available, copying them from the batch at offset **/
+		void set(Node node, int offset) {
+			int nr = node.getNr();
+			System.arraycopy(BatchedTreeLikelihood.this.matrices, offset, matrices, nr * categoryCount * matrixSize, categoryCount * matrixSize);
+			isPrecalculated[nr] = true;
+			startTimes[nr] = node.getParent().getHeight();
+			endTimes[nr] = node.getHeight();
+		}
+
+		void clear() {
+			Arrays.fill(isPrecalculated, false);
+		}
+
+		@Override
+		public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+			if (node != null) {
+				int nr = node.getNr();
+				if (isPrecalculated[nr] && startTimes[nr] == startTime && endTimes[nr] == endTime) {
+					for (int c = 0; c < categoryCount; c++) {
+						if (jointRates[nr * categoryCount + c] == rate) {
+							System.arraycopy(matrices, (nr * categoryCount + c) * matrixSize, matrix, 0, matrixSize);
+							return;
+						}
+					}
+				}
+			}
+			model.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+		}
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double[] getFrequencies() {
+			return model.getFrequencies();
+		}
+
+		@Override
+		public int getStateCount() {
+			return model.getStateCount();
+		}
+
+		@Override
+		public EigenDecomposition getEigenDecomposition(Node node) {
+			return model.getEigenDecomposition(node);
+		}
+
+		@Override
+		public boolean canReturnComplexDiagonalization() {
+			return model.canReturnComplexDiagonalization();
+		}
+
+		@Override
+		public boolean canHandleDataType(DataType dataType) {
+			return model.canHandleDataType(dataType);
+		}
+	}
+
+} // class BatchedTreeLikelihood
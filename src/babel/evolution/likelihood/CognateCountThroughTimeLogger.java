@@ -8,20 +8,21 @@ import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.datatype.TwoStateCovarion;
-import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
 
 
 @Description("Logs internal states sampled from the distribution at the MRCA of a set of taxa."
 		+ "Only the most likely state and its probability is logged")
-public class CognateCountThroughTimeLogger extends TreeLikelihood implements Loggable {
+public class CognateCountThroughTimeLogger extends PartialsTreeLikelihood implements Loggable {
 	public Input<Double> maxHeightInput = new Input<>("maxHeight","maximum height of the interval to record");
 	public Input<Integer> intervalCountInput = new Input<>("intervalCount","number of intervals to record");
 	
 	
 	double [][] marginals;
 	double [] MAPprob;
+	double [] rootPartials;
+	double [] transitionMatrix;
 	
 	int intervalCount;
 	double maxHeight;
@@ -39,11 +40,7 @@ public class CognateCountThroughTimeLogger extends TreeLikelihood implements Log
     	}
 
     	
-		// ensure we do not use BEAGLE
-        boolean forceJava = Boolean.valueOf(System.getProperty("java.only"));
-        System.setProperty("java.only", "true");
 		super.initAndValidate();
-        System.setProperty("java.only", "" + forceJava);
         
         Alignment data = dataInput.get();        
         
@@ -62,6 +59,8 @@ public class CognateCountThroughTimeLogger extends TreeLikelihood implements Log
         for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++) {
         	marginals[i] = new double[data.getSiteCount() * stateCount];
         }
+        rootPartials = new double[data.getPatternCount() * getStateCount()];
+        transitionMatrix = new double[getStateCount() * getStateCount()];
 	}
 	
     @Override
@@ -77,8 +76,7 @@ public class CognateCountThroughTimeLogger extends TreeLikelihood implements Log
 		
 		try {
 			// force fresh recalculation of likelihood at this stage
-			Arrays.fill(m_branchLengths, 0);
-			calculateLogP();
+			recalculateLogP();
 			
 			// calculate marginals
 			TreeInterface tree = treeInput.get();
@@ -150,15 +148,12 @@ public class CognateCountThroughTimeLogger extends TreeLikelihood implements Log
 		double [] m = marginals[node.getNr()];
 
 		if (node.isRoot()) {
-			if (beagle != null) {
-				throw new RuntimeException("BEAGLE is not supported yet");
-				// m_fRootPartials = beagle.m_fRootPartials;
-			}
+			getRootPartials(rootPartials);
 			
-            final double[] frequencies = substitutionModel.getFrequencies();
+            final double[] frequencies = getSiteModel().getSubstitutionModel().getFrequencies();
             for (int i = 0; i < patternCount; i++) {
             	for (int j = 0; j < stateCount; j++) {
-            		m[i*stateCount + j] = frequencies[j] * m_fRootPartials[i*stateCount + j];
+            		m[i*stateCount + j] = frequencies[j] * rootPartials[i*stateCount + j];
             	}
             	// normalise
             	double sum = 0;
@@ -172,21 +167,16 @@ public class CognateCountThroughTimeLogger extends TreeLikelihood implements Log
 
 		} else {
 			
-			double [] partials = new double[dataInput.get().getPatternCount() * stateCount * m_siteModel.getCategoryCount()];
+			double [] partials = new double[dataInput.get().getPatternCount() * stateCount * getSiteModel().getCategoryCount()];
 			
-			if (m_siteModel.getCategoryCount() != 1) {
+			if (getSiteModel().getCategoryCount() != 1) {
 				throw new RuntimeException("Gamma rate heterogeneity or proportion invariant is not supported yet");
 			}
-			if (beagle != null) {
-				throw new RuntimeException("BEAGLE is not supported yet");
-				// beagle.beagle.getPartials(arg0, arg1, arg2);
-        		// getTransitionMatrix(nodeNum, probabilities);
-			} else {
-				likelihoodCore.getNodeMatrix(node.getNr(), 0, probabilities);
-			}
+			double [] probabilities = transitionMatrix;
+			getTransitionMatrix(node, 0, probabilities);
 
 			if (!node.isLeaf()) { 
-				likelihoodCore.getNodePartials(node.getNr(), partials);
+				getNodePartials(node.getNr(), partials);
 
 				Arrays.fill(m, 0);
 				double [] parm = marginals[node.getParent().getNr()];
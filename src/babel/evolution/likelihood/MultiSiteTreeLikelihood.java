@@ -5,12 +5,9 @@ import beast.base.core.Input;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.datatype.TwoStateCovarion;
-import beast.base.evolution.likelihood.TreeLikelihood;
-import beast.base.evolution.tree.Node;
-import beast.base.evolution.tree.Tree;
 
 @Description("TreeLikelihood that assumes only a single site is reconstructed as 1 at the root")
-public class MultiSiteTreeLikelihood extends TreeLikelihood {
+public class MultiSiteTreeLikelihood extends PartialsTreeLikelihood {
 	final public Input<IntegerParameter> rootStateInput = new Input<>("rootState", "if specified, the site that is considered to be 1");
 	
 
@@ -22,15 +19,19 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
 	
 	IntegerParameter rootState;
 	
+    // root partials and pattern log likelihoods are calculated by TreeLikelihood only when the
+    // root is recalculated, but are used every time, so have to survive restore() as well
     protected double[] m_fStoredRootPartials;
+    protected double[] storedPatternLogLikelihoods;
+    // root partials obtained from BEAGLE, which keeps track of stored states itself
+    private double[] beagleRootPartials;
+    // log of the scale factors BEAGLE divided the root partials of each pattern by
+    private double[] beagleLogScaleFactors;
 
 	@Override
 	public void initAndValidate() {
 		rootState = rootStateInput.get();
-		boolean useJava = System.getProperty("java.only") != null && System.getProperty("java.only").equals("true");
-        System.setProperty("java.only", "true");
 		super.initAndValidate();
-        System.setProperty("java.only", useJava+"");
 		
 		data = dataInput.get();
 		stateCount = data.getMaxStateCount();
@@ -56,16 +57,14 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
 			siteFreqs[i] /= n;
 		}
 		
+		if (beagle != null) {
+			beagleRootPartials = new double[data.getPatternCount() * stateCount];
+			beagleLogScaleFactors = new double[data.getPatternCount()];
+		}
 	}
 	
 	@Override
 	public double calculateLogP() {
-		// TODO: there is an store/restore bug somewhere
-		// make it go away (for now) by recalculating everything every time
-		for (Node node : treeInput.get().getNodesAsArray()) {
-			node.makeDirty(Tree.IS_FILTHY);
-		}
-		
 		logP = super.calculateLogP();
 		if (siteFreqs.length == 1 || 
 				(data.isAscertained && siteFreqs.length == 2)) {
@@ -75,17 +74,32 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
 		double [] p0 = new double[patternCount];
 		double [] p1 = new double[patternCount];
 
-		double [] frequencies = substitutionModel.getFrequencies();
+		double [] frequencies = getSiteModel().getSubstitutionModel().getFrequencies();
+		double [] rootPartials = m_fRootPartials;
+		double [] patternLogLikelihoods = this.patternLogLikelihoods;
+		if (beagle != null) {
+			getRootPartials(beagleRootPartials);
+			rootPartials = beagleRootPartials;
+			// unlike the root partials, these include BEAGLE's scale factors
+			patternLogLikelihoods = getPatternLogLikelihoods();
+		}
 		
         int v = 0;
         for (int k = 0; k < patternCount; k++) {
             for (int i = 0; i < stateCount; i+=2) {
-                p0[k] += frequencies[i] * m_fRootPartials[v];
+                p0[k] += frequencies[i] * rootPartials[v];
                 v++;
-                p1[k] += frequencies[i+1] * m_fRootPartials[v];
+                p1[k] += frequencies[i+1] * rootPartials[v];
                 v++;
             }
         }
+        if (beagle != null) {
+            // p0 + p1 is the pattern likelihood up to the scale factor, so recover the
+            // factor and take it into account in log(p0) and log(p1) below
+            for (int k = 0; k < patternCount; k++) {
+                beagleLogScaleFactors[k] = patternLogLikelihoods[k] - Math.log(p0[k] + p1[k]);
+            }
+        }
         
         if (rootState != null) {
     		logP = 0;
@@ -98,6 +112,9 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
     				} else {
     					logP += Math.log(p0[j]);
     				}
+    				if (beagle != null) {
+    					logP += beagleLogScaleFactors[j];
+    				}
     				w++;
     			}
     		}
@@ -114,6 +131,9 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
 		double P0 = 0;
 		for (int i = 0; i < data.getPatternCount(); i++) {
 			P0 += Math.log(p0[i]) * data.getPatternWeight(i);
+			if (beagle != null) {
+				P0 += beagleLogScaleFactors[i] * data.getPatternWeight(i);
+			}
 		}
 		
 		double [] s = new double[siteFreqs.length];
@@ -144,19 +164,31 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
 	
 	@Override
 	public void store() {
+		if (beagle != null) {
+			super.store();
+			return;
+		}
 		if (m_fStoredRootPartials == null) {
 			m_fStoredRootPartials = new double[m_fRootPartials.length];
+			storedPatternLogLikelihoods = new double[patternLogLikelihoods.length];
 		}
 		System.arraycopy(m_fRootPartials, 0, m_fStoredRootPartials, 0, m_fRootPartials.length);
+		System.arraycopy(patternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, patternLogLikelihoods.length);
 		
 		super.store();
 	}
 	
 	@Override
 	public void restore() {
-		double [] tmp = m_fStoredRootPartials;
-		m_fStoredRootPartials = m_fRootPartials;
-		m_fRootPartials = tmp;
+		if (m_fStoredRootPartials != null) {
+			double [] tmp = m_fStoredRootPartials;
+			m_fStoredRootPartials = m_fRootPartials;
+			m_fRootPartials = tmp;
+
+			tmp = storedPatternLogLikelihoods;
+			storedPatternLogLikelihoods = patternLogLikelihoods;
+			patternLogLikelihoods = tmp;
+		}
 		
 		super.restore();
 	}
@@ -164,11 +196,12 @@ public class MultiSiteTreeLikelihood extends TreeLikelihood {
 	
 	@Override
 	protected boolean requiresRecalculation() {
-		super.requiresRecalculation();
-//		if (rootState.isDirtyCalculation()) {
-//			super.requiresRecalculation();
-//			return true;
-//		}
-		return true;
+		// sets up which nodes of the tree need updating
+		boolean isDirty = super.requiresRecalculation();
+		// changing the root state only requires the root partials, which are kept up to date
+		if (rootState != null && rootState.somethingIsDirty()) {
+			return true;
+		}
+		return isDirty;
 	}
 }
@@ -1,6 +1,13 @@
 package babel.evolution.likelihood;
 
 public interface PartialsProvider {
+	/**
+	 * partials of node iNode as calculated by the likelihood core or BEAGLE, ordered by
+	 * category, then pattern, then state
+	 */
 	public void getNodePartials(int iNode, double [] fPartials);
+
+	/** partials at the root integrated over rate categories, ordered by pattern, then state **/
+	public void getRootPartials(double [] fRootPartials);
 	
 }
@@ -0,0 +1,101 @@
+package babel.evolution.likelihood;
+
+import java.util.Arrays;
+
+import beagle.Beagle;
+import beast.base.core.Description;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+
+@Description("Treelikelihood giving access to partials and transition matrices, whether "
+		+ "these are calculated by BEAGLE or by the java likelihood core")
+public class PartialsTreeLikelihood extends TreeLikelihood implements PartialsProvider {
+
+	/** work space for integrating root partials from BEAGLE over categories **/
+	private double [] beagleRootPartials;
+
+	@Override
+	public void getNodePartials(int iNode, double[] fPartials) {
+		if (beagle != null) {
+			beagle.getBeagle().getPartials(beagle.getPartialBufferHelper().getOffsetIndex(iNode), Beagle.NONE, fPartials);
+		} else {
+			likelihoodCore.getNodePartials(iNode, fPartials);
+		}
+	}
+
+	@Override
+	public void getRootPartials(double[] fRootPartials) {
+		if (beagle == null) {
+			System.arraycopy(m_fRootPartials, 0, fRootPartials, 0, m_fRootPartials.length);
+			return;
+		}
+
+		// BEAGLE does not integrate partials, so do this here the same way the java core does
+		Node root = treeInput.get().getRoot();
+		SiteModel.Base siteModel = getSiteModel();
+		int categoryCount = siteModel.getCategoryCount();
+		int size = dataInput.get().getPatternCount() * getStateCount();
+		if (beagleRootPartials == null || beagleRootPartials.length != size * categoryCount) {
+			beagleRootPartials = new double[size * categoryCount];
+		}
+		getNodePartials(root.getNr(), beagleRootPartials);
+
+		double [] proportions = siteModel.getCategoryProportions(root);
+		Arrays.fill(fRootPartials, 0, size, 0.0);
+		for (int l = 0; l < categoryCount; l++) {
+			int offset = l * size;
+			for (int k = 0; k < size; k++) {
+				fRootPartials[k] += beagleRootPartials[offset + k] * proportions[l];
+			}
+		}
+	}
+
+	/** transition probability matrix of the branch above node for rate category **/
+	public void getTransitionMatrix(Node node, int category, double[] matrix) {
+		SiteModel.Base siteModel = getSiteModel();
+		BranchRateModel branchRateModel = branchRateModelInput.get();
+		double branchRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+		double jointBranchRate = siteModel.getRateForCategory(category, node) * branchRate;
+		((SubstitutionModel) siteModel.substModelInput.get()).getTransitionProbabilities(node,
+				node.getParent().getHeight(), node.getHeight(), jointBranchRate, matrix);
+	}
+
+	/** number of states used by the partials **/
+	public int getStateCount() {
+		return getSiteModel().getSubstitutionModel().getStateCount();
+	}
+
+	/** site model, also available when BEAGLE is used (unlike m_siteModel) **/
+	public SiteModel.Base getSiteModel() {
+		return (SiteModel.Base) siteModelInput.get();
+	}
+
+	/** whether partials are calculated by BEAGLE instead of the java likelihood core **/
+	public boolean usesBeagle() {
+		return beagle != null;
+	}
+
+	/**
+	 * calculate the likelihood with partials of all nodes updated, for likelihoods used
+	 * by loggers, which are not updated along with the posterior
+	 */
+	public double recalculateLogP() {
+		// both the java core and BEAGLE recalculate matrices and partials of filthy nodes
+		TreeInterface tree = treeInput.get();
+		boolean wasClean = tree instanceof Tree && !((Tree) tree).somethingIsDirty();
+		for (Node node : tree.getNodesAsArray()) {
+			node.makeDirty(Tree.IS_FILTHY);
+		}
+		double logP = calculateLogP();
+		if (wasClean) {
+			// loggers run between MCMC steps, when nothing should look changed
+			((Tree) tree).setEverythingDirty(false);
+		}
+		return logP;
+	}
+}
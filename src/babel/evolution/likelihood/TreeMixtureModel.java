@@ -4,6 +4,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import beast.base.core.Description;
 import beast.base.inference.Distribution;
@@ -20,10 +24,28 @@ public class TreeMixtureModel extends Distribution {
 	final public Input<String> weightsInput = new Input<>("weights", "comma separated list of weightsm one for each likelihood. "
 			+ "Weights should sum to 1. "
 			+ "If not specified, equal weights are assumed");
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for evaluating likelihoods that changed. Ignored if 1 or less", -1);
 
 	double [] weights;
 	List<TreeLikelihood> likelihoods;
 	Alignment data;
+
+	int patternCount;
+	/** log of weights, so mixing takes a single exp per pattern and component **/
+	double [] logWeights;
+	double [] patternWeights;
+	/** patternLogLikelihoods[i * patternCount + k] = log likelihood of pattern k for component i **/
+	double [] patternLogLikelihoods;
+	double [] storedPatternLogLikelihoods;
+	/** work space for mixing, per pattern **/
+	double [] maxLogLikelihoods;
+	double [] mixedLikelihoods;
+	/** whether patternLogLikelihoods are set for all components **/
+	boolean patternLogLikelihoodsKnown = false;
+	int [] dirtyComponents;
+
+	private int threads = 1;
+	private ForkJoinPool pool;
 	
 	@Override
 	public void initAndValidate() {
@@ -53,31 +75,108 @@ public class TreeMixtureModel extends Distribution {
 				throw new IllegalArgumentException("TreeMixtureModel does not work with ascertained alignments");
 			}
 		}
+
+		patternCount = data.getPatternCount();
+		logWeights = new double[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			logWeights[i] = Math.log(weights[i]);
+		}
+		patternWeights = new double[patternCount];
+		for (int k = 0; k < patternCount; k++) {
+			patternWeights[k] = data.getPatternWeight(k);
+		}
+		patternLogLikelihoods = new double[weights.length * patternCount];
+		storedPatternLogLikelihoods = new double[weights.length * patternCount];
+		maxLogLikelihoods = new double[patternCount];
+		mixedLikelihoods = new double[patternCount];
+		dirtyComponents = new int[weights.length];
+
+		threads = Math.min(threadsInput.get(), weights.length);
+		if (threads > 1) {
+			pool = new ForkJoinPool(threads);
+		}
 	}
 	
 	@Override
 	public double calculateLogP() {
-        double [][] patternLogLikelihoods = new double[weights.length][];        
-        for (int i = 0; i < weights.length; i++) {
-        	TreeLikelihood likelihood = likelihoods.get(i);        	
-        	likelihood.calculateLogP();
-        	patternLogLikelihoods[i] = likelihood.getPatternLogLikelihoods();
-        }
-        
-        logP = 0;
-        for (int i = 0; i < data.getPatternCount(); i++) {
-        	double max = Double.NEGATIVE_INFINITY;
-            for (int j = 0; j < weights.length; j++) {
-            	max = Math.max(max, patternLogLikelihoods[j][i]);
-            }
-            double c = 0;
-            for (int j = 0; j < weights.length; j++) {
-            	c += weights[j] * Math.exp(patternLogLikelihoods[j][i] - max);
-            }
+		// only components that changed need recalculating
+		int dirtyCount = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (!patternLogLikelihoodsKnown || likelihoods.get(i).isDirtyCalculation()) {
+				dirtyComponents[dirtyCount++] = i;
+			}
+		}
+		if (threads > 1 && dirtyCount > 1) {
+			List<Callable<Object>> tasks = new ArrayList<>();
+			for (int j = 0; j < dirtyCount; j++) {
+				final int i = dirtyComponents[j];
+				tasks.add(() -> {
+					updateComponent(i);
+					return null;
+				});
+			}
+			try {
+				for (Future<Object> future : pool.invokeAll(tasks)) {
+					future.get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			for (int j = 0; j < dirtyCount; j++) {
+				updateComponent(dirtyComponents[j]);
+			}
+		}
+		patternLogLikelihoodsKnown = true;
 
-            logP += (Math.log(c) + max) * data.getPatternWeight(i);
-        }
-        return logP;
+		// log sum exp per pattern, with loops over patterns innermost so they run over
+		// contiguous memory and can be vectorised
+		System.arraycopy(patternLogLikelihoods, 0, maxLogLikelihoods, 0, patternCount);
+		for (int i = 1; i < weights.length; i++) {
+			final int offset = i * patternCount;
+			for (int k = 0; k < patternCount; k++) {
+				maxLogLikelihoods[k] = Math.max(maxLogLikelihoods[k], patternLogLikelihoods[offset + k]);
+			}
+		}
+		Arrays.fill(mixedLikelihoods, 0.0);
+		for (int i = 0; i < weights.length; i++) {
+			final int offset = i * patternCount;
+			final double logWeight = logWeights[i];
+			for (int k = 0; k < patternCount; k++) {
+				mixedLikelihoods[k] += Math.exp(patternLogLikelihoods[offset + k] + logWeight - maxLogLikelihoods[k]);
+			}
+		}
+		logP = 0;
+		for (int k = 0; k < patternCount; k++) {
+			if (maxLogLikelihoods[k] == Double.NEGATIVE_INFINITY) {
+				// pattern impossible under all components
+				logP = Double.NEGATIVE_INFINITY;
+				return logP;
+			}
+			logP += (Math.log(mixedLikelihoods[k]) + maxLogLikelihoods[k]) * patternWeights[k];
+		}
+		return logP;
+	}
+
+	/** recalculate likelihood of component i, and keep its pattern log likelihoods **/
+	private void updateComponent(int i) {
+		TreeLikelihood likelihood = likelihoods.get(i);
+		likelihood.calculateLogP();
+		System.arraycopy(likelihood.getPatternLogLikelihoods(), 0, patternLogLikelihoods, i * patternCount, patternCount);
+	}
+
+	@Override
+	public void store() {
+		System.arraycopy(patternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, patternLogLikelihoods.length);
+		super.store();
+	}
+
+	@Override
+	public void restore() {
+		double [] tmp = patternLogLikelihoods;
+		patternLogLikelihoods = storedPatternLogLikelihoods;
+		storedPatternLogLikelihoods = tmp;
+		super.restore();
 	}
 	
 	@Override
@@ -91,6 +190,11 @@ public class TreeMixtureModel extends Distribution {
 	
 	@Override
 	protected boolean requiresRecalculation() {
-        return true;
+		for (TreeLikelihood likelihood : likelihoods) {
+			if (likelihood.isDirtyCalculation()) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
@@ -0,0 +1,24 @@
+package babel.evolution.substitutionmodel;
+
+/**
+ * Substitution model that can calculate the transition probability matrices of many
+ * branches and rate categories in one call, so that the work done per call (such as
+ * obtaining the eigen decomposition) is shared by all branches.
+ */
+public interface BatchedSubstitutionModel {
+
+	/**
+	 * Calculate transition probability matrices for all combinations of branch lengths
+	 * and category rates.
+	 *
+	 * @param branchLengths lengths of branches in substitutions per site, that is, including
+	 * the branch rate
+	 * @param branchCount number of branch lengths to use
+	 * @param rates relative rates of the site categories
+	 * @param matrices buffer of at least branchCount * rates.length * stateCount^2 entries.
+	 * The matrix for branch b and category c is stored row by row, starting at offset
+	 * (b * rates.length + c) * stateCount^2.
+	 */
+	void getTransitionProbabilities(double[] branchLengths, int branchCount, double[] rates, double[] matrices);
+
+}
@@ -1,6 +1,7 @@
 package babel.evolution.substitutionmodel;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import babel.evolution.datatype.TwoStateCovarionPlus;
 import beast.base.core.Citation;
@@ -11,10 +12,12 @@ import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.substitutionmodel.ComplexSubstitutionModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.tree.Node;
 
 @Description("Covarion model for Binary data with 3 rates")
 @Citation(value="R.Bouckaert, M. Robbeets. Pseudo Dollo models for the evolution of binary characters along a tree. BIORXIV/2017/207571", DOI="https://doi.org/10.1101/207571")
-public class BirthDeathCovarion2 extends ComplexSubstitutionModel implements Loggable {
+public class BirthDeathCovarion2 extends ComplexSubstitutionModel implements Loggable, CachesEigenDecompositions {
     public Input<RealParameter> switchRateInput = new Input<RealParameter>("switchRate", "the rate of flipping between slow and fast modes", Validate.REQUIRED);
     public Input<RealParameter> vfrequenciesInput = new Input<RealParameter>("vfrequencies", "the frequencies of the visible states", Validate.REQUIRED);
     public Input<RealParameter> hfrequenciesInput = new Input<RealParameter>("hfrequencies", "the frequencies of the hidden rates");
@@ -28,10 +31,34 @@ public class BirthDeathCovarion2 extends ComplexSubstitutionModel implements Log
     private RealParameter hiddenFrequencies;
     private RealParameter originLength;
 
+    /** decompositions of recently seen rate matrices, so restoring switch or death rates is cheap **/
+    protected EigenDecompositionCache eigenDecompositionCache = new EigenDecompositionCache();
+
     protected double[][] unnormalizedQ;
     protected double[][] storedUnnormalizedQ;
     int stateCount;
 
+    /*
+     * Structured fast path for the 5 state model. Once a state leaves the visible states 0
+     * and 3 (A) it cannot return, and the same holds for states 1 and 4 (B), while state 2
+     * is absorbing. So Q is block upper triangular:
+     *   P_AA(t) = exp(Q_AA t), P_BB(t) = exp(Q_BB t),
+     *   P_AB(t) = integral_0^t exp(Q_AA s) Q_AB exp(Q_BB (t-s)) ds
+     * and transitions into state 2 make up the rest of each row. With spectral projectors
+     * E_i of the 2x2 blocks, exp(Mt) = sum_i exp(l_i t) E_i, and
+     *   P_AB(t) = sum_ij E_i^A Q_AB E_j^B phi(l_i, m_j, t)
+     * with phi(l, m, t) = (exp(lt) - exp(mt))/(l - m).
+     */
+    final static int [] BLOCK_A = {0, 3}, BLOCK_B = {1, 4};
+    final static int ABSORBING_STATE = 2;
+    /** whether the rate matrix has the block structure, and its blocks are diagonalisable **/
+    private boolean useBlockForm = false;
+    private double [] eigenA = new double[2], eigenB = new double[2];
+    /** projectors[i][r * 2 + c] for eigen value i **/
+    private double [][] projectorsA = new double[2][4], projectorsB = new double[2][4];
+    /** crossTerms[i * 2 + j] = E_i^A Q_AB E_j^B **/
+    private double [][] crossTerms = new double[4][4];
+
     public BirthDeathCovarion2() {
         ratesInput.setRule(Validate.OPTIONAL);
         frequenciesInput.setRule(Validate.FORBIDDEN);
@@ -108,6 +135,152 @@ public class BirthDeathCovarion2 extends ComplexSubstitutionModel implements Log
 //    	}
 //    }
 
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        synchronized (this) {
+            if (updateMatrix) {
+                setupRelativeRates();
+                setupRateMatrix();
+                eigenDecomposition = eigenDecompositionCache.getEigenDecomposition(rateMatrix, eigenSystem);
+                updateMatrix = false;
+                useBlockForm = setupBlockForm();
+            }
+        }
+        return eigenDecomposition;
+    }
+
+    @Override
+    public EigenDecompositionCache getEigenDecompositionCache() {
+        return eigenDecompositionCache;
+    }
+
+    @Override
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        // brings the decomposition and block form up to date
+        getEigenDecomposition(node);
+        double distance = (startTime - endTime) * rate;
+        if (!useBlockForm || !(distance >= 0)) {
+            super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            return;
+        }
+
+        double [] expA = {Math.exp(eigenA[0] * distance), Math.exp(eigenA[1] * distance)};
+        double [] expB = {Math.exp(eigenB[0] * distance), Math.exp(eigenB[1] * distance)};
+        double [] phi = new double[4];
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                phi[i * 2 + j] = phi(eigenA[i], eigenB[j], distance);
+            }
+        }
+
+        Arrays.fill(matrix, 0, nrOfStates * nrOfStates, 0.0);
+        for (int r = 0; r < 2; r++) {
+            int rowA = BLOCK_A[r] * nrOfStates;
+            int rowB = BLOCK_B[r] * nrOfStates;
+            double sumA = 0, sumB = 0;
+            for (int c = 0; c < 2; c++) {
+                int k = r * 2 + c;
+                double pAA = Math.abs(expA[0] * projectorsA[0][k] + expA[1] * projectorsA[1][k]);
+                double pAB = Math.abs(phi[0] * crossTerms[0][k] + phi[1] * crossTerms[1][k]
+                        + phi[2] * crossTerms[2][k] + phi[3] * crossTerms[3][k]);
+                double pBB = Math.abs(expB[0] * projectorsB[0][k] + expB[1] * projectorsB[1][k]);
+                matrix[rowA + BLOCK_A[c]] = pAA;
+                matrix[rowA + BLOCK_B[c]] = pAB;
+                matrix[rowB + BLOCK_B[c]] = pBB;
+                sumA += pAA + pAB;
+                sumB += pBB;
+            }
+            matrix[rowA + ABSORBING_STATE] = Math.max(0.0, 1.0 - sumA);
+            matrix[rowB + ABSORBING_STATE] = Math.max(0.0, 1.0 - sumB);
+        }
+        matrix[ABSORBING_STATE * nrOfStates + ABSORBING_STATE] = 1.0;
+    }
+
+    /** (exp(lt) - exp(mt))/(l - m), or t exp(lt) if l = m, computed without overflow or cancellation **/
+    private static double phi(double l, double m, double t) {
+        double max = Math.max(l, m), min = Math.min(l, m);
+        if (max == min) {
+            return t * Math.exp(max * t);
+        }
+        return Math.exp(max * t) * Math.expm1((min - max) * t) / (min - max);
+    }
+
+    /**
+     * set up eigen values, spectral projectors and cross terms from the rate matrix
+     * @return false if the rate matrix does not have the expected structure, or a block
+     * is (close to) not diagonalisable, in which case the eigen system is used
+     */
+    private boolean setupBlockForm() {
+        if (nrOfStates != 5) {
+            return false;
+        }
+        for (int i = 0; i < nrOfStates; i++) {
+            if (rateMatrix[ABSORBING_STATE][i] != 0) {
+                return false;
+            }
+        }
+        for (int r : BLOCK_A) {
+            if (rateMatrix[r][ABSORBING_STATE] != 0) {
+                return false;
+            }
+        }
+        for (int r : BLOCK_B) {
+            for (int c : BLOCK_A) {
+                if (rateMatrix[r][c] != 0) {
+                    return false;
+                }
+            }
+        }
+        if (!setupProjectors(BLOCK_A, eigenA, projectorsA) || !setupProjectors(BLOCK_B, eigenB, projectorsB)) {
+            return false;
+        }
+
+        double [] qAB = new double[4];
+        for (int r = 0; r < 2; r++) {
+            for (int c = 0; c < 2; c++) {
+                qAB[r * 2 + c] = rateMatrix[BLOCK_A[r]][BLOCK_B[c]];
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                crossTerms[i * 2 + j] = multiply(multiply(projectorsA[i], qAB), projectorsB[j]);
+            }
+        }
+        return true;
+    }
+
+    /** eigen values and spectral projectors of the 2x2 block of the rate matrix with states in block **/
+    private boolean setupProjectors(int [] block, double [] eigen, double [][] projectors) {
+        double m00 = rateMatrix[block[0]][block[0]], m01 = rateMatrix[block[0]][block[1]];
+        double m10 = rateMatrix[block[1]][block[0]], m11 = rateMatrix[block[1]][block[1]];
+        double mean = (m00 + m11) / 2.0;
+        double halfDiff = (m00 - m11) / 2.0;
+        double delta = Math.sqrt(halfDiff * halfDiff + m01 * m10);
+        double scale = Math.max(Math.abs(m00), Math.abs(m11));
+        if (!(delta > 1e-6 * scale) || Double.isInfinite(delta)) {
+            // repeated eigen value, or rates that are not finite
+            return false;
+        }
+        eigen[0] = mean + delta;
+        eigen[1] = mean - delta;
+        // E_0 = (M - l_1 I)/(l_0 - l_1) and E_1 = I - E_0
+        projectors[0][0] = (m00 - eigen[1]) / (2 * delta);
+        projectors[0][1] = m01 / (2 * delta);
+        projectors[0][2] = m10 / (2 * delta);
+        projectors[0][3] = (m11 - eigen[1]) / (2 * delta);
+        projectors[1][0] = 1.0 - projectors[0][0];
+        projectors[1][1] = -projectors[0][1];
+        projectors[1][2] = -projectors[0][2];
+        projectors[1][3] = 1.0 - projectors[0][3];
+        return true;
+    }
+
+    private static double [] multiply(double [] x, double [] y) {
+        return new double[] {
+                x[0] * y[0] + x[1] * y[2], x[0] * y[1] + x[1] * y[3],
+                x[2] * y[0] + x[3] * y[2], x[2] * y[1] + x[3] * y[3]};
+    }
+
     @Override
     public void setupRateMatrix() {
         setupUnnormalizedQMatrix();
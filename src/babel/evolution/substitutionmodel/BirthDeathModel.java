@@ -1,5 +1,7 @@
 package babel.evolution.substitutionmodel;
 
+import java.util.Arrays;
+
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Function;
@@ -16,10 +18,13 @@ import beast.base.evolution.tree.Node;
 
 @Description("Pseudo Dollo substitution model")
 @Citation(value="R.Bouckaert, M. Robbeets. Pseudo Dollo models for the evolution of binary characters along a tree. BIORXIV/2017/207571", DOI="https://doi.org/10.1101/207571")
-public class BirthDeathModel extends GeneralSubstitutionModel {
+public class BirthDeathModel extends GeneralSubstitutionModel implements CachesEigenDecompositions {
 	//public Input<RealParameter> birthRateInput = new Input<RealParameter>("birthrate","rate at which cognates are created", Validate.REQUIRED);
     public Input<RealParameter> delParameter = new Input<RealParameter>("deathprob", "rate of death, used to calculate death probability", Validate.REQUIRED);
 
+    /** decompositions of recently seen rate matrices, so restoring a death rate is cheap **/
+    protected EigenDecompositionCache eigenDecompositionCache = new EigenDecompositionCache();
+
 	
     public BirthDeathModel() {
     	ratesInput.setRule(Validate.OPTIONAL);
@@ -110,18 +115,126 @@ public class BirthDeathModel extends GeneralSubstitutionModel {
 			          
 			*/
 
+	/** entries of the normalised rate matrix between states 0 and 1, and whether they need updating **/
+	private double m00, m01, m10, m11;
+	private boolean updateBlock = true;
+	private boolean hasBlockStructure;
+
+	/**
+	 * Closed form of the transition probabilities the java likelihood core always used for
+	 * this model, those of GeneralSubstitutionModel: the exponential of the frequency
+	 * weighted and normalised matrix M built from setupRelativeRates(), with absolute values
+	 * taken of its entries. Note that M differs from getRateMatrix(), which
+	 * getEigenDecomposition() (and hence BEAGLE) uses.
+	 *
+	 * In M, states 2 (and 3) are absorbing and state 3 is never entered, so with B the 2x2
+	 * block of states 0 and 1,
+	 *   exp(Mt) = ( exp(Bt) | 1 - row sums of exp(Bt) | 0
+	 *               0       | 1                        | 0
+	 *               0       | 0                        | 1 )
+	 * and exp(Bt) = exp(mt)(c I + s (B - mI)) with m the mean of the diagonal of B, and
+	 * c = cosh(dt), s = sinh(dt)/d for d^2 = (B00-B11)^2/4 + B01 B10 >= 0, or cos and sin
+	 * of |d|t when B has complex eigenvalues. Falls back to the eigen system when M does
+	 * not have this structure, e.g. when it cannot be normalised.
+	 */
+	@Override
+	public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+		synchronized (this) {
+			if (updateBlock) {
+				hasBlockStructure = setupBlock();
+				updateBlock = false;
+			}
+		}
+		double t = (startTime - endTime) * rate;
+		if (!hasBlockStructure || !(t >= 0) || Double.isInfinite(t)) {
+			super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+			return;
+		}
+
+		double m = (m00 + m11) / 2.0;
+		double d2 = (m00 - m11) * (m00 - m11) / 4.0 + m01 * m10;
+		// c and s, both multiplied by exp(mt)
+		double c, s;
+		if (d2 >= 0) {
+			double d = Math.sqrt(d2);
+			if (d * t < 1.0) {
+				double e = Math.exp(m * t);
+				c = e * Math.cosh(d * t);
+				s = e * (d == 0 ? t : Math.sinh(d * t) / d);
+			} else {
+				// avoid overflow of cosh and sinh when m + d is small but d t is not
+				double e1 = Math.exp((m + d) * t);
+				double e2 = Math.exp((m - d) * t);
+				c = (e1 + e2) / 2.0;
+				s = (e1 - e2) / (2.0 * d);
+			}
+		} else {
+			double w = Math.sqrt(-d2);
+			double e = Math.exp(m * t);
+			c = e * Math.cos(w * t);
+			s = e * Math.sin(w * t) / w;
+		}
+		double p00 = c + s * (m00 - m);
+		double p01 = s * m01;
+		double p10 = s * m10;
+		double p11 = c + s * (m11 - m);
+
+		int n = nrOfStates;
+		Arrays.fill(matrix, 0, n * n, 0.0);
+		matrix[0] = Math.abs(p00);
+		matrix[1] = Math.abs(p01);
+		matrix[2] = Math.abs(1.0 - p00 - p01);
+		matrix[n] = Math.abs(p10);
+		matrix[n + 1] = Math.abs(p11);
+		matrix[n + 2] = Math.abs(1.0 - p10 - p11);
+		for (int i = 2; i < n; i++) {
+			matrix[i * n + i] = 1.0;
+		}
+	}
+
+	/**
+	 * set up the normalised rate matrix as GeneralSubstitutionModel does, and store the
+	 * block of states 0 and 1
+	 * @return whether the matrix has the structure the closed form relies on
+	 */
+	private boolean setupBlock() {
+		int n = nrOfStates;
+		if (n != 3 && n != 4) {
+			return false;
+		}
+		setupRelativeRates();
+		setupRateMatrix();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				if (!Double.isFinite(rateMatrix[i][j]) || ((i >= 2 || j == 3) && rateMatrix[i][j] != 0)) {
+					return false;
+				}
+			}
+		}
+		m00 = rateMatrix[0][0];
+		m01 = rateMatrix[0][1];
+		m10 = rateMatrix[1][0];
+		m11 = rateMatrix[1][1];
+		return true;
+	}
+
 	@Override
 	public EigenDecomposition getEigenDecomposition(Node node) {
         synchronized (this) {
             if (updateMatrix) {
             	double [][] rateMatrix = getRateMatrix();
 
-                eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+                eigenDecomposition = eigenDecompositionCache.getEigenDecomposition(rateMatrix, eigenSystem);
                 updateMatrix = false;
             }
         }
         return eigenDecomposition;
     }
+
+	@Override
+	public EigenDecompositionCache getEigenDecompositionCache() {
+		return eigenDecompositionCache;
+	}
     
 	public void setupRelativeRates() {
     	double del = delParameter.get().getValue();
@@ -236,6 +349,7 @@ public class BirthDeathModel extends GeneralSubstitutionModel {
 	@Override
 	public void restore() {
 		updateMatrix = true;
+		updateBlock = true;
 		super.restore();
 	}
 	
@@ -243,6 +357,7 @@ public class BirthDeathModel extends GeneralSubstitutionModel {
     protected boolean requiresRecalculation() {
         // we only get here if delParameter or mutationRate is dirty
     	updateMatrix = true;
+    	updateBlock = true;
         return true;
     }
     
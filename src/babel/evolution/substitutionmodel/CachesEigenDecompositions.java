@@ -0,0 +1,8 @@
+package babel.evolution.substitutionmodel;
+
+/** substitution model that keeps recently calculated eigen decompositions of its rate matrix **/
+public interface CachesEigenDecompositions {
+
+	EigenDecompositionCache getEigenDecompositionCache();
+
+}
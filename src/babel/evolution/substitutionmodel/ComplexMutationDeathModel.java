@@ -12,7 +12,7 @@ import beast.base.evolution.substitutionmodel.SubstitutionModel.Base;
 import beast.base.evolution.tree.Node;
 
 @Description("Mutation Death substitution model, can be used as Stochastic Dollo model.")
-public class ComplexMutationDeathModel extends ComplexSubstitutionModel {
+public class ComplexMutationDeathModel extends ComplexSubstitutionModel implements BatchedSubstitutionModel {
 
     final public Input<RealParameter> delParameter = new Input<>("deathprob", "rate of death, used to calculate death probability", Validate.REQUIRED);
     // mutation rate is already provided in SiteModel, so no need to duplicate it here
@@ -25,6 +25,10 @@ public class ComplexMutationDeathModel extends ComplexSubstitutionModel {
      * transition matrix for live states *
      */
     protected double[] trMatrix;
+    /**
+     * transition matrices for live states of all branches and categories, when batched *
+     */
+    protected double[] trMatrices;
     /**
      * number of states *
      */
@@ -62,39 +66,87 @@ public class ComplexMutationDeathModel extends ComplexSubstitutionModel {
     @Override
     public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
         double distance = (startTime - endTime) * rate;
-        int i, j;
         // assuming that expected number of changes in CTMCModel is 1 per unit time
         // we are contributing s*deathRate number of changes per unit of time
         double deathProb = Math.exp(-distance * delParameter.get().getValue());
+        double mutationR = getMutationRateFactor();
+        SubstitutionModel.Base CTMCModel = CTMCModelInput.get();
+        if (CTMCModel != null) {
+            CTMCModel.getTransitionProbabilities(node, startTime, endTime, mutationR * rate, trMatrix);
+        //} else {
+        //    trMatrix[0] = 1.0;
+        }
+        setMatrix(trMatrix, 0, deathProb, matrix, 0);
+    } // getTransitionProbabilities
+
+    @Override
+    public void getTransitionProbabilities(double[] branchLengths, int branchCount, double[] rates, double[] matrices) {
+        double deathRate = delParameter.get().getValue();
+        double mutationR = getMutationRateFactor();
+        SubstitutionModel.Base CTMCModel = CTMCModelInput.get();
+        final int liveSize = (nrOfStates - 1) * (nrOfStates - 1);
+
+        // get matrices of the live states in one go if the CTMC model supports it
+        boolean batched = CTMCModel instanceof BatchedSubstitutionModel;
+        if (batched) {
+            double[] liveRates = new double[rates.length];
+            for (int c = 0; c < rates.length; c++) {
+                liveRates[c] = mutationR * rates[c];
+            }
+            int size = branchCount * rates.length * liveSize;
+            if (trMatrices == null || trMatrices.length < size) {
+                trMatrices = new double[size];
+            }
+            ((BatchedSubstitutionModel) CTMCModel).getTransitionProbabilities(branchLengths, branchCount, liveRates, trMatrices);
+        }
+
+        int k = 0;
+        for (int b = 0; b < branchCount; b++) {
+            for (int c = 0; c < rates.length; c++) {
+                double distance = branchLengths[b] * rates[c];
+                double deathProb = Math.exp(-distance * deathRate);
+                if (batched) {
+                    setMatrix(trMatrices, k * liveSize, deathProb, matrices, k * nrOfStates * nrOfStates);
+                } else {
+                    if (CTMCModel != null) {
+                        CTMCModel.getTransitionProbabilities(null, distance, 0.0, mutationR, trMatrix);
+                    }
+                    setMatrix(trMatrix, 0, deathProb, matrices, k * nrOfStates * nrOfStates);
+                }
+                k++;
+            }
+        }
+    }
+
+    private double getMutationRateFactor() {
         double mutationR = 2;
 //        if (mutationRate.get() != null) {
 //            mutationR *= mutationRate.get().getValue();
 //        }
         double freqs[] = getFrequencies();
 
-        for (i = 0; i < freqs.length - 1; ++i) {
+        for (int i = 0; i < freqs.length - 1; ++i) {
             mutationR *= freqs[i];
         }
-        SubstitutionModel.Base CTMCModel = CTMCModelInput.get();
-        if (CTMCModel != null) {
-            CTMCModel.getTransitionProbabilities(node, startTime, endTime, mutationR * rate, trMatrix);
-        //} else {
-        //    trMatrix[0] = 1.0;
-        }
+        return mutationR;
+    }
 
+    /** transition matrix from that of the live states at trOffset in tr, written at offset in matrix **/
+    private void setMatrix(double[] tr, int trOffset, double deathProb, double[] matrix, int offset) {
+        int i, j;
         for (i = 0; i < nrOfStates - 1; ++i) {
             for (j = 0; j < nrOfStates - 1; j++) {
-                matrix[i * (nrOfStates) + j] = trMatrix[i * (nrOfStates - 1) + j] * deathProb;
+                matrix[offset + i * (nrOfStates) + j] = tr[trOffset + i * (nrOfStates - 1) + j] * deathProb;
             }
-            matrix[i * (nrOfStates) + j] = (1.0 - deathProb);
+            matrix[offset + i * (nrOfStates) + j] = (1.0 - deathProb);
         }
 
         for (j = 0; j < nrOfStates - 1; ++j) {
-            matrix[nrOfStates * (nrOfStates - 1) + j] = 0.0;
+            matrix[offset + nrOfStates * (nrOfStates - 1) + j] = 0.0;
         }
 
-        matrix[nrOfStates * nrOfStates - 1] = 1.0;
-    } // getTransitionProbabilities
+        matrix[offset + nrOfStates * nrOfStates - 1] = 1.0;
+    }
 
     /**
      * CalculationNode implementation *
@@ -0,0 +1,116 @@
+package babel.evolution.substitutionmodel;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.EigenSystem;
+
+/**
+ * Least recently used cache of eigen decompositions, keyed on the exact values of the
+ * rate matrix, which is determined by the rate and frequency parameters of a model.
+ * Restoring after a rejected proposal usually returns to a rate matrix that was seen
+ * shortly before, and a proposal bouncing between a few values of a parameter produces
+ * only a few distinct rate matrices, so their decompositions need not be recalculated.
+ */
+public class EigenDecompositionCache {
+	public final static int DEFAULT_CAPACITY = 8;
+
+	private final Map<Key, EigenDecomposition> cache;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	public EigenDecompositionCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public EigenDecompositionCache(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity should be at least 1");
+		}
+		cache = new LinkedHashMap<Key, EigenDecomposition>(2 * capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, EigenDecomposition> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return eigen decomposition of rateMatrix, taken from the cache if the same rate matrix
+	 * was decomposed recently, otherwise calculated by eigenSystem.
+	 * The decomposition is shared, so should not be modified.
+	 */
+	public synchronized EigenDecomposition getEigenDecomposition(double[][] rateMatrix, EigenSystem eigenSystem) {
+		// create the key before decomposing, in case the eigen system changes the matrix
+		Key key = new Key(rateMatrix);
+		EigenDecomposition eigenDecomposition = cache.get(key);
+		if (eigenDecomposition != null) {
+			hitCount++;
+			return eigenDecomposition;
+		}
+		missCount++;
+		eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+		if (eigenDecomposition != null) {
+			cache.put(key, eigenDecomposition);
+		}
+		return eigenDecomposition;
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/** fraction of requests answered from the cache **/
+	public synchronized double getHitRate() {
+		long requests = hitCount + missCount;
+		return requests == 0 ? 0 : (double) hitCount / requests;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "eigen decomposition cache: " + hitCount + " hits, " + missCount + " misses (hit rate " + getHitRate() + ")";
+	}
+
+	/** rate matrix entries compared bit by bit, so only identical matrices share a decomposition **/
+	private static class Key {
+		final long[] bits;
+		final int hash;
+
+		Key(double[][] matrix) {
+			int size = 0;
+			for (double[] row : matrix) {
+				size += row.length;
+			}
+			bits = new long[size];
+			int k = 0;
+			for (double[] row : matrix) {
+				for (double x : row) {
+					bits[k++] = Double.doubleToLongBits(x);
+				}
+			}
+			hash = Arrays.hashCode(bits);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && hash == ((Key) o).hash && Arrays.equals(bits, ((Key) o).bits);
+		}
+	}
+}
@@ -3,17 +3,22 @@ package babel.evolution.substitutionmodel;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.evolution.tree.Node;
 
 /**
  * @author Luke Maurits
  */
 @Description("A simple subclass of GeneralSubstitutionModel which does not require a rates input and does require a number of states input.")
-public class NStatesNoRatesSubstitutionModel extends GeneralSubstitutionModel {
+public class NStatesNoRatesSubstitutionModel extends GeneralSubstitutionModel implements BatchedSubstitutionModel, CachesEigenDecompositions {
 
     // Number of states input is required
     public Input<Integer> nrOfStatesInput = new Input<Integer>("stateNumber", "the number of character states", Validate.REQUIRED);
 
+    // decompositions of recently seen rate matrices, so restoring rates or frequencies is cheap
+    protected EigenDecompositionCache eigenDecompositionCache = new EigenDecompositionCache();
+
     public NStatesNoRatesSubstitutionModel() {
     	// Rates input is *not* required
         ratesInput.setRule(Validate.OPTIONAL);
@@ -42,4 +47,72 @@ public class NStatesNoRatesSubstitutionModel extends GeneralSubstitutionModel {
 	relativeRates = new double[nrOfStates * (nrOfStates - 1)];
 	storedRelativeRates = new double[nrOfStates * (nrOfStates - 1)];
     }
+
+    @Override
+    // Same as the parent implementation, but looking up recently seen rate matrices in the cache.
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        synchronized (this) {
+            if (updateMatrix) {
+                setupRelativeRates();
+                setupRateMatrix();
+                eigenDecomposition = eigenDecompositionCache.getEigenDecomposition(rateMatrix, eigenSystem);
+                updateMatrix = false;
+            }
+        }
+        return eigenDecomposition;
+    }
+
+    @Override
+    // The parent implementation decomposes the rate matrix itself when it is out of date,
+    // bypassing the cache, so bring the decomposition up to date through the cache first.
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        getEigenDecomposition(node);
+        super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+    }
+
+    @Override
+    public EigenDecompositionCache getEigenDecompositionCache() {
+        return eigenDecompositionCache;
+    }
+
+    @Override
+    // Same as the per branch calculation P(t) = S.exp(Jt).S^(-1), but with the eigen
+    // decomposition obtained once for all matrices. Rows are accumulated as
+    // row_i += (S[i][k] exp(l_k t)) * S^(-1)[k], a loop over contiguous arrays without
+    // branches that the JIT compiler can vectorise.
+    public void getTransitionProbabilities(double[] branchLengths, int branchCount, double[] rates, double[] matrices) {
+        EigenDecomposition eigenDecomposition = getEigenDecomposition(null);
+        double[] evec = eigenDecomposition.getEigenVectors();
+        double[] ievc = eigenDecomposition.getInverseEigenVectors();
+        double[] eval = eigenDecomposition.getEigenValues();
+        final int n = nrOfStates;
+        double[] expEval = new double[n];
+
+        int offset = 0;
+        for (int b = 0; b < branchCount; b++) {
+            for (int c = 0; c < rates.length; c++) {
+                double distance = branchLengths[b] * rates[c];
+                for (int k = 0; k < n; k++) {
+                    expEval[k] = Math.exp(distance * eval[k]);
+                }
+                for (int i = 0; i < n; i++) {
+                    final int row = offset + i * n;
+                    for (int j = 0; j < n; j++) {
+                        matrices[row + j] = 0.0;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        final double w = evec[i * n + k] * expEval[k];
+                        final int inverseRow = k * n;
+                        for (int j = 0; j < n; j++) {
+                            matrices[row + j] += w * ievc[inverseRow + j];
+                        }
+                    }
+                    for (int j = 0; j < n; j++) {
+                        matrices[row + j] = Math.abs(matrices[row + j]);
+                    }
+                }
+                offset += n * n;
+            }
+        }
+    }
 }
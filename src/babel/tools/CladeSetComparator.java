@@ -9,6 +9,7 @@ import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -22,9 +23,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
+import babel.tools.utils.CladeTable;
+import babel.tools.utils.CompactTree;
+import babel.tools.utils.HeightSketch;
 import babel.tools.utils.MemoryFriendlyTreeSet;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
@@ -36,7 +44,6 @@ import beast.base.core.Log;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
-import beast.base.util.FrequencySet;
 import beast.base.util.Randomizer;
 
 @Description("Match clades from two tree sets and print support for both sets so "
@@ -57,8 +64,10 @@ public class CladeSetComparator extends Runnable {
 
 	final public Input<Boolean> verboseInput = new Input<>("verbose", "print information about clades of interest, and if no output file is specified, all clade information", true);
 	final public Input<Double> thresholdInput = new Input<>("threshold", "posterior support level of clades that will be ignored", 0.0);
+	final public Input<Integer> heightAccuracyInput = new Input<>("heightAccuracy", "number of heights per clade kept exactly. "
+			+ "Beyond that, 95% HPD bounds of clade heights are estimated in bounded memory, and larger values are more accurate", HeightSketch.DEFAULT_SIZE);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for counting clades. Ignored if 1 or less", -1);
 
-	private double n;
 	private boolean verbose;
 	private double threshold = 0;
 	
@@ -107,10 +116,6 @@ public class CladeSetComparator extends Runnable {
 
 	
 	double maxHeight = 0.0;
-	int problemCount = 0;
-	int interestCount = 0;
-	int inconsistentHeightIntervals = 0;
-	double meanHeightsDifference = 0;
 
 	
 	@Override
@@ -118,11 +123,12 @@ public class CladeSetComparator extends Runnable {
 		verbose = verboseInput.get();
 		threshold = thresholdInput.get();
 		long start = System.currentTimeMillis();
+		int threads = threadsInput.get();
 		if (srcInput.get().size()  == 0) {
-			CladeSetWithHeights cladeSet1 = getCladeSet(src1Input.get().getPath());
-			double n1 = n;
-			CladeSetWithHeights cladeSet2 = getCladeSet(src2Input.get().getPath());
-			double n2 = n;
+			CladeSetWithHeights cladeSet1 = getCladeSet(src1Input.get().getPath(), threads);
+			double n1 = cladeSet1.getTreeCount();
+			CladeSetWithHeights cladeSet2 = getCladeSet(src2Input.get().getPath(), threads);
+			double n2 = cladeSet2.getTreeCount();
 			process(src1Input.get(), src2Input.get(), "", cladeSet1, n1, cladeSet2, n2);
 			return;
 		}
@@ -134,14 +140,18 @@ public class CladeSetComparator extends Runnable {
 		int n = srcInput.get().size();
 		CladeSetWithHeights [] cladeSets = new CladeSetWithHeights[n];
 		double [] count = new double[n];
-		for (int i = 0; i < n; i++) {
-			cladeSets[i] = getCladeSet(srcInput.get().get(i).getPath());
-			count[i] = this.n;
-		}		
-		for (int i = 0; i < n; i++) {
-			for (int j = i+1; j < n; j++) {
-				process(srcInput.get().get(i), srcInput.get().get(j), n > 2 ? i+"-"+j : "", cladeSets[i], count[i], cladeSets[j], count[j]);				
-			}			
+		if (threads > 1) {
+			processConcurrently(cladeSets, count, threads);
+		} else {
+			for (int i = 0; i < n; i++) {
+				cladeSets[i] = getCladeSet(srcInput.get().get(i).getPath(), threads);
+				count[i] = cladeSets[i].getTreeCount();
+			}		
+			for (int i = 0; i < n; i++) {
+				for (int j = i+1; j < n; j++) {
+					process(srcInput.get().get(i), srcInput.get().get(j), n > 2 ? i+"-"+j : "", cladeSets[i], count[i], cladeSets[j], count[j]);				
+				}			
+			}
 		}
 		
 		if (pngOutputInput.get() != null && 
@@ -180,15 +190,86 @@ public class CladeSetComparator extends Runnable {
 		System.err.println("All done in " + (end - start)/1000 + " seconds");
 	}
 	
+	/**
+	 * load clade sets of all tree files, then compare all pairs, using a thread pool for both.
+	 * Output that would go to stdout is buffered per comparison, so output of different
+	 * comparisons does not get mixed up.
+	 */
+	private void processConcurrently(CladeSetWithHeights [] cladeSets, double [] count, int threads) throws Exception {
+		int n = cladeSets.length;
+		ExecutorService exec = Executors.newFixedThreadPool(Math.min(threads, Math.max(n, n * (n - 1) / 2)));
+		try {
+			// threads left over when there are fewer files than threads are used for counting clades within files
+			final int countingThreads = Math.max(1, threads / n);
+			List<Future<CladeSetWithHeights>> loaded = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				final String path = srcInput.get().get(i).getPath();
+				loaded.add(exec.submit(() -> getCladeSet(path, countingThreads)));
+			}
+			for (int i = 0; i < n; i++) {
+				cladeSets[i] = get(loaded.get(i));
+				count[i] = cladeSets[i].getTreeCount();
+			}
+
+			List<Future<ByteArrayOutputStream>> comparisons = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				for (int j = i+1; j < n; j++) {
+					final int i_ = i, j_ = j;
+					comparisons.add(exec.submit(() -> {
+						ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+						PrintStream stdout = new PrintStream(buffer);
+						process(srcInput.get().get(i_), srcInput.get().get(j_), n > 2 ? i_+"-"+j_ : "", 
+								cladeSets[i_], count[i_], cladeSets[j_], count[j_], stdout);
+						stdout.close();
+						return buffer;
+					}));
+				}
+			}
+			// print in the same order as sequential processing would
+			for (Future<ByteArrayOutputStream> comparison : comparisons) {
+				get(comparison).writeTo(System.out);
+			}
+			System.out.flush();
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** result of a task, rethrowing the exception the task failed with, if any */
+	private <T> T get(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
 	void process(TreeFile tree1, TreeFile tree2, String suffix, 
 			CladeSetWithHeights cladeSet1, double n1,
 			CladeSetWithHeights cladeSet2, double n2
 			)  throws Exception {
-		PrintStream out = System.out;
+		process(tree1, tree2, suffix, cladeSet1, n1, cladeSet2, n2, System.out);
+	}
+
+	/**
+	 * compare clade sets of two tree files
+	 * @param stdout stream for output that does not go to output files
+	 */
+	void process(TreeFile tree1, TreeFile tree2, String suffix, 
+			CladeSetWithHeights cladeSet1, double n1,
+			CladeSetWithHeights cladeSet2, double n2,
+			PrintStream stdout
+			)  throws Exception {
+		ComparisonStats stats = new ComparisonStats();
+		PrintStream out = stdout;
 		if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
 			String str = normalise(outputInput.get().getPath(), suffix);			
 			Log.warning("Writing to file " + str);
 			out = new PrintStream(str);
+			stats.toFile = true;
 		}
 		PrintStream svg = null;
 		if (svgOutputInput.get() != null && !svgOutputInput.get().getName().equals("[[none]]")) {
@@ -218,10 +299,9 @@ public class CladeSetComparator extends Runnable {
 		Map<String, Double> cladeHeightMap = new LinkedHashMap<>();
 		for (int i = 0; i < cladeSet1.getCladeCount(); i++) {
 			String clade = cladeSet1.getClade(i);
-			BitSet bitset = cladeSet1.get(i);
 			int support = cladeSet1.getFrequency(i);
 			if (cladeSet1 instanceof SummaryCladeSetWithHeights) {
-				cladeMap.put(clade, ((SummaryCladeSetWithHeights)cladeSet1).posteriors.get(bitset));
+				cladeMap.put(clade, ((SummaryCladeSetWithHeights)cladeSet1).getPosterior(i));
 			} else {
 				cladeMap.put(clade, support/ n1);
 			}
@@ -233,10 +313,6 @@ public class CladeSetComparator extends Runnable {
 		double maxDiff = 0, meanDiff=0, meanDiff2=0;
 		int meanDiffCount = 0, meanDiff2Count = 0;
 		double [] hist = new double[40];
-		problemCount = 0;
-		interestCount = 0;
-		meanHeightsDifference = 0;
-		inconsistentHeightIntervals = 0;
 		
 		double clade1ThresholdSupport = getThresholdSupport(cladeSet1, n1);
 		double clade2ThresholdSupport = getThresholdSupport(cladeSet2, n2);
@@ -245,8 +321,7 @@ public class CladeSetComparator extends Runnable {
 			String clade = cladeSet2.getClade(i);			
 			double support2; 
 			if (cladeSet2 instanceof SummaryCladeSetWithHeights) {
-				BitSet bitset = cladeSet2.get(i);
-				support2 = ((SummaryCladeSetWithHeights)cladeSet2).posteriors.get(bitset);
+				support2 = ((SummaryCladeSetWithHeights)cladeSet2).getPosterior(i);
 			} else {
 				int support = cladeSet2.getFrequency(i);
 				support2 = support/n2;	
@@ -255,28 +330,26 @@ public class CladeSetComparator extends Runnable {
 			if (cladeMap.containsKey(clade)) {
 				// clade is also in set1
 				double h1 = cladeHeightMap.get(clade);
-				double [] heights1 = cladeSet1.nodeHeights.get(cladeSet1.get(cladeToIndexMap.get(clade)));
-				Arrays.sort(heights1);
-				double lo1 = heights1[(int)(heights1.length * 0.025)];
-				double hi1 = heights1[(int)(heights1.length * 0.975)];
+				HeightSketch heights1 = cladeSet1.getNodeHeights(cladeToIndexMap.get(clade));
+				double lo1 = heights1.quantile(0.025);
+				double hi1 = heights1.quantile(0.975);
 				
-				double [] heights2 = cladeSet2.nodeHeights.get(cladeSet2.get(i));
-				Arrays.sort(heights2);
-				double lo2 = heights2[(int)(heights2.length * 0.025)];
-				double hi2 = heights2[(int)(heights2.length * 0.975)];
+				HeightSketch heights2 = cladeSet2.getNodeHeights(i);
+				double lo2 = heights2.quantile(0.025);
+				double hi2 = heights2.quantile(0.975);
 				
 				double support1 = cladeMap.get(clade);
 				output(out, svg, clade,support1, support2, g, h1, h2, 
-						lo1, lo2, hi1, hi2);
+						lo1, lo2, hi1, hi2, stats);
 				// System.out.println((h1 - h2) + " " + (100 * (h1 - h2) / h1));
 				
 				maxDiff = Math.max(maxDiff, Math.abs(cladeMap.get(clade) - support2));
 				if (support1 > 0.01 && support2 > 0.01) {
 					meanDiff += Math.abs(cladeMap.get(clade) - support2);
-					meanHeightsDifference += Math.abs(hi1-hi2)/(h1+h2)/2.0;
+					stats.meanHeightsDifference += Math.abs(hi1-hi2)/(h1+h2)/2.0;
 					meanDiffCount++;
 					if (lo1 > hi2 || lo2 > hi1) {
-						inconsistentHeightIntervals++;
+						stats.inconsistentHeightIntervals++;
 						System.err.println("Inconsistent clade height found for clade"  + clade.replaceAll(" ", ""));
 					}
 				}
@@ -304,7 +377,7 @@ public class CladeSetComparator extends Runnable {
 				}
 			} else {
 				// clade is not in set1
-				output(out, svg, clade, 0.0, support2, g, 0, h2, 0, h2, 0, h2);
+				output(out, svg, clade, 0.0, support2, g, 0, h2, 0, h2, 0, h2, stats);
 				maxDiff = Math.max(maxDiff, support2);
 				if (support2> 0.01) {
 					meanDiff += support2;
@@ -320,7 +393,7 @@ public class CladeSetComparator extends Runnable {
 		// process left-overs of clades in set1 that are not in set2 
 		for (String clade : cladeMap.keySet()) {
 			double h1 = cladeHeightMap.get(clade);
-			output(out, svg, clade, cladeMap.get(clade), 0.0, g, h1, 0.0, h1, 0, h1, 0);
+			output(out, svg, clade, cladeMap.get(clade), 0.0, g, h1, 0.0, h1, 0, h1, 0, stats);
 			double s = cladeMap.get(clade);
 			maxDiff = Math.max(maxDiff, s);
 			if (s> 0.01) {
@@ -341,8 +414,8 @@ public class CladeSetComparator extends Runnable {
 			svg.println("<text x='110' y='25'>Max difference in clade support: " + formatter.format(maxDiff * 100)+ "%</text>");
 			svg.println("<text x='110' y='45'>Mean difference in clade support (when sum over 1%): " + formatter.format(meanDiff/meanDiffCount * 100)+ "%</text>");
 			svg.println("<text x='110' y='65'>" + measure3String + formatter.format(sqrtMeanSumSquared)+ "%</text>");
-			svg.println("<text x='110' y='85'>" + interestCount + " clades >25% difference "+ problemCount + " problematic</text>");
-			svg.println("<text x='110' y='105'>" + inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*meanHeightsDifference/meanDiffCount) + " average % mean height diff</text>");
+			svg.println("<text x='110' y='85'>" + stats.interestCount + " clades >25% difference "+ stats.problemCount + " problematic</text>");
+			svg.println("<text x='110' y='105'>" + stats.inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*stats.meanHeightsDifference/meanDiffCount) + " average % mean height diff</text>");
 			svg.println(footer);
 		}
 		if (bi != null) {
@@ -363,19 +436,20 @@ public class CladeSetComparator extends Runnable {
 			g.drawString("Max difference in clade support: " + formatter.format(maxDiff * 100)+ "%", 510, 15);
 			g.drawString("Mean difference in clade support (when sum over 1%): " + formatter.format(meanDiff/meanDiffCount * 100)+ "%", 510, 35);
 			g.drawString(measure3String + formatter.format(sqrtMeanSumSquared)+ "%", 510, 55);
-			g.drawString(interestCount + " clades >25% difference "+ problemCount + " problematic", 510, 75);
-			g.drawString(inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*meanHeightsDifference/meanDiffCount) + " average % mean height diff", 510, 95);
+			g.drawString(stats.interestCount + " clades >25% difference "+ stats.problemCount + " problematic", 510, 75);
+			g.drawString(stats.inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*stats.meanHeightsDifference/meanDiffCount) + " average % mean height diff", 510, 95);
 
 			String str = normalise(pngOutputInput.get().getPath(), suffix);
 			Log.warning("Writing to file " + str);
 			ImageIO.write(bi, "png", new File(str));
 		}
-		Log.info("Maximum difference in clade support: " + maxDiff);
-		Log.info("Mean difference in clade support (when sum over 1%): " + meanDiff/meanDiffCount);
-		Log.info(measure3String + sqrtMeanSumSquared);
-		Log.info(interestCount + " clades >25% difference "+ problemCount + " problematic");
-		Log.info(inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*meanHeightsDifference/meanDiffCount) + " average % mean height diff");
-		Log.info.println("Done");
+		PrintStream info = stdout == System.out ? Log.info : stdout;
+		info.println("Maximum difference in clade support: " + maxDiff);
+		info.println("Mean difference in clade support (when sum over 1%): " + meanDiff/meanDiffCount);
+		info.println(measure3String + sqrtMeanSumSquared);
+		info.println(stats.interestCount + " clades >25% difference "+ stats.problemCount + " problematic");
+		info.println(stats.inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*stats.meanHeightsDifference/meanDiffCount) + " average % mean height diff");
+		info.println("Done");
 	}
 
 	private double getThresholdSupport(CladeSetWithHeights cladeSet, double totalCount) {
@@ -391,8 +465,7 @@ public class CladeSetComparator extends Runnable {
 	private double getSupport(CladeSetWithHeights cladeSet, int cladeIndex, double totalCount) {
 		double support = 0.0;
 		if (cladeSet instanceof SummaryCladeSetWithHeights) {
-			BitSet bitset = cladeSet.get(cladeIndex);
-			support = ((SummaryCladeSetWithHeights)cladeSet).posteriors.get(bitset);
+			support = ((SummaryCladeSetWithHeights)cladeSet).getPosterior(cladeIndex);
 		} else {
 			support = cladeSet.getFrequency(cladeIndex) / totalCount;
 		}
@@ -451,8 +524,8 @@ public class CladeSetComparator extends Runnable {
 	}
 
 	private void output(PrintStream out, PrintStream svg, String clade, Double support1, double support2, Graphics2D g, double h1, double h2,
-			double lo1, double lo2, double hi1, double hi2) {
-		if (verbose || System.out != out) {
+			double lo1, double lo2, double hi1, double hi2, ComparisonStats stats) {
+		if (verbose || stats.toFile) {
 			out.println(clade.replaceAll(" ", "") + " " + support1 + " " + support2);
 		}
 //		if ((support1 < 0.1 && support2 > 0.9) ||
@@ -461,14 +534,14 @@ public class CladeSetComparator extends Runnable {
 			if (verbose) {
 				Log.warning("Problem clade: " + clade.replaceAll(" ", "") + " " + support1 + " " + support2);
 			}
-			problemCount++;
+			stats.problemCount++;
 		}
 		
 		if (Math.abs(support1 - support2) > 0.25) {
 			if (verbose) {
 				Log.warning("Clade of interest (>25% difference): " + clade.replaceAll(" ", "") + " " + support1 + " " + support2);
 			}
-			interestCount++;
+			stats.interestCount++;
 		}
 
 		if (svg != null && threshold <= support1 + support2) {
@@ -526,37 +599,42 @@ public class CladeSetComparator extends Runnable {
 		}
 	}
 
-	private CladeSetWithHeights getCladeSet(String path) throws IOException {
+	private CladeSetWithHeights getCladeSet(String path, int threads) throws IOException {
 		Log.warning("Processing " + path);
 		MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(path, burnInPercentageInput.get());
 		srcTreeSet.reset();
 		Tree tree = srcTreeSet.next();
 		CladeSetWithHeights cladeSet1 = new CladeSetWithHeights(tree);
-		n = 1;
 		int thin = thinningInput.get();
-		maxHeight = Math.max(maxHeight, tree.getRoot().getHeight());
 
-		while (srcTreeSet.hasNext()) {
-			// System.out.println(n);
-			tree = srcTreeSet.next();
-			cladeSet1.add(tree);
-			n++;
-			
-			maxHeight = Math.max(maxHeight, tree.getRoot().getHeight());
-			int j = 1;
-			while (j < thin && srcTreeSet.hasNext()) {
-				tree = srcTreeSet.next();
-				j++;
-			}
-		}
+		// remaining trees only need topology and heights
+		int n = 1 + cladeSet1.addAll(srcTreeSet, thin, threads);
+		updateMaxHeight(cladeSet1.getRootHeights().getMax());
 		
 		if (n==1) {
 			// might be a summary tree
 			cladeSet1 = new SummaryCladeSetWithHeights(tree);
 		}
+		// sort clades now the set is complete, before comparisons can use it concurrently
+		cladeSet1.updateOrder();
 		return cladeSet1;
 	}
 
+	/** clade sets can be loaded concurrently, and all of them determine the scale of the plots **/
+	private synchronized void updateMaxHeight(double height) {
+		maxHeight = Math.max(maxHeight, height);
+	}
+
+	/** counts of a comparison of two clade sets, kept per comparison so that comparisons can run concurrently **/
+	static class ComparisonStats {
+		int problemCount = 0;
+		int interestCount = 0;
+		int inconsistentHeightIntervals = 0;
+		double meanHeightsDifference = 0;
+		/** whether clade information is written to a file instead of stdout **/
+		boolean toFile = false;
+	}
+
 	public class SummaryCladeSetWithHeights extends CladeSetWithHeights {
 
 		public SummaryCladeSetWithHeights(Tree tree) {
@@ -568,52 +646,35 @@ public class CladeSetComparator extends Runnable {
 	        add(tree);
 	    }
 	    
-	    void addClades(Node node, BitSet bits) {
-
-	        if (node.isLeaf()) {
-	            if (taxonSet != null) {
-	                int index = taxonSet.getTaxonIndex(node.getID());
-	                bits.set(index);
-	            } else {
-	                bits.set(node.getNr());
-	            }
-	        } else {
-
-	            BitSet bits2 = new BitSet();
-	            for (Node child : node.getChildren()) {
-	                addClades(child, bits2);
-	            }
-
-	            add(bits2, 1);
-	            Double [] heightHPD = (Double []) node.getMetaData("height_95%_HPD");
-	            double lo = node.getHeight(), hi = node.getHeight();
-	            if (heightHPD != null) {
-		            lo = heightHPD[0];
-		            hi = heightHPD[1];
-	            }
-	            addNodeHeight(bits2, node.getHeight(), lo, hi); // TODO ?= tree.getNodeHeight(node)
-	            double posterior = 1;
-	            Double posterior_ = (Double) node.getMetaData("posterior");
-	            if (posterior_ != null) {
-	            	posterior = posterior_;
-	            }
-	            posteriors.put(bits2, posterior);
-
-	            if (bits != null) {
-	                bits.or(bits2);
-	            }
+	    @Override
+	    void cladeAdded(int clade, Node node) {
+	        Double [] heightHPD = (Double []) node.getMetaData("height_95%_HPD");
+	        double lo = node.getHeight(), hi = node.getHeight();
+	        if (heightHPD != null) {
+	            lo = heightHPD[0];
+	            hi = heightHPD[1];
 	        }
+	        HeightSketch heights = getSketch(clade);
+	        heights.add(lo);
+	        heights.add(node.getHeight());
+	        heights.add(hi);
+	        double posterior = 1;
+	        Double posterior_ = (Double) node.getMetaData("posterior");
+	        if (posterior_ != null) {
+	        	posterior = posterior_;
+	        }
+	        posteriors.put(clade, posterior);
 	    }
-	    
-	    void addNodeHeight(BitSet bits, double height, double lo, double hi) {
-	        totalNodeHeight.put(bits, (getTotalNodeHeight(bits) + height));
-	        nodeHeights.put(bits, new double[]{lo, height, hi});
+
+	    /** posterior support of clade, ordered as getClade(index) **/
+	    public double getPosterior(int index) {
+	        return posteriors.get(getCladeIndex(index));
 	    }
 
-	    Map<BitSet, Double> posteriors = new HashMap<>();
+	    Map<Integer, Double> posteriors = new HashMap<>();
 	}
 	
-	public class CladeSetWithHeights extends FrequencySet<BitSet> {
+	public class CladeSetWithHeights {
 	    //
 	    // Public stuff
 	    //
@@ -635,10 +696,59 @@ public class CladeSetComparator extends Runnable {
 	        add(tree);
 	    }
 
+	    /** number of trees added to the clade set */
+	    public int getTreeCount() {
+	        return totalTrees;
+	    }
+
 	    /** get number of unique clades */
 	    public int getCladeCount()
 	    {
-	        return size();
+	        return clades == null ? 0 : clades.size();
+	    }
+
+	    /** get clade as bit set, where clades are ordered by decreasing frequency */
+	    public BitSet get(int index) {
+	        return clades.toBitSet(getCladeIndex(index));
+	    }
+
+	    /** get clade frequency, where clades are ordered by decreasing frequency */
+	    public int getFrequency(int index) {
+	        return clades.getFrequency(getCladeIndex(index));
+	    }
+
+	    /** get frequency of clade, or 0 if the clade was not observed */
+	    public int getFrequency(BitSet bits) {
+	        int i = clades.indexOf(clades.toWords(bits));
+	        return i < 0 ? 0 : clades.getFrequency(i);
+	    }
+
+	    /** map index in order of decreasing frequency to index in the clade table */
+	    int getCladeIndex(int index) {
+	        int [] order = this.order;
+	        if (order == null || order.length != getCladeCount()) {
+	            order = updateOrder();
+	        }
+	        return order[index];
+	    }
+
+	    /**
+	     * sort clades by decreasing frequency. The order is only published when complete, so
+	     * comparisons running concurrently on the same clade set never see a partly filled order.
+	     */
+	    int [] updateOrder() {
+	        Integer [] indices = new Integer[getCladeCount()];
+	        for (int i = 0; i < indices.length; i++) {
+	            indices[i] = i;
+	        }
+	        // stable sort, so clades with equal frequency stay in order of first appearance
+	        Arrays.sort(indices, (i1, i2) -> Integer.compare(clades.getFrequency(i2), clades.getFrequency(i1)));
+	        int [] order = new int[indices.length];
+	        for (int i = 0; i < indices.length; i++) {
+	            order[i] = indices[i];
+	        }
+	        this.order = order;
+	        return order;
 	    }
 
 	    /** get clade bit set */
@@ -682,62 +792,190 @@ public class CladeSetComparator extends Runnable {
 	        if (taxonSet == null) {
 	            taxonSet = tree.getTaxonset();
 	        }
+	        if (clades == null) {
+	            clades = new CladeTable(taxonSet != null ? taxonSet.getTaxonCount() : tree.getLeafNodeCount());
+	        }
 
 	        totalTrees += 1;
+	        order = null;
 
 	        // Recurse over the tree and add all the clades (or increment their
 	        // frequency if already present). The root clade is not added.
-	        addClades(tree.getRoot(), null);
+	        addClades(tree.getRoot(), 0);
+	    }
+
+	    /** adds all the clades in a compact tree, which has leafs numbered by taxon index */
+	    public void add(CompactTree tree) {
+	        if (clades == null) {
+	            clades = new CladeTable(tree.getLeafNodeCount());
+	        }
+	        totalTrees += 1;
+	        order = null;
+
+	        if (nodeClades == null || nodeClades.length < tree.getNodeCount()) {
+	            nodeClades = new long[tree.getNodeCount()][clades.getWordCount()];
+	        }
+	        tree.getClades(nodeClades);
+	        for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++) {
+	            double height = tree.getHeight(i);
+	            addNodeHeight(clades.add(nodeClades[i], 1, height), height);
+	        }
+	    }
+
+	    /**
+	     * add remaining trees of a tree set as compact trees, using every thin-th tree after the current one.
+	     * With multiple threads, every thread counts clades of a contiguous block of trees in a clade set
+	     * of its own, and these are merged in order of the blocks, so the result does not depend on the
+	     * number of threads (apart from the approximation of height quantiles).
+	     * @return number of trees added
+	     */
+	    public int addAll(MemoryFriendlyTreeSet treeSet, int thin, int threads) throws IOException {
+	        final int first = treeSet.getPosition();
+	        final int step = Math.max(1, thin);
+	        int count = Math.max(0, (treeSet.getTreeCount() - first + step - 1) / step);
+	        treeSet.skip(treeSet.getTreeCount());
+	        threads = Math.max(1, Math.min(threads, count / MIN_TREES_PER_THREAD));
+	        if (!treeSet.isRandomAccess()) {
+	            // threads reading blocks in turn would keep seeking back in the compressed
+	            // content, which for plain gzip files means inflating from the start each time
+	            threads = 1;
+	        }
+	        if (threads == 1) {
+	            addTrees(treeSet, first, step, count);
+	            return count;
+	        }
+
+	        ExecutorService exec = Executors.newFixedThreadPool(threads);
+	        try {
+	            List<Future<CladeSetWithHeights>> blocks = new ArrayList<>();
+	            for (int k = 0; k < threads; k++) {
+	                final int start = first + (int)((long) count * k / threads) * step;
+	                final int end = (int)((long) count * (k + 1) / threads);
+	                final int size = end - (int)((long) count * k / threads);
+	                blocks.add(exec.submit(() -> {
+	                    CladeSetWithHeights block = new CladeSetWithHeights();
+	                    block.taxonSet = taxonSet;
+	                    // parsers keep state while parsing, so every thread needs its own
+	                    block.addTrees(new MemoryFriendlyTreeSet(treeSet), start, step, size);
+	                    return block;
+	                }));
+	            }
+	            for (Future<CladeSetWithHeights> block : blocks) {
+	                merge(block.get());
+	            }
+	        } catch (InterruptedException e) {
+	            throw new IOException(e);
+	        } catch (ExecutionException e) {
+	            throw new IOException("Could not count clades: " + e.getCause().getMessage(), e.getCause());
+	        } finally {
+	            exec.shutdownNow();
+	        }
+	        return count;
+	    }
+
+	    /** add count trees from a tree set, starting at tree first and taking every step-th tree */
+	    private void addTrees(MemoryFriendlyTreeSet treeSet, int first, int step, int count) throws IOException {
+	        CompactTree tree = null;
+	        for (int i = 0; i < count; i++) {
+	            tree = treeSet.getCompact(first + i * step, tree);
+	            add(tree);
+	        }
 	    }
 
-	    void addClades(Node node, BitSet bits) {
+	    /** add clades, frequencies and heights of another clade set; clades new to this set are appended in their order in other */
+	    public void merge(CladeSetWithHeights other) {
+	        if (other.clades == null) {
+	            return;
+	        }
+	        if (clades == null) {
+	            // only the number of words matters for the clade table
+	            clades = new CladeTable(other.clades.getWordCount() * 64);
+	        }
+	        totalTrees += other.totalTrees;
+	        order = null;
+	        long [] clade = new long[clades.getWordCount()];
+	        for (int i = 0; i < other.clades.size(); i++) {
+	            other.clades.getClade(i, clade);
+	            int j = clades.add(clade, other.clades.getFrequency(i), other.clades.getTotalHeight(i));
+	            getSketch(j).merge(other.getSketch(i));
+	        }
+	    }
+
+	    /** summary of root heights, i.e. heights of the clade containing all taxa */
+	    public HeightSketch getRootHeights() {
+	        int root = 0, rootSize = clades.cardinality(0);
+	        for (int i = 1; i < clades.size(); i++) {
+	            if (clades.cardinality(i) > rootSize) {
+	                root = i;
+	                rootSize = clades.cardinality(i);
+	            }
+	        }
+	        return getSketch(root);
+	    }
+
+	    /**
+	     * add clades below node, and return the clade of node
+	     * @param depth depth of node in the tree, used to select work space for clade of node
+	     */
+	    long [] addClades(Node node, int depth) {
+	        while (depthClades == null || depthClades.length <= depth) {
+	            depthClades = depthClades == null ? new long[16][] : Arrays.copyOf(depthClades, depthClades.length * 2);
+	        }
+	        if (depthClades[depth] == null) {
+	            depthClades[depth] = new long[clades.getWordCount()];
+	        }
+	        long [] clade = depthClades[depth];
+	        Arrays.fill(clade, 0);
 
 	        if (node.isLeaf()) {
+	            int index;
 	            if (taxonSet != null) {
-	                int index = taxonSet.getTaxonIndex(node.getID());
-	                bits.set(index);
+	                index = taxonSet.getTaxonIndex(node.getID());
 	            } else {
-	                bits.set(node.getNr());
+	                index = node.getNr();
 	            }
+	            clade[index >>> 6] |= 1L << (index & 63);
 	        } else {
-
-	            BitSet bits2 = new BitSet();
 	            for (Node child : node.getChildren()) {
-	                addClades(child, bits2);
-	            }
-
-	            add(bits2, 1);
-	            addNodeHeight(bits2, node.getHeight()); // TODO ?= tree.getNodeHeight(node)
-
-	            if (bits != null) {
-	                bits.or(bits2);
+	                long [] childClade = addClades(child, depth + 1);
+	                for (int k = 0; k < clade.length; k++) {
+	                    clade[k] |= childClade[k];
+	                }
 	            }
+	            cladeAdded(clades.add(clade, 1, node.getHeight()), node); // TODO ?= tree.getNodeHeight(node)
 	        }
+	        return clade;
 	    }
 
-	    public double getMeanNodeHeight(int i) {
-	        BitSet bits = get(i);
+	    /** called when clade is observed at node */
+	    void cladeAdded(int clade, Node node) {
+	        addNodeHeight(clade, node.getHeight());
+	    }
 
-	        return getTotalNodeHeight(bits) / getFrequency(i);
+	    public double getMeanNodeHeight(int i) {
+	        return clades.getMeanHeight(getCladeIndex(i));
 	    }
 
-	    double getTotalNodeHeight(BitSet bits) {
-	        Double tnh = totalNodeHeight.get(bits);
-	        if (tnh == null) return 0.0;
-	        return tnh;
+	    /** summary of observed heights of clade, where clades are ordered by decreasing frequency */
+	    public HeightSketch getNodeHeights(int i) {
+	        return getSketch(getCladeIndex(i));
 	    }
 
-	    private void addNodeHeight(BitSet bits, double height) {
-	        totalNodeHeight.put(bits, (getTotalNodeHeight(bits) + height));
-	        if (!nodeHeights.containsKey(bits)) {
-	        	nodeHeights.put(bits, new double[]{height});
-	        } else {
-	        	double [] heights = nodeHeights.get(bits);
-	        	double [] newHeights = new double[heights.length + 1];
-	        	System.arraycopy(heights, 0, newHeights, 0, heights.length);
-	        	newHeights[heights.length] = height;
-	        	nodeHeights.put(bits, newHeights);
+	    /** height summary of clade, indexed by clade table index, created when needed */
+	    HeightSketch getSketch(int clade) {
+	        if (nodeHeights == null) {
+	            nodeHeights = new HeightSketch[clades.size() * 2 + 16];
+	        } else if (clade >= nodeHeights.length) {
+	            nodeHeights = Arrays.copyOf(nodeHeights, Math.max(clade + 1, nodeHeights.length * 2));
 	        }
+	        if (nodeHeights[clade] == null) {
+	            nodeHeights[clade] = new HeightSketch(heightAccuracyInput.get());
+	        }
+	        return nodeHeights[clade];
+	    }
+
+	    void addNodeHeight(int clade, double height) {
+	        getSketch(clade).add(height);
 	    }
 
 	    // Generifying found that this code was buggy. Luckily it is not used anymore.
@@ -837,9 +1075,17 @@ public class CladeSetComparator extends Runnable {
 	    // Private stuff
 	    //
 	    TaxonSet taxonSet = null;
-	    Map<BitSet, Double> totalNodeHeight = new HashMap<>();
-	    Map<BitSet, double[]> nodeHeights = new HashMap<>();
+	    /** clades with frequencies and total heights **/
+	    CladeTable clades;
+	    /** fewer trees than this per thread are not worth the overhead of starting a thread **/
+	    final static int MIN_TREES_PER_THREAD = 100;
+	    /** streaming summaries of heights of a clade, indexed by clade table index **/
+	    HeightSketch [] nodeHeights;
 	    int totalTrees = 0;
+	    /** order of clades by decreasing frequency, null if it needs updating **/
+	    volatile int [] order;
+	    /** work space for calculating clades of nodes, indexed by node number and depth in the tree respectively **/
+	    private long [][] nodeClades, depthClades;
 	}
 
 	
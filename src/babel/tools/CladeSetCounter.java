@@ -20,6 +20,7 @@ import beast.base.evolution.tree.Tree;
 public class CladeSetCounter extends Runnable {
 	final public Input<List<TreeFile>> srcInput = new Input<>("tree","2 or more source tree (set or MCC tree) files", new ArrayList<>());
 	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for counting clades. Ignored if 1 or less", -1);
 
 	@Override
 	public void initAndValidate() {
@@ -41,11 +42,7 @@ public class CladeSetCounter extends Runnable {
 		srcTreeSet.reset();
 		Tree tree = srcTreeSet.next();
 		CladeSetWithHeights cladeSet1 = new CladeSetComparator().new CladeSetWithHeights(tree);
-		while (srcTreeSet.hasNext()) {
-			// System.out.println(n);
-			tree = srcTreeSet.next();
-			cladeSet1.add(tree);
-		}
+		cladeSet1.addAll(srcTreeSet, 1, threadsInput.get());
 		return cladeSet1.getCladeCount();
 	}
 	
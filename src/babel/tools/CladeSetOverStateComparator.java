@@ -24,10 +24,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
 import beastfx.app.treeannotator.TreeAnnotator;
+import babel.tools.utils.ChainCladeCounts;
+import babel.tools.utils.CompactTree;
 import babel.tools.utils.MemoryFriendlyTreeSet;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
@@ -45,8 +51,17 @@ public class CladeSetOverStateComparator extends Runnable {
 	final public Input<List<TreeFile>> srcInput = new Input<>("tree","2 or more source tree (set or MCC tree) files", new ArrayList<>());
 	final public Input<OutFile> outputInput = new Input<>("out", "output file, or stdout if not specified",
 			new OutFile("[[none]]"));
+	final public Input<Integer> everyInput = new Input<>("every", "number of trees per chain between reported clade frequency differences", 1000);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for parsing trees, with tree files parsed in parallel. Ignored if 1 or less", -1);
+	final public Input<Boolean> followInput = new Input<>("follow", "keep reading trees that are appended to the tree files while MCMC chains are still running, "
+			+ "until a chain closes its trees block, or no trees are added for followTimeout seconds. "
+			+ "Newick files have no end of trees block, so are only considered complete after followTimeout seconds", false);
+	final public Input<Double> minFrequencyInput = new Input<>("minFrequency", "smallest frequency a clade should have in at least one chain to be included in mean clade difference and ASDSF",
+			ChainCladeCounts.DEFAULT_MIN_FREQUENCY);
+	final public Input<Integer> followTimeoutInput = new Input<>("followTimeout", "when following tree files, number of seconds without new trees after which a tree file is considered complete", 600);
 	
-	
+	/** number of trees per chain parsed before clades are counted **/
+	final static int BLOCK_SIZE = 100;
 	
 	int nfiles = 0;
 	
@@ -73,53 +88,128 @@ public class CladeSetOverStateComparator extends Runnable {
 		}
 		
 		
-
-		
 		// List of tree readers
 		List<MemoryFriendlyTreeSet> treeSets = new ArrayList<MemoryFriendlyTreeSet>();
 		for (TreeFile treeFile : srcInput.get()) {
-			MemoryFriendlyTreeSet treeSet = new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(), 0);
+			MemoryFriendlyTreeSet treeSet = new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(), 0, followInput.get());
 			treeSet.reset();
+			// taxa are only known once the translate block or first tree is written
+			if (followInput.get() && !treeSet.waitForTrees(followTimeoutInput.get() * 1000L)) {
+				throw new IOException("No trees found in " + treeFile.getPath());
+			}
 			treeSets.add(treeSet);
 		}
+		// clades are compared as bit sets of leaf numbers, so leaves must be numbered the same in every file
+		List<String> taxa = treeSets.get(0).getTaxa();
+		for (int k = 1; k < treeSets.size(); k++) {
+			if (!treeSets.get(k).getTaxa().equals(taxa)) {
+				throw new IllegalArgumentException("Tree files " + srcInput.get().get(0).getName() + " and " + srcInput.get().get(k).getName() +
+						" should have the same taxa in the same order");
+			}
+		}
 		
 		
 		// IO
-		out.println("sample\tmax.clade.diff\tmean.clade.diff");
+		out.println("sample\tmax.clade.diff\tmean.clade.diff\tasdsf");
 	
-		
-		// Iterate through the cumulative states
-		while (hasNext(treeSets)) {
-			
-			
-			
-			// TODO: create new class like mmeory friendly tree set except it 
-			
-			
-			
-			
-			
-			
+		int chains = treeSets.size();
+		int threads = Math.min(threadsInput.get(), chains);
+		ExecutorService exec = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		ChainCladeCounts counts = new ChainCladeCounts(chains, taxa.size(), minFrequencyInput.get());
+		CompactTree [][] block = new CompactTree[chains][BLOCK_SIZE];
+		int every = Math.max(1, everyInput.get());
+		int sample = 0;
+		
+		try {
+			// Iterate through the cumulative states
+			int size;
+			while ((size = available(treeSets)) > 0) {
+				size = Math.min(size, BLOCK_SIZE);
+				parse(treeSets, block, size, exec);
+				
+				// advance chains in lockstep
+				for (int j = 0; j < size; j++) {
+					for (int k = 0; k < chains; k++) {
+						counts.add(k, block[k][j]);
+					}
+					sample++;
+					if (sample % every == 0) {
+						report(out, sample, counts);
+					}
+				}
+			}
+		} finally {
+			if (exec != null) {
+				exec.shutdownNow();
+			}
+			for (MemoryFriendlyTreeSet treeSet : treeSets) {
+				treeSet.close();
+			}
 		}
-		
+		if (sample % every != 0) {
+			report(out, sample, counts);
+		}
+		if (out != System.out) {
+			out.close();
+		}
+		Log.warning("Done");
+	}
 	
-		
+	
+	private void report(PrintStream out, int sample, ChainCladeCounts counts) {
+		out.println(sample + "\t" + counts.getMaxDifference() + "\t" + counts.getMeanDifference() + "\t" + counts.getASDSF());
+		out.flush();
 	}
 	
 	
 	/**
-	 * Check that all treesets have another tree
+	 * parse the next size trees of every tree set into block, one tree set per thread if exec is not null
+	 */
+	private void parse(List<MemoryFriendlyTreeSet> treeSets, CompactTree [][] block, int size, ExecutorService exec) throws Exception {
+		if (exec == null) {
+			for (int k = 0; k < treeSets.size(); k++) {
+				parse(treeSets.get(k), block[k], size);
+			}
+			return;
+		}
+		List<Future<?>> tasks = new ArrayList<>();
+		for (int k = 0; k < treeSets.size(); k++) {
+			final int k_ = k;
+			tasks.add(exec.submit(() -> {
+				parse(treeSets.get(k_), block[k_], size);
+				return null;
+			}));
+		}
+		for (Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+	}
+
+	private void parse(MemoryFriendlyTreeSet treeSet, CompactTree [] trees, int size) throws IOException {
+		for (int j = 0; j < size; j++) {
+			trees[j] = treeSet.nextCompact(trees[j]);
+		}
+	}
+	
+	
+	/**
+	 * Number of trees available in all tree sets, waiting for more trees if tree files are followed
 	 * @param treeSets
-	 * @return
+	 * @return 0 if at least one of the tree sets has no more trees
 	 */
-	private boolean hasNext(List<MemoryFriendlyTreeSet> treeSets) {
-		
-		
+	private int available(List<MemoryFriendlyTreeSet> treeSets) throws IOException {
+		int available = Integer.MAX_VALUE;
 		for (MemoryFriendlyTreeSet ts : treeSets) {
-			if (!ts.hasNext()) return false;
+			if (followInput.get() && !ts.waitForTrees(followTimeoutInput.get() * 1000L)) {
+				return 0;
+			}
+			available = Math.min(available, ts.getTreeCount() - ts.getPosition());
 		}
-		return true;
-		
+		return available;
 	}
 	
 	
@@ -4,11 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.FastTreeSet;
+import babel.tools.utils.CompactTree;
+import babel.tools.utils.MemoryFriendlyTreeSet;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
@@ -17,8 +18,6 @@ import beast.base.core.Input;
 import beast.base.inference.Runnable;
 import beast.base.core.Input.Validate;
 import beast.base.core.Log;
-import beast.base.evolution.tree.Node;
-import beast.base.evolution.tree.Tree;
 
 @Description("Produce table for lineages through time plot with 95%HPD bounds")
 public class LineagesThroughTimeCounter extends Runnable {
@@ -114,41 +113,46 @@ public class LineagesThroughTimeCounter extends Runnable {
 	}
 
 	private double[][] processFile(File treeFile) throws IOException {
-		FastTreeSet trees = new TreeAnnotator().new FastTreeSet(treeFile.getAbsolutePath(),
+		MemoryFriendlyTreeSet trees = new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(),
 				burnInPercentageInput.get());
-		trees.reset();
 
 		List<Double>[] distrs = new List[N + 1];
 		for (int i = 0; i < distrs.length; i++) {
 			distrs[i] = new ArrayList<>();
 		}
 
+		// only topology and heights are needed, so use compact trees
+		CompactTree tree = null;
 		trees.reset();
 		maxX = 0;
 		while (trees.hasNext()) {
-			Tree tree = trees.next();
-			maxX = Math.max(tree.getRoot().getHeight(), maxX);
+			tree = trees.nextCompact(tree);
+			maxX = Math.max(tree.getRootHeight(), maxX);
 		}
 		Log.warning("Maximum height = " + maxX);
 
 		trees.reset();
 
+		double [] linCount = new double[N + 1];
 		while (trees.hasNext()) {
-			double [] linCount = new double[N + 1];
+			Arrays.fill(linCount, 0);
 			double stepSize = maxX / N;
-			Tree tree = trees.next();
-			for (Node node : tree.getNodesAsArray()) {
-				if (!node.isRoot()) {
-					int start = (int) (node.getHeight() * N / maxX + 0.5);
-					int end = (int) (node.getParent().getHeight() * N / maxX + 0.5);
+			tree = trees.nextCompact(tree);
+			for (int node = 0; node < tree.getNodeCount(); node++) {
+				int parent = tree.getParent(node);
+				if (parent >= 0) {
+					double height = tree.getHeight(node);
+					double parentHeight = tree.getHeight(parent);
+					int start = (int) (height * N / maxX + 0.5);
+					int end = (int) (parentHeight * N / maxX + 0.5);
 					if (start == end) {
-						linCount[start] += node.getParent().getHeight() - node.getHeight();
+						linCount[start] += parentHeight - height;
 					} else {
-						linCount[start] += ((start+1) * stepSize  - node.getHeight())/stepSize;
+						linCount[start] += ((start+1) * stepSize  - height)/stepSize;
 						for (int i = start+1; i < end; i++) {
 							linCount[i]++;
 						}
-						linCount[end] += node.getParent().getHeight() - end * stepSize;
+						linCount[end] += parentHeight - end * stepSize;
 					}
 				}
 			}
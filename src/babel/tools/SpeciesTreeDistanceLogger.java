@@ -2,9 +2,10 @@ package babel.tools;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.*;
 
+import babel.tools.utils.TraceBuffer;
+import babel.tools.utils.TraceLogWriter;
 import beastfx.app.inputeditor.BeautiDoc;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
@@ -30,7 +31,7 @@ public class SpeciesTreeDistanceLogger extends Runnable {
 	final public Input<OutFile> outputInput = new Input<>("output", "trace output file that can be processed in Tracer. Not produced if not specified.");
 	final public Input<Boolean> useRNNIInput = new Input<>("useRNNI", "flag to indicate to use RNNI if true, Robinson Faulds if false", true);
 	
-	private List<List<?>> traces = new ArrayList<>();
+	private List<TraceBuffer> traces = new ArrayList<>();
 	// maps taxon names from gene trees to that of species trees
 	private Map<String, String> map = new HashMap<>();
 	
@@ -72,18 +73,22 @@ public class SpeciesTreeDistanceLogger extends Runnable {
 		
 		// process gene trees
 		for (TreeFile f : srcInput.get()) {
-			List<Double> distances = processTree(f, speciesTrees);
+			TraceBuffer distances = processTree(f, speciesTrees);
 			traces.add(distances);
 		}
 		
 		saveTrace();
+		for (TraceBuffer trace : traces) {
+			trace.close();
+		}
 		
 		Log.warning("Done!");
 	}
 
 	
-	private List<Double> processTree(TreeFile f, List<Tree> speciesTrees) throws IOException {
-		List<Double> distances = new ArrayList<>();
+	private TraceBuffer processTree(TreeFile f, List<Tree> speciesTrees) throws IOException {
+		TraceBuffer distances = new TraceBuffer(1);
+		double [] row = new double[1];
 
 		NexusParser geneTreeParser = new NexusParser();
 		geneTreeParser.parseFile(f);
@@ -103,8 +108,8 @@ public class SpeciesTreeDistanceLogger extends Runnable {
 					useRNNI ?
 					new RNNIMetric(speciesTree.getTaxaNames()):
 					new RobinsonsFouldMetric(speciesTree.getTaxaNames());
-			double d = metric.distance(speciesTree, geneTree);
-			distances.add(d);
+			row[0] = metric.distance(speciesTree, geneTree);
+			distances.add(row);
 		}
 		
 		return distances;
@@ -183,30 +188,11 @@ public class SpeciesTreeDistanceLogger extends Runnable {
 	 * save entries as tab separated file, which can be used in Tracer
 	 */
 	private void saveTrace() throws IOException {
-		PrintStream out = new PrintStream(outputInput.get());
-		
-		// header
-		out.print("Sample\t");
-		for (TreeFile f : srcInput.get()) {
-			String name = f.getName();
-			out.print(name+"\t");
-		}
-		out.println();
-		
-		// tab separated data
-		int min = Integer.MAX_VALUE;
-		for (int j = 0; j < traces.size(); j++) {
-			min = Math.min(traces.get(j).size(), min);
-		}
-		
-		for (int i = 0; i < min; i++) {
-			out.print(i + "\t");
-			for (int j = 0; j < traces.size(); j++) {
-				out.print(traces.get(j).get(i) + "\t");
-			}
-			out.println();
+		TraceLogWriter writer = new TraceLogWriter();
+		for (int i = 0; i < traces.size(); i++) {
+			writer.add(traces.get(i), srcInput.get().get(i).getName());
 		}
-		out.close();
+		writer.write(outputInput.get());
 	}
 	
 	public static void main(String[] args) throws Exception {
@@ -3,11 +3,10 @@ package babel.tools;
 
 
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
 
 import babel.tools.utils.MemoryFriendlyTreeSet;
+import babel.tools.utils.TraceBuffer;
+import babel.tools.utils.TraceLogWriter;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
@@ -41,10 +40,9 @@ public class SpeedCalculator extends Runnable {
 	public void run() throws Exception {
 		tag = tagInput.get();
 		
-		// process tree files
-		List<Double> speed = new ArrayList<>();
-		List<Double> time = new ArrayList<>();
-		List<Double> distance = new ArrayList<>();
+		// process tree files, with distance, time and speed of every tree in a row of the trace
+		TraceBuffer trace = new TraceBuffer(3);
+		double [] row = new double[3];
 		
 		MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(srcInput.get().getPath(), burnInPercentageInput.get());
 		srcTreeSet.reset();
@@ -59,9 +57,10 @@ public class SpeedCalculator extends Runnable {
 			traverse(root);
 			double treeSpeed = sumOfDistance / sumOfTime;
 			
-			time.add(sumOfTime);
-			distance.add(sumOfDistance);
-			speed.add(treeSpeed);
+			row[0] = sumOfDistance;
+			row[1] = sumOfTime;
+			row[2] = treeSpeed;
+			trace.add(row);
 
 			sum += treeSpeed;
 			n++;
@@ -72,8 +71,9 @@ public class SpeedCalculator extends Runnable {
 		// save trace?
 		if (traceInput.get() != null &&
 				!traceInput.get().getName().equals("[[none]]")) {
-			saveTrace(distance, time, speed);
+			saveTrace(trace);
 		}
+		trace.close();
 		
 		Log.warning("Done");
 	}
@@ -147,24 +147,10 @@ public class SpeedCalculator extends Runnable {
 	/**
 	 * save entries as tab separated file, which can be used in Tracer
 	 */
-	private void saveTrace(List<Double> distance, List<Double> time, List<Double> speed) throws IOException {
-		PrintStream out = new PrintStream(traceInput.get());
-		
-		// header
-		out.print("Sample\t");
-		out.print("distance\t");
-		out.print("time\t");
-		out.print("speed\t");
-		out.println();
-		
-		for (int i = 0; i < distance.size(); i++) {
-			out.print(i + "\t");
-			out.print(distance.get(i) + "\t");
-			out.print(time.get(i) + "\t");
-			out.print(speed.get(i) + "\t");
-			out.println();
-		}
-		out.close();
+	private void saveTrace(TraceBuffer trace) throws IOException {
+		TraceLogWriter writer = new TraceLogWriter();
+		writer.add(trace, "distance", "time", "speed");
+		writer.write(traceInput.get());
 	}
 
 	public static void main(String[] args) throws Exception {
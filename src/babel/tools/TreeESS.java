@@ -6,17 +6,25 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
+import babel.tools.CladeSetComparator.CladeSetWithHeights;
+import babel.tools.utils.CladeTable;
 import babel.tools.utils.MemoryFriendlyTreeSet;
+import babel.tools.utils.PipelinedTreeSet;
+import babel.tools.utils.TraceBuffer;
+import babel.tools.utils.TraceLogWriter;
 import beastfx.app.inputeditor.BeautiDoc;
-import beastfx.app.treeannotator.CladeSystem;
-import beastfx.app.treeannotator.CladeSystem.Clade;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
@@ -46,10 +54,17 @@ public class TreeESS extends Runnable {
 	final public Input<OutFile> cladeSetOutputInput = new Input<>("cladeSetOutput", "output file with clade information. Not produced if not specified.",
 			new OutFile("[[none]]"));
 	final public Input<File> cladeSetInputInput = new Input<>("cladeSetInput", "source clades from file save via cladeSetOutput", new File("[[none]]"));
+	final public Input<Boolean> followInput = new Input<>("follow", "keep reading trees that are appended to the tree files while an MCMC chain is still running, "
+			+ "until the chain closes the trees block, or no trees are added for followTimeout seconds. "
+			+ "Newick files have no end of trees block, so are only considered complete after followTimeout seconds", false);
+	final public Input<Integer> followTimeoutInput = new Input<>("followTimeout", "when following tree files, number of seconds without new trees after which a tree file is considered complete", 600);
+	final public Input<Integer> reportEveryInput = new Input<>("reportEvery", "when following tree files, number of new trees after which ESSs are reported and the trace is saved", 1000);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for processing tree files concurrently, parsing trees and counting clades. Ignored if 1 or less", -1);
 
 	Set<BitSet> focalClades;
 	BitSet[] focalCladeArray;
-	List<List<?>> traces;
+	/** traces of tree files, in order of the tree input **/
+	FileTraces [] fileTraces;
 	Tree focalTree;
 	boolean logClades;
 	String [] taxa;
@@ -61,8 +76,6 @@ public class TreeESS extends Runnable {
 	@Override
 	public void run() throws Exception {
 		focalClades = new HashSet<>();
-		traces = new ArrayList<>();
-		List<List<Double>> cladeTraces = null;
 		logClades = logCladesInput.get();
 		
 		// determine clades to be considered (if logged)
@@ -90,38 +103,20 @@ public class TreeESS extends Runnable {
 			setFocalTreeFromTreeSet();
 		}
 		
-		// process tree files
-		for (TreeFile f : srcInput.get()) {
-			List<Double> traceRF = new ArrayList<>();
-			List<Double> traceRNNI = new ArrayList<>();
-			List<Double> traceNNI = new ArrayList<>();
-			List<Double> traceRankSwitches = new ArrayList<>();
-			List<Double> traceNNI2 = new ArrayList<>();
-			List<Double> traceRankSwitches2 = new ArrayList<>();
-			traces.add(traceRF);
-			traces.add(traceRNNI);
-			traces.add(traceNNI);
-			traces.add(traceRankSwitches);
-			traces.add(traceNNI2);
-			traces.add(traceRankSwitches2);
-			if (logClades) {
-				cladeTraces = new ArrayList<>();
-				int n = focalCladeArray.length;
-//				if (focalTreeInput.get() != null) {
-//					n = focalTree.getInternalNodeCount();
-//				} else {
-//					MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(f.getPath(), burnInPercentageInput.get());
-//					srcTreeSet.reset();
-//					Tree tree = srcTreeSet.next();
-//					n = tree.getInternalNodeCount();
-//				}
-				for (int i = 0; i < n; i++) {
-					List<Double> cladeTrace = new ArrayList<>();
-					cladeTraces.add(cladeTrace);
-					traces.add(cladeTrace);
-				}
+		// process tree files, several at the same time when multiple threads are requested
+		List<TreeFile> files = srcInput.get();
+		fileTraces = new FileTraces[files.size()];
+		for (int i = 0; i < fileTraces.length; i++) {
+			fileTraces[i] = new FileTraces(files.get(i), logClades ? focalCladeArray : null, taxa);
+		}
+		int threads = Math.max(1, threadsInput.get());
+		int concurrentFiles = Math.min(threads, fileTraces.length);
+		if (concurrentFiles <= 1) {
+			for (FileTraces traces : fileTraces) {
+				processTreeFile(traces, threads);
 			}
-			processTreeFile(f, traceRF, traceRNNI, traceNNI, traceRankSwitches, traceNNI2, traceRankSwitches2, cladeTraces);
+		} else {
+			processTreeFiles(concurrentFiles, threads / concurrentFiles);
 		}
 		
 		// save trace?
@@ -129,6 +124,9 @@ public class TreeESS extends Runnable {
 				!traceInput.get().getName().equals("[[none]]")) {
 			saveTrace();
 		}
+		for (FileTraces traces : fileTraces) {
+			traces.getBuffer().close();
+		}
 		
 		Log.warning("Done");
 	}
@@ -167,27 +165,19 @@ public class TreeESS extends Runnable {
 
 	private void findCladesAboveThreshold() throws IOException {
 		double threshold = cladeSupportThresholdInput.get();
+		// only topology is required, so trees are counted as compact trees instead of through the pipeline
 		MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(srcInput.get().get(0).getPath(), burnInPercentageInput.get());
 		srcTreeSet.reset();
-		CladeSystem clades = new CladeSystem();
-		int k = 0;
-		while (srcTreeSet.hasNext()) {
-			clades.add(srcTreeSet.next(), false);
-			k++;
-		}
+		CladeSetWithHeights clades = new CladeSetComparator().new CladeSetWithHeights(srcTreeSet.next());
+		int k = 1 + clades.addAll(srcTreeSet, 1, threadsInput.get());
 		
+		// leaves are numbered by taxon index, so clades can be used as they are
 		List<BitSet> focalClades = new ArrayList<>();
-		for (BitSet bits : clades.getCladeMap().keySet()) {
-			Clade clade = clades.getCladeMap().get(bits);
-			if (clade.getCount() >= threshold * k && // add clades with required level of support
-					clade.getCount() != k) {         // but don't add 100% clades
-				BitSet halfset = new BitSet();
-				for (int i = 0; i < bits.length(); i += 2) {
-					if (bits.get(i)) {
-						halfset.set(i/2);
-					}
-				}
-				focalClades.add(halfset);
+		for (int i = 0; i < clades.getCladeCount(); i++) {
+			int count = clades.getFrequency(i);
+			if (count >= threshold * k && // add clades with required level of support
+					count != k) {         // but don't add 100% clades
+				focalClades.add(clades.get(i));
 			}
 		}
 		focalCladeArray = focalClades.toArray(new BitSet[]{});		
@@ -196,13 +186,50 @@ public class TreeESS extends Runnable {
 		printClades(srcTreeSet.next().getTaxaNames());
 	}
 
-	private void processTreeFile(TreeFile f, List<Double> traceRF, List<Double> traceRNNI,
-			List<Double> traceNNI, List<Double> traceRankSwitches,
-			List<Double> traceNNI2, List<Double> traceRankSwitches2,
-			List<List<Double>> cladeTraces) throws IOException {
-		MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(f.getPath(), burnInPercentageInput.get());
+	/** tree set for path, with trees parsed in parallel when multiple threads are requested **/
+	private MemoryFriendlyTreeSet newTreeSet(String path, int threads) throws IOException {
+		if (threads > 1) {
+			return new PipelinedTreeSet(path, burnInPercentageInput.get(), followInput.get(), threads);
+		}
+		return new MemoryFriendlyTreeSet(path, burnInPercentageInput.get(), followInput.get());
+	}
+
+	/**
+	 * process tree files on a pool of concurrentFiles threads, every file with its own
+	 * distance context, and trees parsed with parserThreads threads per file
+	 */
+	private void processTreeFiles(int concurrentFiles, int parserThreads) throws IOException {
+		ExecutorService exec = Executors.newFixedThreadPool(concurrentFiles);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (FileTraces traces : fileTraces) {
+				futures.add(exec.submit(() -> {
+					processTreeFile(traces, parserThreads);
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not process tree file: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private void processTreeFile(FileTraces traces, int threads) throws IOException {
+		MemoryFriendlyTreeSet srcTreeSet = newTreeSet(traces.file.getPath(), threads);
 		srcTreeSet.reset();
+		// taxa are only known once the translate block or first tree is written
+		if (followInput.get() && !srcTreeSet.waitForTrees(followTimeoutInput.get() * 1000L)) {
+			throw new IOException("No trees found in " + traces.file.getPath());
+		}
 		int [] map;
+		Tree focalTree = this.focalTree;
+		DistanceContext context;
 		
 		// do we need to update the focal tree set?
 		if (!(focalTreeInput.get() != null && !focalTreeInput.get().getName().equals("[[none]]"))) {
@@ -211,11 +238,11 @@ public class TreeESS extends Runnable {
 			}
 			focalTree = srcTreeSet.next();
 			// sort(focalTree.getRoot());
-			focalClades = new HashSet<>();
-			addFocalClades(focalTree.getRoot());
-			if (cladeSupportThresholdInput.get() < 0 && 
+			if (logClades && cladeSupportThresholdInput.get() < 0 && 
 					!(cladeSetInputInput.get() != null && !cladeSetInputInput.get().getName().equals("[[none]]"))) {
-				focalCladeArray = focalClades.toArray(new BitSet[]{});
+				Set<BitSet> clades = new HashSet<>();
+				addFocalClades(focalTree.getRoot(), clades);
+				traces.setClades(clades.toArray(new BitSet[]{}), focalTree.getTaxaNames());
 			}
 			// probably not useful to add first tree after burn-in to
 			// trace, since the RF distance will be 0
@@ -224,6 +251,7 @@ public class TreeESS extends Runnable {
 			for (int i = 0; i < map.length; i++) {
 				map[i] = i;
 			}
+			context = new DistanceContext(focalTree, traces.clades, map);
 		} else {
 			// set up mapping of taxon names in this tree set to that of the focal tree
 			Tree tree = srcTreeSet.next();
@@ -233,70 +261,52 @@ public class TreeESS extends Runnable {
 				String name = tree.getTaxaNames()[i];
 				map[i] = indexOf(focalTaxa, name);
 			}
-			double [] distance = new double[1]; 
-			RFDistance(tree.getRoot(), distance, map, cladeTraces);
-			traceRF.add(distance[0]);
-			Double [] d = RNNIDistance(focalTree, tree);
-			traceRNNI.add(d[0]);
-			traceNNI.add(d[1]);
-			traceRankSwitches.add(d[0] - d[1]);
-			d = RNNIDistance(tree, focalTree);
-			traceNNI2.add(d[1]);
-			traceRankSwitches2.add(d[0] - d[1]);
-
-			if (logClades) {
-				for (int i = 0; i < focalCladeArray.length; i++) {
-					if (cladeTraces.get(i).size() != 1) {
-						cladeTraces.get(i).add(0.0);
-					}
-				}
-			}
+			context = new DistanceContext(focalTree, traces.clades, map);
+			traces.add(context.calcDistances(tree), context.getCladePresence());
 		}
 		
 		while (srcTreeSet.hasNext()) {
-			Tree tree = srcTreeSet.next();
-			double [] distance = new double[1]; 
-			RFDistance(tree.getRoot(), distance, map, cladeTraces);
-			traceRF.add(distance[0]);
-			Double [] d = RNNIDistance(focalTree, tree);
-			traceRNNI.add(d[0]);
-			traceNNI.add(d[1]);
-			traceRankSwitches.add(d[0] - d[1]);
-			d = RNNIDistance(tree, focalTree);
-			traceNNI2.add(d[1]);
-			traceRankSwitches2.add(d[0] - d[1]);
-			
-			if (logClades) {
-				int n = traceRF.size();
-				for (int i = 0; i < focalCladeArray.length; i++) {
-					if (cladeTraces.get(i).size() != n) {
-						cladeTraces.get(i).add(0.0);
+			traces.add(context.calcDistances(srcTreeSet.next()), context.getCladePresence());
+		}
+		
+		if (followInput.get()) {
+			// keep going while the chain is adding trees, reporting every so often
+			int reported = traces.size();
+			while (srcTreeSet.waitForTrees(followTimeoutInput.get() * 1000L)) {
+				while (srcTreeSet.hasNext()) {
+					traces.add(context.calcDistances(srcTreeSet.next()), context.getCladePresence());
+					if (traces.size() - reported >= reportEveryInput.get()) {
+						Log.info(traces.size() + " trees processed from " + traces.file.getName());
+						reportESS(traces);
+						if (traceInput.get() != null &&
+								!traceInput.get().getName().equals("[[none]]")) {
+							saveTrace();
+						}
+						reported = traces.size();
 					}
 				}
 			}
 		}
+		srcTreeSet.close();
 		
-		double ESSRF = beast.base.inference.util.ESS.calcESS(traceRF);
-		Log.info("ESS(" + srcInput.getName() + "-RF) = " + ESSRF);
-		double ESSRNNI = beast.base.inference.util.ESS.calcESS(traceRNNI);
-		Log.info("ESS(" + srcInput.getName() + "-RNNI) = " + ESSRNNI);
-		
-		double ESSNNI = beast.base.inference.util.ESS.calcESS(traceNNI);
-		Log.info("ESS(" + srcInput.getName() + "-NNI) = " + ESSNNI);
-		double ESSRankSwitches = beast.base.inference.util.ESS.calcESS(traceRankSwitches);
-		Log.info("ESS(" + srcInput.getName() + "-RankSwitches) = " + ESSRankSwitches);
-
-		double ESSNNI2 = beast.base.inference.util.ESS.calcESS(traceNNI2);
-		Log.info("ESS(" + srcInput.getName() + "-NNI-backward) = " + ESSNNI2);
-		double ESSRankSwitches2 = beast.base.inference.util.ESS.calcESS(traceRankSwitches2);
-		Log.info("ESS(" + srcInput.getName() + "-RankSwitches-backward) = " + ESSRankSwitches2);
+		reportESS(traces);
+	}
+
+	/** report ESSs of traces of a tree file; synchronized so reports of files processed concurrently are not interleaved **/
+	private synchronized void reportESS(FileTraces traces) throws IOException {
+		String name = traces.file.getName();
+		for (int i = 0; i < DISTANCE_COUNT; i++) {
+			double ESS = calcESS(traces.getColumn(i));
+			Log.info("ESS(" + name + "-" + DISTANCE_LABELS[i] + ") = " + ESS);
+		}
 		if (logClades) {
+			int cladeCount = traces.getColumnCount() - DISTANCE_COUNT;
 			double sum = 0;
 			double min = Double.MAX_VALUE;
 			int k = 0;
 			Log.warning.print("Clade ESSs: ");
-			for (int i = 0; i < cladeTraces.size(); i++) {
-				double ESS = beast.base.inference.util.ESS.calcESS(cladeTraces.get(i));
+			for (int i = 0; i < cladeCount; i++) {
+				double ESS = calcESS(traces.getColumn(DISTANCE_COUNT + i));
 				Log.warning.print(" " + ESS);
 				if (Double.isFinite(ESS)) {
 					sum += ESS;
@@ -306,15 +316,15 @@ public class TreeESS extends Runnable {
 			}
 			Log.warning.print("\n");
 			sum /= k;
-			Log.info("mean clade ESS(" + srcInput.getName() + ") = " + sum);
-			Log.info("minimum clade ESS(" + srcInput.getName() + ") = " + min);
+			Log.info("mean clade ESS(" + name + ") = " + sum);
+			Log.info("minimum clade ESS(" + name + ") = " + min);
 
 		
 			sum = 0;
 			min = Double.MAX_VALUE;
 			k = 0;
-			for (int i = 0; i < cladeTraces.size(); i++) {
-				double entropy = calcEntropy(cladeTraces.get(i));
+			for (int i = 0; i < cladeCount; i++) {
+				double entropy = calcEntropy(traces.getColumn(DISTANCE_COUNT + i));
 				Log.warning.print(" " + entropy);
 				if (Double.isFinite(entropy)) {
 					sum += entropy;
@@ -324,30 +334,28 @@ public class TreeESS extends Runnable {
 			}
 			Log.warning.print("\n");
 			sum /= k;
-			Log.info("mean clade entropy(" + srcInput.getName() + ") = " + sum);
-			Log.info("minimum clade entropy(" + srcInput.getName() + ") = " + min);
+			Log.info("mean clade entropy(" + name + ") = " + sum);
+			Log.info("minimum clade entropy(" + name + ") = " + min);
 		}
 	}
-	
-	private Double [] RNNIDistance(Tree tree1, Tree tree2) {
-		if (tree1.getRoot().getNr() == 0) {
-			renumberInternal(tree1.getRoot(), new int[]{tree1.getLeafNodeCount()});
-		}
-		if (tree2.getRoot().getNr() == 0) {
-			renumberInternal(tree2.getRoot(), new int[]{tree2.getLeafNodeCount()});
+
+	private static double calcESS(double [] trace) {
+		// the ESS calculation takes boxed values, so only one trace at a time is boxed
+		Double [] values = new Double[trace.length];
+		for (int i = 0; i < trace.length; i++) {
+			values[i] = trace[i];
 		}
-		RNNIMetric metric = new RNNIMetric(tree1.getTaxaNames());
-		return new Double[]{metric.distance(tree1, tree2), (double) metric.getNNICount()};
+		return beast.base.inference.util.ESS.calcESS(values, 1);
 	}
-
-	private double calcEntropy(List<Double> list) {
-	    int p = 0, observedFlips = 0, n = list.size();
-	    if (list.get(0) > 0.5) {
+	
+	private double calcEntropy(double [] list) {
+	    int p = 0, observedFlips = 0, n = list.length;
+	    if (list[0] > 0.5) {
 	    	p++;
 	    }
-		for (int i = 1; i < list.size(); i++) {
-			boolean prev = list.get(i-1) > 0.5;
-			boolean cur  = list.get(i) > 0.5;
+		for (int i = 1; i < list.length; i++) {
+			boolean prev = list[i-1] > 0.5;
+			boolean cur  = list[i] > 0.5;
 			if (cur) {
 				p++;
 			}
@@ -409,92 +417,270 @@ public class TreeESS extends Runnable {
 		throw new IllegalArgumentException("Tree set incompatible with focal tree: could not find taxon " + name + " in focal tree");
 	}
 
-	/** calculates Robinson Faulds distance to focal tree **/
-	private BitSet RFDistance(Node node, double [] distance, int [] map, List<List<Double>> cladeTraces) {
-		if (node.isLeaf()) {
-        	BitSet bitset = new BitSet();
-        	bitset.set(map[node.getNr()]);
-            return bitset;
-		}
-        BitSet left = RFDistance(node.getLeft(), distance, map, cladeTraces);
-        BitSet right = RFDistance(node.getRight(), distance, map, cladeTraces);
-        BitSet clade = new BitSet();
-        clade.or(left);
-        clade.or(right);
-		if (focalClades.contains(clade)) {
-			distance[0] += 2;
+	/** positions of distances in the array returned by DistanceContext.calcDistances, and of their traces in FileTraces **/
+	final static int RF = 0, RNNI = 1, NNI = 2, RANK_SWITCHES = 3, NNI_BACKWARD = 4, RANK_SWITCHES_BACKWARD = 5;
+	final static int DISTANCE_COUNT = 6;
+	/** distance labels used in reports and trace headers **/
+	final static String [] DISTANCE_LABELS = {"RF", "RNNI", "NNI", "RankSwitches", "NNI-backward", "RankSwitches-backward"};
+
+	/**
+	 * Traces of one tree file: a column for each of the DISTANCE_COUNT distances to the focal tree,
+	 * followed by a 0/1 column for each logged clade. Rows are added by the thread processing the
+	 * file, and can be read by other threads reporting or saving traces while the file is processed.
+	 */
+	static class FileTraces {
+		final TreeFile file;
+		/** logged clades, null if clades are not logged, and taxon names used to label them **/
+		BitSet [] clades;
+		String [] taxa;
+		private TraceBuffer buffer;
+		private double [] row;
+
+		FileTraces(TreeFile file, BitSet [] clades, String [] taxa) throws IOException {
+			this.file = file;
+			setClades(clades, taxa);
 		}
-		if (logClades) {
-			int index = indexOf(clade);
-			if (index >= 0 && index < cladeTraces.size()) {
-				cladeTraces.get(index).add(1.0);
+
+		/** set logged clades, which clears the traces **/
+		synchronized void setClades(BitSet [] clades, String [] taxa) throws IOException {
+			this.clades = clades;
+			this.taxa = taxa;
+			if (buffer != null) {
+				buffer.close();
 			}
+			buffer = new TraceBuffer(DISTANCE_COUNT + (clades == null ? 0 : clades.length));
+			row = new double[buffer.getColumnCount()];
 		}
-		return clade;
-	}
 
-	private int indexOf(BitSet clade) {
-		for (int i = 0; i < focalCladeArray.length; i++) {
-			if (focalCladeArray[i].equals(clade)) {
-				return i;
+		/** add distances and clade presence of a tree, as returned by a DistanceContext **/
+		synchronized void add(double [] distances, double [] cladePresence) throws IOException {
+			System.arraycopy(distances, 0, row, 0, DISTANCE_COUNT);
+			System.arraycopy(cladePresence, 0, row, DISTANCE_COUNT, row.length - DISTANCE_COUNT);
+			buffer.add(row);
+		}
+
+		synchronized TraceBuffer getBuffer() {
+			return buffer;
+		}
+
+		int size() {
+			return getBuffer().size();
+		}
+
+		int getColumnCount() {
+			return getBuffer().getColumnCount();
+		}
+
+		/** @return copy of column i **/
+		double [] getColumn(int i) throws IOException {
+			return getBuffer().getColumn(i);
+		}
+
+		/** labels of columns in trace log **/
+		String [] getLabels() {
+			String name = file.getName();
+			String [] labels = new String[getColumnCount()];
+			for (int i = 0; i < DISTANCE_COUNT; i++) {
+				labels[i] = name + "-" + DISTANCE_LABELS[i];
+			}
+			if (labels.length > DISTANCE_COUNT) {
+				String prefix = name;
+				if (prefix.contains(".")) {
+					prefix = prefix.substring(0, prefix.indexOf('.'));
+				}
+				for (int i = 0; i < clades.length; i++) {
+					labels[DISTANCE_COUNT + i] = prefix + '.' + getCladeName(clades[i], taxa);
+				}
 			}
+			return labels;
 		}
-		return -1;
 	}
 
 	/**
-	 * save entries as tab separated file, which can be used in Tracer
+	 * Calculates distances between trees and a focal tree, and which of a set of logged
+	 * clades are present in a tree. The focal tree is numbered and its clades are hashed
+	 * once, clades of trees are calculated in work arrays that are reused between trees,
+	 * and logged clades are mapped to their trace column through a hash table, so no
+	 * memory is allocated per node. Not thread safe: use one context per thread.
+	 *
+	 * Trees are Tree objects rather than CompactTrees, since RNNIMetric only works on Tree
+	 * objects, so every tree is parsed into one anyway and RF distances use the same tree.
 	 */
-	private void saveTrace() throws IOException {
-		PrintStream out = new PrintStream(traceInput.get());
-		
-		// header
-		out.print("Sample\t");
-		for (TreeFile f : srcInput.get()) {
-			out.print(f.getName() + "-RF\t");
-			out.print(f.getName() + "-RNNI\t");
-			out.print(f.getName() + "-NNI\t");
-			out.print(f.getName() + "-RankSwitches\t");
-			out.print(f.getName() + "-NNI-backward\t");
-			out.print(f.getName() + "-RankSwitches-backward\t");
-			if (logClades) {
-				String prefix = f.getName();
-				if (prefix.contains(".")) {
-					prefix = prefix.substring(0, prefix.indexOf('.'));
+	static class DistanceContext {
+		final Tree focalTree;
+		/** maps leaf numbers of trees to taxon indices of the focal tree **/
+		final int [] map;
+		final RNNIMetric metric;
+		/**
+		 * metric for backward distances, which is set up with the taxa of the trees instead
+		 * of those of the focal tree, and the taxa it was set up with
+		 */
+		private RNNIMetric backwardMetric;
+		private String [] backwardTaxa;
+		/** clades of the focal tree, leaves numbered as in the focal tree **/
+		final CladeTable focalClades;
+		/** clades to be logged, with table index equal to trace column, null if clades are not logged **/
+		final CladeTable loggedClades;
+		final int loggedCladeCount;
+		/** work space for clades, indexed by depth in the tree **/
+		private long [][] depthClades;
+		/** result arrays, reused between trees **/
+		private final double [] distances = new double[6];
+		private final double [] present;
+
+		DistanceContext(Tree focalTree, BitSet [] loggedClades, int [] map) {
+			// contexts of files processed concurrently can share a focal tree, which is
+			// renumbered below and traversed by the metric, so every context gets its own copy
+			// (copy() leaves out the taxon set the taxa names may come from)
+			Tree copy = focalTree.copy();
+			copy.m_taxonset.setValue(focalTree.m_taxonset.get(), copy);
+			focalTree = copy;
+			this.focalTree = focalTree;
+			this.map = map;
+			if (focalTree.getRoot().getNr() == 0) {
+				renumberInternal(focalTree.getRoot(), new int[]{focalTree.getLeafNodeCount()});
+			}
+			metric = new RNNIMetric(focalTree.getTaxaNames());
+			backwardMetric = metric;
+			backwardTaxa = focalTree.getTaxaNames();
+
+			int taxonCount = focalTree.getLeafNodeCount();
+			depthClades = new long[focalTree.getNodeCount()][];
+			focalClades = new CladeTable(taxonCount);
+			addClades(focalTree.getRoot(), 0);
+
+			if (loggedClades != null) {
+				this.loggedClades = new CladeTable(taxonCount);
+				for (BitSet clade : loggedClades) {
+					this.loggedClades.add(this.loggedClades.toWords(clade), 1, 0);
 				}
-				for (int i = 0; i < focalCladeArray.length; i++) {
-					out.print(prefix + '.' + getCladeName(focalCladeArray[i], taxa) + '\t');
+				loggedCladeCount = loggedClades.length;
+			} else {
+				this.loggedClades = null;
+				loggedCladeCount = 0;
+			}
+			present = new double[loggedCladeCount];
+		}
+
+		/**
+		 * @return distances between tree and focal tree, indexed by RF, RNNI, NNI, RANK_SWITCHES,
+		 * NNI_BACKWARD and RANK_SWITCHES_BACKWARD. The array is overwritten by the next call.
+		 */
+		double [] calcDistances(Tree tree) {
+			distances[RF] = 0;
+			Arrays.fill(present, 0.0);
+			calcClades(tree.getRoot(), 0);
+
+			if (tree.getRoot().getNr() == 0) {
+				renumberInternal(tree.getRoot(), new int[]{tree.getLeafNodeCount()});
+			}
+			double d = metric.distance(focalTree, tree);
+			double nni = metric.getNNICount();
+			distances[RNNI] = d;
+			distances[NNI] = nni;
+			distances[RANK_SWITCHES] = d - nni;
+			// the backward metric is set up with the taxa of its first tree, like the forward one,
+			// which only needs replacing when the taxa order of the trees differs from the last
+			String [] taxa = tree.getTaxaNames();
+			if (!Arrays.equals(taxa, backwardTaxa)) {
+				backwardMetric = new RNNIMetric(taxa);
+				backwardTaxa = taxa;
+			}
+			d = backwardMetric.distance(tree, focalTree);
+			nni = backwardMetric.getNNICount();
+			distances[NNI_BACKWARD] = nni;
+			distances[RANK_SWITCHES_BACKWARD] = d - nni;
+			return distances;
+		}
+
+		/** @return 1 for logged clades present in the last tree passed to calcDistances, 0 otherwise **/
+		double [] getCladePresence() {
+			return present;
+		}
+
+		/** calculate clade of node in depthClades[depth], counting shared clades and marking logged clades on the way **/
+		private long [] calcClades(Node node, int depth) {
+			long [] clade = workArray(depth);
+			if (node.isLeaf()) {
+				Arrays.fill(clade, 0);
+				int taxon = map[node.getNr()];
+				clade[taxon >>> 6] = 1L << (taxon & 63);
+				return clade;
+			}
+			long [] left = calcClades(node.getLeft(), depth + 1);
+			System.arraycopy(left, 0, clade, 0, clade.length);
+			long [] right = calcClades(node.getRight(), depth + 1);
+			for (int k = 0; k < clade.length; k++) {
+				clade[k] |= right[k];
+			}
+			if (focalClades.indexOf(clade) >= 0) {
+				distances[RF] += 2;
+			}
+			if (loggedClades != null) {
+				int index = loggedClades.indexOf(clade);
+				if (index >= 0) {
+					present[index] = 1.0;
 				}
 			}
+			return clade;
 		}
-		out.println();
-		
-		// tab separated data
-		int min = Integer.MAX_VALUE;
-		for (int j = 0; j < traces.size(); j++) {
-			min = Math.min(traces.get(j).size(), min);
+
+		/** add clades of focal tree to focalClades **/
+		private long [] addClades(Node node, int depth) {
+			long [] clade = workArray(depth);
+			if (node.isLeaf()) {
+				Arrays.fill(clade, 0);
+				int taxon = node.getNr();
+				clade[taxon >>> 6] = 1L << (taxon & 63);
+				return clade;
+			}
+			long [] left = addClades(node.getLeft(), depth + 1);
+			System.arraycopy(left, 0, clade, 0, clade.length);
+			long [] right = addClades(node.getRight(), depth + 1);
+			for (int k = 0; k < clade.length; k++) {
+				clade[k] |= right[k];
+			}
+			focalClades.add(clade, 1, 0);
+			return clade;
 		}
-		
-		for (int i = 0; i < min; i++) {
-			out.print(i + "\t");
-			for (int j = 0; j < traces.size(); j++) {
-				out.print(traces.get(j).get(i) + "\t");
+
+		private long [] workArray(int depth) {
+			if (depth >= depthClades.length) {
+				depthClades = Arrays.copyOf(depthClades, depth * 2 + 1);
+			}
+			if (depthClades[depth] == null) {
+				depthClades[depth] = new long[focalClades.getWordCount()];
+			}
+			return depthClades[depth];
+		}
+	}
+
+	/**
+	 * save entries as tab separated file, which can be used in Tracer
+	 */
+	private synchronized void saveTrace() throws IOException {
+		// tree files processed so far, which may still be growing
+		TraceLogWriter writer = new TraceLogWriter();
+		List<FileTraces> files = new ArrayList<>();
+		for (FileTraces traces : fileTraces) {
+			if (traces.size() > 0) {
+				writer.add(traces.getBuffer(), traces.getLabels());
+				files.add(traces);
 			}
-			out.println();
 		}
-		out.close();
+		int rowCount = writer.write(traceInput.get());
 		
 		// sanity check
-		for (int j = 0; j < traces.size(); j++) {
-			if (traces.get(j).size() > min) {
+		for (FileTraces traces : files) {
+			if (traces.size() > rowCount) {
 				Log.warning.println("Warning: trace only contains entries for the shortest tree set. " + 
-						(traces.get(j).size() - min) + " entries missing for " + srcInput.get().get(j).getPath());
+						(traces.size() - rowCount) + " entries missing for " + traces.file.getPath());
 			}
 		}
 
 	}
 
-	private String getCladeName(BitSet bitSet, String [] taxa) {
+	static private String getCladeName(BitSet bitSet, String [] taxa) {
 		String name = "";
 		for (int i = 0; i < bitSet.length(); i++) {
 			if (bitSet.get(i)) {
@@ -511,7 +697,7 @@ public class TreeESS extends Runnable {
 		focalTree = srcTreeSet.next();
 		renumberInternal(focalTree.getRoot(), new int[]{focalTree.getLeafNodeCount()});
 		// sort(focalTree.getRoot());
-		addFocalClades(focalTree.getRoot());
+		addFocalClades(focalTree.getRoot(), focalClades);
 		focalCladeArray = focalClades.toArray(new BitSet[]{});
 		printClades(focalTree.getTaxaNames());
 	}
@@ -528,7 +714,7 @@ public class TreeESS extends Runnable {
 
 	
 	
-	private int renumberInternal(Node node, int[] nr) {
+	static private int renumberInternal(Node node, int[] nr) {
 		for (Node child : node.getChildren()) {
 			renumberInternal(child, nr);
 		}
@@ -567,16 +753,16 @@ public class TreeESS extends Runnable {
 	
 	
 	
-	/** add clades to focalClade set as comma separted Strings of taxon names **/
-	private BitSet addFocalClades(Node node) {
+	/** add clades of the tree below node to the set of focal clades **/
+	private BitSet addFocalClades(Node node, Set<BitSet> focalClades) {
         if (node.isLeaf()) {
         	BitSet bitset = new BitSet();
         	bitset.set(node.getNr());
             return bitset;
         }
 		
-        BitSet left = addFocalClades(node.getLeft());
-        BitSet right = addFocalClades(node.getRight());
+        BitSet left = addFocalClades(node.getLeft(), focalClades);
+        BitSet right = addFocalClades(node.getRight(), focalClades);
         BitSet clade = new BitSet();
         clade.or(left);
         clade.or(right);
@@ -1,13 +1,18 @@
 package babel.tools;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
-
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import babel.tools.utils.MemoryFriendlyTreeSet;
 import beastfx.app.tools.Application;
@@ -26,15 +31,31 @@ public class Trees2Distance extends Runnable {
 	final public Input<TreeFile> srcInput = new Input<>("tree", "1 or more source tree files", new TreeFile("[[none]]"));
 	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
 	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads to use. Ignored if 1 or less", -1);
-	final public Input<OutFile> outputInput = new Input<>("out", "output file containing distance matrix.",
+	final public Input<OutFile> outputInput = new Input<>("out", "output file containing distance matrix as comma separated text. "
+			+ "If binaryOut is specified, only written when specified, otherwise distances are printed to stdout if not specified.",
 			new OutFile("[[none]]"));
+	final public Input<OutFile> binaryOutputInput = new Input<>("binaryOut", "binary file the distance matrix is streamed to while it is calculated in tiles, "
+			+ "so memory use does not grow with the square of the number of trees. "
+			+ "The file starts with four big endian 32 bit integers: 0x54324454 (\"T2DT\"), format version (1), bytes per distance (4 or 8) and number of trees n, "
+			+ "followed by the upper triangle of the matrix, that is, distances d(i,j) for 0 <= i < j < n, row by row. "
+			+ "If not specified, the full matrix is kept in memory.");
+	final public Input<Boolean> floatInput = new Input<>("float", "store distances in binaryOut as 32 bit floats instead of 64 bit doubles", false);
+	final public Input<Integer> tileSizeInput = new Input<>("tileSize", "number of trees per side of the tiles the distance matrix is calculated in", 256);
+
+	final static int MAGIC = 0x54324454;
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 16;
+
+    final static long REPORT_INTERVAL = 10000;
 
-    private ExecutorService exec;
-    private CountDownLatch countDown;
     private double [][] distances;
     private List<Tree> trees;
-    private long start;
-    private int distancesCalctulated, totalDistances;
+    private int tileSize;
+    /** RNNIMetric of the current worker thread, reused for all tiles it processes **/
+    private ThreadLocal<RNNIMetric> metrics;
+    private long start, totalDistances;
+    private final AtomicLong distancesCalculated = new AtomicLong();
+    private final AtomicLong nextReport = new AtomicLong();
 
     @Override
 	public void initAndValidate() {
@@ -47,45 +68,55 @@ public class Trees2Distance extends Runnable {
 		MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(srcInput.get().getPath(), burnInPercentageInput.get());
 		srcTreeSet.reset();
 		while (srcTreeSet.hasNext()) {
-			trees.add(srcTreeSet.next());
+			Tree tree = srcTreeSet.next();
+			// number internal nodes up front, so threads do not renumber shared trees
+			if (tree.getRoot().getNr() == 0) {
+				renumberInternal(tree.getRoot(), new int[]{tree.getLeafNodeCount()});
+			}
+			trees.add(tree);
 		}
-		totalDistances = trees.size() * (trees.size()-1)/2;
-		distancesCalctulated = 0;
+		final int n = trees.size();
+		totalDistances = (long) n * (n - 1) / 2;
+		distancesCalculated.set(0);
 		Log.warning(totalDistances + " distances to calculate");
-		
-		// reserve memory for distance matrix
-		distances = new double[trees.size()][trees.size()];
-		int threadCount = threadsInput.get();
-		if (threadCount > 1) {
-		     exec = Executors.newFixedThreadPool(threadCount);
+		if (n == 0) {
+			throw new IllegalArgumentException("No trees found in " + srcInput.get().getPath());
 		}
 
+		final String [] taxa = trees.get(0).getTaxaNames();
+		metrics = ThreadLocal.withInitial(() -> new RNNIMetric(taxa));
+
+		// tiles on or above the diagonal, as {rowStart, rowEnd, colStart, colEnd}
+		tileSize = Math.max(1, tileSizeInput.get());
+		List<int[]> tiles = new ArrayList<>();
+		for (int rowStart = 0; rowStart < n; rowStart += tileSize) {
+			for (int colStart = rowStart; colStart < n; colStart += tileSize) {
+				tiles.add(new int[]{rowStart, Math.min(n, rowStart + tileSize), colStart, Math.min(n, colStart + tileSize)});
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threadsInput.get()));
 		start = System.currentTimeMillis();
-		if (threadCount <= 1) {
-			int i = 0;
-			while (i < trees.size()) {
-				distances[i][i] = 0.0;
-				
-				process(i, trees, distances);
-				distancesCalctulated += i;
-				i++;
-				
-				Log.warning.print('.');
-				if (true || i % 10 == 0) {
-					long time = System.currentTimeMillis() - start;
-					Log.warning(" " + distancesCalctulated + " in " + time/1000 + " seconds = " + time/distancesCalctulated + " ms per distance " + ((totalDistances-distancesCalctulated)*time/(1000*distancesCalctulated)) + " seconds to go");
+		nextReport.set(start + REPORT_INTERVAL);
+		try {
+			if (binaryOutputInput.get() != null && !binaryOutputInput.get().getName().equals("[[none]]")) {
+				runTiled(binaryOutputInput.get(), pool, tiles);
+				report(distancesCalculated.get(), System.currentTimeMillis());
+				if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
+					PrintStream out = new PrintStream(outputInput.get());
+					exportCSV(binaryOutputInput.get(), out);
+					out.close();
 				}
-				System.gc();
+				Log.warning("Done");
+				return;
 			}
-		} else {
-            countDown = new CountDownLatch(threadCount);
-            // kick off the threads
-        	boolean [] done = new boolean[trees.size()];
-            for (int i = 0; i < threadCount; i++) {
-                CoreRunnable coreRunnable = new CoreRunnable(i, done);
-                exec.execute(coreRunnable);
-            }
-            countDown.await();
+
+			// reserve memory for distance matrix
+			distances = new double[n][n];
+			pool.invoke(new TileTask(tiles, 0, tiles.size(), null, 0));
+			report(distancesCalculated.get(), System.currentTimeMillis());
+		} finally {
+			pool.shutdown();
 		}
 		
 		// save to file?
@@ -94,7 +125,6 @@ public class Trees2Distance extends Runnable {
 				!outputInput.get().getName().equals("[[none]]")) {
 			out = new PrintStream(outputInput.get());
 		}		
-		int n = trees.size();
 		for (int i = 0; i < n; i++) {
 			for (int j = 0; j < n; j++) {
 				double d = distances[i][j];
@@ -114,60 +144,167 @@ public class Trees2Distance extends Runnable {
 		Log.warning("Done");
 	}
 
-    class CoreRunnable implements java.lang.Runnable {
-    	int i;
-    	boolean [] done;
-    	
-        CoreRunnable(int start, boolean [] done) {
-            i = start;
-            this.done = done;
-        }
-
-        @Override
-		public void run() {
-            try {
-            	while (i < done.length) {
-    				distances[i][i] = 0.0;
-    				
-    				process(i, trees, distances);
-    				synchronized (this) {
-    					distancesCalctulated += i;
-    				}
-    				done[i] = true;
-    				Log.warning.print('.');
-    				if (i > 0 && i % 10 == 0) {
-    					long time = System.currentTimeMillis() - start;
-    					try {
-    						Log.warning(" " + distancesCalctulated + " in " + time/1000 + " seconds = " + time/distancesCalctulated + " ms per distance " + ((totalDistances-distancesCalctulated)*time/(1000*distancesCalctulated)) + " seconds to go");
-    					} catch (ArithmeticException e) {
-    						// ignore
-    					}
-    				}
-    				i += threadsInput.get();
-    				System.gc();
-            	}
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            countDown.countDown();
-        }
-
-    } // CoreRunnable
-	
-	
-	private int process(int i, List<Tree> trees, double[][] distances) {
-		Tree tree = trees.get(i);
-		RNNIMetric metric = new RNNIMetric(tree.getTaxaNames());
-		int j = 0;
-		while (j < i) { 
-			Tree tree2 = trees.get(j);
-			double d = RNNIDistance(metric, tree, tree2);
-			distances[i][j] = d;
-			distances[j][i] = d;
-			j++;
-		}
-		return j;
+	/**
+	 * Tiles from..to-1, split in halves until single tiles remain, so idle worker threads
+	 * steal work from busy ones. Row i of the matrix takes i distance calculations, so
+	 * tiles rather than rows are the unit of work to keep the load balanced.
+	 */
+	class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final List<int[]> tiles;
+		final int from, to;
+		final MappedByteBuffer [] bands;
+		final int bytesPerValue;
+
+		TileTask(List<int[]> tiles, int from, int to, MappedByteBuffer [] bands, int bytesPerValue) {
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+			this.bands = bands;
+			this.bytesPerValue = bytesPerValue;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				int [] tile = tiles.get(from);
+				processTile(tile, bands == null ? null : bands[tile[0] / tileSize], bytesPerValue);
+				return;
+			}
+			int middle = (from + to) / 2;
+			invokeAll(new TileTask(tiles, from, middle, bands, bytesPerValue),
+					new TileTask(tiles, middle, to, bands, bytesPerValue));
+		}
+	}
+
+	/**
+	 * Calculate distances in square tiles of trees, and write them to a memory mapped file.
+	 * Only the upper triangle is calculated, and the memory used is proportional to the
+	 * number of trees times the tile size. Every band of rows is mapped once and shared by
+	 * the tiles in it, and the file is flushed once, after all tiles are done.
+	 */
+	private void runTiled(File file, ForkJoinPool pool, List<int[]> tiles) throws IOException {
+		final int n = trees.size();
+		final int bytesPerValue = floatInput.get() ? 4 : 8;
+		if (rowOffset(Math.min(n, tileSizeInput.get()), n) * bytesPerValue > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("tileSize is too large for " + n + " trees: use a smaller tileSize");
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()) {
+			raf.setLength(HEADER_SIZE + rowOffset(n, n) * bytesPerValue);
+			MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(bytesPerValue).putInt(n);
+			header.force();
+
+			// distances of the rows of a band are contiguous in the file
+			MappedByteBuffer [] bands = new MappedByteBuffer[(n + tileSize - 1) / tileSize];
+			for (int b = 0; b < bands.length; b++) {
+				long bandStart = rowOffset(b * tileSize, n);
+				long length = (rowOffset(Math.min(n, (b + 1) * tileSize), n) - bandStart) * bytesPerValue;
+				if (length > 0) {
+					bands[b] = channel.map(MapMode.READ_WRITE, HEADER_SIZE + bandStart * bytesPerValue, length);
+				}
+			}
+
+			if (!tiles.isEmpty()) {
+				pool.invoke(new TileTask(tiles, 0, tiles.size(), bands, bytesPerValue));
+			}
+			for (MappedByteBuffer band : bands) {
+				if (band != null) {
+					band.force();
+				}
+			}
+		}
+	}
+
+	/**
+	 * calculate distances for tile = {rowStart, rowEnd, colStart, colEnd} above the diagonal,
+	 * and store them in the distance matrix, or in band, the mapped rows of the binary file
+	 * from row rowStart on, if band is not null. Tiles only write their own distances,
+	 * so threads share bands without locking.
+	 */
+	private void processTile(int [] tile, MappedByteBuffer band, int bytesPerValue) {
+		final int n = trees.size();
+		long blockStart = rowOffset(tile[0], n);
+
+		RNNIMetric metric = metrics.get();
+		long count = 0;
+		for (int i = tile[0]; i < tile[1]; i++) {
+			Tree tree = trees.get(i);
+			long rowStart = rowOffset(i, n) - i - 1 - blockStart;
+			for (int j = Math.max(tile[2], i + 1); j < tile[3]; j++) {
+				double d = RNNIDistance(metric, tree, trees.get(j));
+				if (band == null) {
+					distances[i][j] = d;
+					distances[j][i] = d;
+				} else {
+					int index = (int) ((rowStart + j) * bytesPerValue);
+					if (bytesPerValue == 4) {
+						band.putFloat(index, (float) d);
+					} else {
+						band.putDouble(index, d);
+					}
+				}
+				count++;
+			}
+		}
+		progress(count);
+	}
+
+	/** add count to distances calculated, and report progress every REPORT_INTERVAL milliseconds **/
+	private void progress(long count) {
+		long done = distancesCalculated.addAndGet(count);
+		long now = System.currentTimeMillis();
+		long next = nextReport.get();
+		if (now >= next && nextReport.compareAndSet(next, now + REPORT_INTERVAL)) {
+			report(done, now);
+		}
+	}
+
+	private void report(long done, long now) {
+		double seconds = Math.max(1, now - start) / 1000.0;
+		double rate = done / seconds;
+		String eta = rate > 0 ? formatTime((long) ((totalDistances - done) / rate)) : "?";
+		Log.warning(done + " of " + totalDistances + " distances in " + (long) seconds + " seconds = "
+				+ String.format("%.1f", rate) + " distances/s, " + eta + " to go");
+	}
+
+	private String formatTime(long seconds) {
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+
+	/** number of distances in the upper triangle before row i, which is where d(i,i+1) is stored **/
+	static long rowOffset(int i, int n) {
+		return (long) i * n - (long) i * (i + 1) / 2;
+	}
+
+	/** write binary distance matrix as comma separated text, like the in memory matrix **/
+	private void exportCSV(File file, PrintStream out) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Distance matrix is too large to export as text");
+			}
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IllegalArgumentException("File " + file.getPath() + " is not a binary distance matrix");
+			}
+			int bytesPerValue = buffer.getInt(8);
+			int n = buffer.getInt(12);
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					double d = 0.0;
+					if (i != j) {
+						int lo = Math.min(i, j), hi = Math.max(i, j);
+						int index = (int) (HEADER_SIZE + (rowOffset(lo, n) + hi - lo - 1) * bytesPerValue);
+						d = bytesPerValue == 4 ? buffer.getFloat(index) : buffer.getDouble(index);
+					}
+					out.print(d + ",");
+				}
+				out.println();
+			}
+		}
 	}
 
 	private double RNNIDistance(RNNIMetric metric, Tree tree1, Tree tree2) {
@@ -0,0 +1,324 @@
+package babel.tools.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to the uncompressed content of a gzip compressed file.
+ *
+ * A gzip file is a sequence of members that are compressed independently. The start of
+ * every member (in the compressed file and in the uncompressed content) is recorded when
+ * it is first decompressed, so later reads start decompressing at the nearest member
+ * instead of at the start of the file. Files compressed with bgzip (BGZF) consist of
+ * members of at most 64KB, so any position can be reached by decompressing at most one
+ * member. Files compressed with plain gzip usually consist of a single member: reading
+ * forward is still a single pass, but reading backwards means decompressing from the
+ * start of the file again, so such files should only be read in order (see isRandomAccess).
+ *
+ * The CRC32 and size in the trailer of every member are checked, so corrupt files are
+ * reported instead of producing wrong content.
+ */
+public class BlockGzipInput implements Closeable {
+	final static int BUFFER_SIZE = 1 << 16;
+	/** average uncompressed member size up to which random access is considered cheap; BGZF members are at most 64KB **/
+	final static long MAX_RANDOM_ACCESS_MEMBER_SIZE = 1 << 20;
+
+	FileChannel channel;
+
+	/** compressed and uncompressed offsets of the start of members seen so far, in increasing order **/
+	long [] memberStart = new long[1024], memberOffset = new long[1024];
+	int memberCount = 0;
+
+	Inflater inflater = new Inflater(true);
+	/** compressed bytes read from the file, and the offset in the file of in[0] **/
+	byte [] in = new byte[BUFFER_SIZE];
+	int inPos = 0, inLength = 0;
+	long inStart = 0;
+	/** offset in the uncompressed content of the next byte returned by read() **/
+	long position = 0;
+	boolean inMember = false, endOfContent = false;
+	/** checksum and start in the uncompressed content of the current member **/
+	CRC32 crc = new CRC32();
+	long memberContentStart;
+	byte [] skipBuffer;
+
+	public BlockGzipInput(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/** @return whether the file name indicates a gzip (or bgzip) compressed file **/
+	public static boolean isCompressed(String fileName) {
+		String name = fileName.toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".bgz");
+	}
+
+	/** reader for a text file that is decompressed on the fly if the file name indicates it is compressed **/
+	public static BufferedReader newReader(File file) throws IOException {
+		if (isCompressed(file.getName())) {
+			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8));
+		}
+		return new BufferedReader(new FileReader(file));
+	}
+
+	public static BufferedReader newReader(String fileName) throws IOException {
+		return newReader(new File(fileName));
+	}
+
+	/** offset in the uncompressed content of the next byte to be read **/
+	public long getPosition() {
+		return position;
+	}
+
+	/** restart decompression at a member boundary **/
+	private void restart(long compressedOffset, long uncompressedOffset) {
+		inStart = compressedOffset;
+		inPos = 0;
+		inLength = 0;
+		inflater.reset();
+		inMember = false;
+		endOfContent = false;
+		position = uncompressedOffset;
+	}
+
+	/** read next chunk of the compressed file, once everything in the buffer has been consumed **/
+	private void fill() throws IOException {
+		inStart += inLength;
+		inPos = 0;
+		inLength = 0;
+		ByteBuffer buf = ByteBuffer.wrap(in);
+		int n = channel.read(buf, inStart);
+		inLength = Math.max(0, n);
+	}
+
+	private int readCompressed() throws IOException {
+		if (inPos == inLength) {
+			fill();
+			if (inLength == 0) {
+				return -1;
+			}
+		}
+		return in[inPos++] & 0xff;
+	}
+
+	private int readCompressedOrFail() throws IOException {
+		int b = readCompressed();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of compressed file");
+		}
+		return b;
+	}
+
+	/** parse gzip member header, recording the start of the member
+	 * @return false if the end of the file is reached **/
+	private boolean startMember() throws IOException {
+		long start = inStart + inPos;
+		int id1 = readCompressed();
+		if (id1 < 0) {
+			endOfContent = true;
+			return false;
+		}
+		int id2 = readCompressedOrFail();
+		int method = readCompressedOrFail();
+		if (id1 != 31 || id2 != 139 || method != 8) {
+			throw new IOException("Not in gzip format at byte " + start);
+		}
+		int flags = readCompressedOrFail();
+		// modification time, extra flags and operating system
+		for (int i = 0; i < 6; i++) {
+			readCompressedOrFail();
+		}
+		if ((flags & 4) != 0) {
+			// extra field, e.g. the block size of BGZF
+			int length = readCompressedOrFail() | (readCompressedOrFail() << 8);
+			for (int i = 0; i < length; i++) {
+				readCompressedOrFail();
+			}
+		}
+		if ((flags & 8) != 0) {
+			// file name
+			while (readCompressedOrFail() != 0) {
+			}
+		}
+		if ((flags & 16) != 0) {
+			// comment
+			while (readCompressedOrFail() != 0) {
+			}
+		}
+		if ((flags & 2) != 0) {
+			// header CRC
+			readCompressedOrFail();
+			readCompressedOrFail();
+		}
+
+		if (memberCount == 0 || start > memberStart[memberCount - 1]) {
+			if (memberCount == memberStart.length) {
+				memberStart = Arrays.copyOf(memberStart, memberCount * 2);
+				memberOffset = Arrays.copyOf(memberOffset, memberCount * 2);
+			}
+			memberStart[memberCount] = start;
+			memberOffset[memberCount] = position;
+			memberCount++;
+		}
+		inflater.reset();
+		crc.reset();
+		memberContentStart = position;
+		inMember = true;
+		return true;
+	}
+
+	/**
+	 * read uncompressed bytes at the current position
+	 * @return number of bytes read, or -1 at the end of the content
+	 */
+	public int read(byte [] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (endOfContent) {
+				return -1;
+			}
+			if (!inMember && !startMember()) {
+				return -1;
+			}
+			if (inflater.needsInput()) {
+				if (inPos == inLength) {
+					fill();
+					if (inLength == 0) {
+						throw new EOFException("Unexpected end of compressed file");
+					}
+				}
+				inflater.setInput(in, inPos, inLength - inPos);
+				inPos = inLength;
+			}
+			int n;
+			try {
+				n = inflater.inflate(b, off, len);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed data before byte " + (inStart + inLength) + ": " + e.getMessage(), e);
+			}
+			if (n > 0) {
+				crc.update(b, off, n);
+				position += n;
+			}
+			if (inflater.finished()) {
+				// hand back what the inflater did not use, then check CRC and size
+				inPos = inLength - inflater.getRemaining();
+				checkTrailer();
+				inMember = false;
+			}
+			if (n > 0) {
+				return n;
+			}
+			if (inflater.needsDictionary()) {
+				throw new IOException("Compressed data requires a dictionary, which is not supported");
+			}
+		}
+	}
+
+	/** check CRC32 and size (modulo 2^32) of the uncompressed member against the member trailer **/
+	private void checkTrailer() throws IOException {
+		long start = inStart + inPos;
+		long expectedCRC = readInt();
+		long expectedSize = readInt();
+		if (expectedCRC != crc.getValue()) {
+			throw new IOException("CRC error in compressed file: member trailer at byte " + start + 
+					" has CRC " + Long.toHexString(expectedCRC) + " but content has CRC " + Long.toHexString(crc.getValue()));
+		}
+		if (expectedSize != ((position - memberContentStart) & 0xffffffffL)) {
+			throw new IOException("Size error in compressed file: member trailer at byte " + start + 
+					" has size " + expectedSize + " but content has " + (position - memberContentStart) + " bytes");
+		}
+	}
+
+	/** little endian unsigned 32 bit integer **/
+	private long readInt() throws IOException {
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			value |= (long) readCompressedOrFail() << (8 * i);
+		}
+		return value;
+	}
+
+	/**
+	 * whether reading at arbitrary positions is cheap, which is the case when the members seen so
+	 * far are small, as in bgzip files. Plain gzip files usually have a single member, and seeking
+	 * backwards in them means decompressing from the start of the file again.
+	 * @param contentSize size of the uncompressed content read so far
+	 */
+	public boolean isRandomAccess(long contentSize) {
+		return memberCount > 0 && contentSize / memberCount <= MAX_RANDOM_ACCESS_MEMBER_SIZE;
+	}
+
+	/** move to offset in the uncompressed content, starting at the nearest known member if that saves work **/
+	public void seek(long offset) throws IOException {
+		int i = Arrays.binarySearch(memberOffset, 0, memberCount, offset);
+		if (i < 0) {
+			i = -i - 2;
+		} else {
+			// members can be empty, so take the last one starting at offset
+			while (i + 1 < memberCount && memberOffset[i + 1] == offset) {
+				i++;
+			}
+		}
+		if (offset < position || (i >= 0 && memberOffset[i] > position)) {
+			if (i >= 0) {
+				restart(memberStart[i], memberOffset[i]);
+			} else {
+				restart(0, 0);
+			}
+		}
+		if (skipBuffer == null) {
+			skipBuffer = new byte[BUFFER_SIZE];
+		}
+		while (position < offset) {
+			int n = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, offset - position));
+			if (n < 0) {
+				throw new EOFException("Offset " + offset + " beyond end of compressed file");
+			}
+		}
+	}
+
+	/** read len bytes starting at offset in the uncompressed content **/
+	public void readFully(long offset, byte [] b, int off, int len) throws IOException {
+		seek(offset);
+		while (len > 0) {
+			int n = read(b, off, len);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of compressed file");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** restore member boundaries recorded earlier, e.g. from an index file **/
+	void setMembers(long [] memberStart, long [] memberOffset) {
+		if (memberStart.length > 0) {
+			this.memberStart = memberStart;
+			this.memberOffset = memberOffset;
+			this.memberCount = memberStart.length;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+
+} // class BlockGzipInput
@@ -0,0 +1,250 @@
+package babel.tools.utils;
+
+import java.util.Arrays;
+
+/**
+ * Clade counts of a number of MCMC chains that are advanced in lockstep, keeping track
+ * of the differences in clade frequencies between chains as trees are added.
+ *
+ * The spread of the counts of a clade over chains (largest minus smallest count) and the
+ * standard deviation of its counts only change when a tree containing the clade is added.
+ * So, maximum and mean difference in clade frequencies and the average standard deviation
+ * of split frequencies (ASDSF) are updated in time proportional to the size of the tree,
+ * and are available at any time without visiting all clades.
+ *
+ * Mean difference and ASDSF are averaged over the clades (other than the root clade) with a
+ * frequency of at least minFrequency in at least one of the chains, so that the many clades
+ * seen only a few times do not drive them towards zero. Since clades only pass the
+ * threshold by being counted, and only drop below it when the threshold count rises with
+ * the number of trees, sums of spread and standard deviation are kept per largest count
+ * over chains, and the sums over included clades are adjusted as either changes. Maximum
+ * difference is over all clades.
+ */
+public class ChainCladeCounts {
+	/** conventional threshold for clades to be included in the ASDSF **/
+	public final static double DEFAULT_MIN_FREQUENCY = 0.1;
+
+	final int chains;
+	final CladeTable clades;
+	final double minFrequency;
+
+	/** number of trees per chain **/
+	int [] treeCounts;
+	/** counts[clade * chains + chain] = number of trees in chain containing clade **/
+	int [] counts = new int[0];
+	/** largest minus smallest count over chains, per clade **/
+	int [] spread = new int[0];
+	/** standard deviation of counts over chains, per clade **/
+	double [] sd = new double[0];
+	/** largest count over chains, per clade **/
+	int [] maxCount = new int[0];
+	/** number of clades per value of spread, for keeping track of the maximum spread **/
+	int [] spreadHistogram = new int[16];
+	int maxSpread = 0;
+
+	/** number of clades, and sums of their spreads and standard deviations, per largest count **/
+	int [] cladesByMaxCount = new int[16];
+	long [] spreadByMaxCount = new long[16];
+	double [] sdByMaxCount = new double[16];
+	/** smallest largest count of clades included in mean difference and ASDSF **/
+	int threshold = 0;
+	/** number of included clades, and sums of their spreads and standard deviations **/
+	int includedClades = 0;
+	long includedSpread = 0;
+	double includedSD = 0;
+
+	/** work space for clades of the nodes of a tree **/
+	long [][] nodeClades;
+
+	public ChainCladeCounts(int chains, int taxonCount) {
+		this(chains, taxonCount, DEFAULT_MIN_FREQUENCY);
+	}
+
+	public ChainCladeCounts(int chains, int taxonCount, double minFrequency) {
+		if (chains < 2) {
+			throw new IllegalArgumentException("Need at least 2 chains to compare");
+		}
+		if (minFrequency < 0 || minFrequency > 1) {
+			throw new IllegalArgumentException("Minimum clade frequency should be between 0 and 1, not " + minFrequency);
+		}
+		this.chains = chains;
+		this.minFrequency = minFrequency;
+		clades = new CladeTable(taxonCount);
+		treeCounts = new int[chains];
+	}
+
+	/** add clades of tree to the counts of chain **/
+	public void add(int chain, CompactTree tree) {
+		if (nodeClades == null || nodeClades.length < tree.getNodeCount()) {
+			nodeClades = new long[tree.getNodeCount()][clades.getWordCount()];
+		}
+		tree.getClades(nodeClades);
+		treeCounts[chain]++;
+		int root = tree.getRoot();
+		for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++) {
+			if (i != root) {
+				int size = clades.size();
+				int clade = clades.add(nodeClades[i], 1, tree.getHeight(i));
+				if (clade == size) {
+					// new clade, with all counts (and so its spread) zero so far
+					if (clade == spread.length) {
+						grow();
+					}
+					spreadHistogram[0]++;
+					add(clade, 1);
+				}
+				increment(clade, chain);
+			}
+		}
+	}
+
+	private void grow() {
+		int capacity = Math.max(1024, spread.length * 2);
+		counts = Arrays.copyOf(counts, capacity * chains);
+		spread = Arrays.copyOf(spread, capacity);
+		sd = Arrays.copyOf(sd, capacity);
+		maxCount = Arrays.copyOf(maxCount, capacity);
+	}
+
+	/** add (sign 1) or remove (sign -1) clade to or from the sums for its largest count **/
+	private void add(int clade, int sign) {
+		int m = maxCount[clade];
+		if (m >= cladesByMaxCount.length) {
+			int capacity = cladesByMaxCount.length * 2;
+			cladesByMaxCount = Arrays.copyOf(cladesByMaxCount, capacity);
+			spreadByMaxCount = Arrays.copyOf(spreadByMaxCount, capacity);
+			sdByMaxCount = Arrays.copyOf(sdByMaxCount, capacity);
+		}
+		cladesByMaxCount[m] += sign;
+		spreadByMaxCount[m] += sign * spread[clade];
+		sdByMaxCount[m] += sign * sd[clade];
+		if (m >= threshold) {
+			includedClades += sign;
+			includedSpread += sign * spread[clade];
+			includedSD += sign * sd[clade];
+		}
+	}
+
+	private void increment(int clade, int chain) {
+		int offset = clade * chains;
+		counts[offset + chain]++;
+		add(clade, -1);
+
+		// update spread
+		int min = Integer.MAX_VALUE, max = 0;
+		double sum = 0, sum2 = 0;
+		for (int k = 0; k < chains; k++) {
+			int c = counts[offset + k];
+			min = Math.min(min, c);
+			max = Math.max(max, c);
+			sum += c;
+			sum2 += (double) c * c;
+		}
+		int oldSpread = spread[clade];
+		int newSpread = max - min;
+		if (newSpread != oldSpread) {
+			if (newSpread >= spreadHistogram.length) {
+				spreadHistogram = Arrays.copyOf(spreadHistogram, spreadHistogram.length * 2);
+			}
+			spreadHistogram[oldSpread]--;
+			spreadHistogram[newSpread]++;
+			spread[clade] = newSpread;
+			if (newSpread > maxSpread) {
+				maxSpread = newSpread;
+			}
+			while (maxSpread > 0 && spreadHistogram[maxSpread] == 0) {
+				maxSpread--;
+			}
+		}
+
+		// update standard deviation (with chains - 1 degrees of freedom)
+		double variance = Math.max(0, (sum2 - sum * sum / chains) / (chains - 1));
+		sd[clade] = Math.sqrt(variance);
+
+		maxCount[clade] = max;
+		add(clade, 1);
+	}
+
+	/**
+	 * raise the threshold to the smallest count that is a frequency of at least minFrequency
+	 * in a chain of n trees, removing clades that fall below it from the included sums
+	 */
+	private void updateThreshold(int n) {
+		int count = (int) Math.ceil(minFrequency * n);
+		// correct for rounding of minFrequency * n
+		while (count > 0 && (double) (count - 1) / n >= minFrequency) {
+			count--;
+		}
+		while ((double) count / n < minFrequency) {
+			count++;
+		}
+		// the number of trees only grows, so clades never return above the threshold this way
+		for (; threshold < count; threshold++) {
+			if (threshold < cladesByMaxCount.length) {
+				includedClades -= cladesByMaxCount[threshold];
+				includedSpread -= spreadByMaxCount[threshold];
+				includedSD -= sdByMaxCount[threshold];
+			}
+		}
+	}
+
+	/** number of distinct clades (other than the root clade) observed in any of the chains **/
+	public int getCladeCount() {
+		return clades.size();
+	}
+
+	public int getTreeCount(int chain) {
+		return treeCounts[chain];
+	}
+
+	/** frequency of clade i in chain **/
+	public double getFrequency(int clade, int chain) {
+		return (double) counts[clade * chains + chain] / treeCounts[chain];
+	}
+
+	/** number of trees per chain, assuming chains were advanced in lockstep **/
+	private int getTreesPerChain() {
+		int n = treeCounts[0];
+		for (int k = 1; k < chains; k++) {
+			if (treeCounts[k] != n) {
+				throw new IllegalStateException("Chains have different numbers of trees");
+			}
+		}
+		return n;
+	}
+
+	/** largest difference in clade frequency between any two chains, over all clades **/
+	public double getMaxDifference() {
+		int n = getTreesPerChain();
+		return n == 0 ? 0 : (double) maxSpread / n;
+	}
+
+	/** number of clades with a frequency of at least minFrequency in at least one chain **/
+	public int getIncludedCladeCount() {
+		int n = getTreesPerChain();
+		if (n > 0) {
+			updateThreshold(n);
+		}
+		return includedClades;
+	}
+
+	/**
+	 * difference between largest and smallest clade frequency over chains, averaged over
+	 * clades with a frequency of at least minFrequency in at least one chain
+	 */
+	public double getMeanDifference() {
+		int n = getTreesPerChain();
+		return n == 0 || getIncludedCladeCount() == 0 ? 0 : (double) includedSpread / ((double) n * includedClades);
+	}
+
+	/**
+	 * average standard deviation of split frequencies, over clades with a frequency of at
+	 * least minFrequency in at least one chain
+	 */
+	public double getASDSF() {
+		int n = getTreesPerChain();
+		// includedSD is updated incrementally, so can drift slightly below zero
+		return n == 0 || getIncludedCladeCount() == 0 ? 0 : Math.max(0, includedSD) / ((double) n * includedClades);
+	}
+
+} // class ChainCladeCounts
@@ -0,0 +1,188 @@
+package babel.tools.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Hash table of clades, with clades represented as fixed width arrays of 64 bit words
+ * (bit i set if taxon i is in the clade) instead of BitSet objects.
+ *
+ * Keys are stored in one flat array, and frequency and total height of every clade
+ * are kept in arrays next to it, so adding a clade that was seen before does not
+ * allocate any memory. Clades are numbered in order of first appearance, and
+ * these numbers do not change when the table grows.
+ */
+public class CladeTable {
+	final static int INITIAL_CAPACITY = 1024;
+	/** table is grown when more than LOAD_FACTOR of the slots are used **/
+	final static double LOAD_FACTOR = 0.5;
+
+	/** number of 64 bit words per clade **/
+	final int words;
+	/** clade words, clade i occupying words*i...words*(i+1)-1 **/
+	long [] keys;
+	long [] hashes;
+	int [] frequencies;
+	double [] totalHeights;
+	int size = 0;
+
+	/** open addressing table of clade numbers + 1, 0 meaning empty slot **/
+	int [] slots;
+	int mask;
+
+	/** @param taxonCount number of taxa, which determines the width of clades **/
+	public CladeTable(int taxonCount) {
+		words = Math.max(1, (taxonCount + 63) >>> 6);
+		keys = new long[INITIAL_CAPACITY * words];
+		hashes = new long[INITIAL_CAPACITY];
+		frequencies = new int[INITIAL_CAPACITY];
+		totalHeights = new double[INITIAL_CAPACITY];
+		slots = new int[INITIAL_CAPACITY * 2];
+		mask = slots.length - 1;
+	}
+
+	/** number of words used to represent a clade **/
+	public int getWordCount() {
+		return words;
+	}
+
+	/** number of distinct clades in the table **/
+	public int size() {
+		return size;
+	}
+
+	static long hash(long [] clade, int words) {
+		long h = 0x9E3779B97F4A7C15L;
+		for (int k = 0; k < words; k++) {
+			h ^= clade[k];
+			h *= 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		return h;
+	}
+
+	/** @return index of clade, or -1 if the clade is not in the table **/
+	public int indexOf(long [] clade) {
+		return indexOf(clade, hash(clade, words));
+	}
+
+	private int indexOf(long [] clade, long hash) {
+		int slot = (int) hash & mask;
+		while (slots[slot] != 0) {
+			int i = slots[slot] - 1;
+			if (hashes[i] == hash && equals(clade, i)) {
+				return i;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean equals(long [] clade, int i) {
+		int offset = i * words;
+		for (int k = 0; k < words; k++) {
+			if (keys[offset + k] != clade[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * add observation of a clade
+	 * @param clade array of (at least) getWordCount() words; the array is copied when the clade is new
+	 * @param frequency number of observations to add
+	 * @param totalHeight sum of heights of the observations
+	 * @return index of the clade
+	 */
+	public int add(long [] clade, int frequency, double totalHeight) {
+		long hash = hash(clade, words);
+		int i = indexOf(clade, hash);
+		if (i < 0) {
+			i = insert(clade, hash);
+		}
+		frequencies[i] += frequency;
+		totalHeights[i] += totalHeight;
+		return i;
+	}
+
+	private int insert(long [] clade, long hash) {
+		if (size == hashes.length) {
+			int capacity = size * 2;
+			keys = Arrays.copyOf(keys, capacity * words);
+			hashes = Arrays.copyOf(hashes, capacity);
+			frequencies = Arrays.copyOf(frequencies, capacity);
+			totalHeights = Arrays.copyOf(totalHeights, capacity);
+		}
+		int i = size++;
+		System.arraycopy(clade, 0, keys, i * words, words);
+		hashes[i] = hash;
+		if (size > slots.length * LOAD_FACTOR) {
+			rehash(slots.length * 2);
+		} else {
+			placeInSlot(i);
+		}
+		return i;
+	}
+
+	private void placeInSlot(int i) {
+		int slot = (int) hashes[i] & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = i + 1;
+	}
+
+	private void rehash(int slotCount) {
+		slots = new int[slotCount];
+		mask = slotCount - 1;
+		for (int i = 0; i < size; i++) {
+			placeInSlot(i);
+		}
+	}
+
+	public int getFrequency(int i) {
+		return frequencies[i];
+	}
+
+	public double getTotalHeight(int i) {
+		return totalHeights[i];
+	}
+
+	public double getMeanHeight(int i) {
+		return totalHeights[i] / frequencies[i];
+	}
+
+	/** copy words of clade i into clade **/
+	public void getClade(int i, long [] clade) {
+		System.arraycopy(keys, i * words, clade, 0, words);
+	}
+
+	/** @return true if taxon is in clade i **/
+	public boolean contains(int i, int taxon) {
+		return (keys[i * words + (taxon >>> 6)] & (1L << (taxon & 63))) != 0;
+	}
+
+	/** number of taxa in clade i **/
+	public int cardinality(int i) {
+		int n = 0;
+		int offset = i * words;
+		for (int k = 0; k < words; k++) {
+			n += Long.bitCount(keys[offset + k]);
+		}
+		return n;
+	}
+
+	public BitSet toBitSet(int i) {
+		return BitSet.valueOf(Arrays.copyOfRange(keys, i * words, (i + 1) * words));
+	}
+
+	/** convert BitSet to clade words, e.g. for use with indexOf **/
+	public long [] toWords(BitSet bits) {
+		long [] clade = new long[words];
+		long [] w = bits.toLongArray();
+		System.arraycopy(w, 0, clade, 0, Math.min(w.length, words));
+		return clade;
+	}
+
+} // class CladeTable
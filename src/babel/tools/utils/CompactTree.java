@@ -0,0 +1,136 @@
+package babel.tools.utils;
+
+import java.util.Arrays;
+
+/**
+ * Array based representation of a binary tree with only topology and node heights,
+ * for post-processing tools that do not need Node objects, meta data or taxon sets.
+ *
+ * Leaves are numbered 0,...,leafCount-1 by taxon index (the order of the taxon set of the
+ * tree file), and internal nodes leafCount,...,nodeCount-1 in post-order, so children
+ * always have lower numbers than their parents and the root is the last node.
+ *
+ * Arrays are reused when a tree is parsed into an existing CompactTree, so processing
+ * a tree set does not need to allocate memory for every tree.
+ */
+public class CompactTree {
+	int leafCount;
+	int nodeCount;
+	int root;
+	int [] parent;
+	int [] left;
+	int [] right;
+	double [] height;
+
+	public CompactTree(int leafCount) {
+		setLeafCount(leafCount);
+	}
+
+	/** make sure there is room for a tree with leafCount leaves **/
+	void setLeafCount(int leafCount) {
+		this.leafCount = leafCount;
+		int n = 2 * leafCount - 1;
+		if (parent == null || parent.length < n) {
+			parent = new int[n];
+			left = new int[n];
+			right = new int[n];
+			height = new double[n];
+		}
+		Arrays.fill(parent, -1);
+		Arrays.fill(left, -1);
+		Arrays.fill(right, -1);
+		nodeCount = leafCount;
+		root = -1;
+	}
+
+	public int getLeafNodeCount() {
+		return leafCount;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getInternalNodeCount() {
+		return nodeCount - leafCount;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	public boolean isLeaf(int node) {
+		return node < leafCount;
+	}
+
+	/** @return parent of node, or -1 for the root **/
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	public int getLeft(int node) {
+		return left[node];
+	}
+
+	public int getRight(int node) {
+		return right[node];
+	}
+
+	public double getHeight(int node) {
+		return height[node];
+	}
+
+	public double getRootHeight() {
+		return height[root];
+	}
+
+	/** number of 64 bit words required to represent a clade as bit set **/
+	public int getCladeWordCount() {
+		return (leafCount + 63) >>> 6;
+	}
+
+	/**
+	 * Calculate clades of all nodes as bit sets of taxon indices.
+	 * @param clades array of at least nodeCount arrays of getCladeWordCount() words,
+	 *        which can be reused between trees
+	 */
+	public void getClades(long [][] clades) {
+		for (int i = 0; i < leafCount; i++) {
+			long [] clade = clades[i];
+			Arrays.fill(clade, 0);
+			clade[i >>> 6] = 1L << (i & 63);
+		}
+		// post-order numbering guarantees children are done before their parents
+		for (int i = leafCount; i < nodeCount; i++) {
+			long [] clade = clades[i];
+			long [] l = clades[left[i]];
+			long [] r = clades[right[i]];
+			for (int k = 0; k < clade.length; k++) {
+				clade[k] = l[k] | r[k];
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		toNewick(root, b);
+		return b.toString();
+	}
+
+	private void toNewick(int node, StringBuilder b) {
+		if (isLeaf(node)) {
+			b.append(node);
+		} else {
+			b.append('(');
+			toNewick(left[node], b);
+			b.append(',');
+			toNewick(right[node], b);
+			b.append(')');
+		}
+		if (parent[node] >= 0) {
+			b.append(':').append(height[parent[node]] - height[node]);
+		}
+	}
+
+} // class CompactTree
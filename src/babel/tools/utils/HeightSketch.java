@@ -0,0 +1,202 @@
+package babel.tools.utils;
+
+import java.util.Arrays;
+
+/**
+ * Streaming summary of a set of values (e.g. heights of a clade in a tree set)
+ * that uses bounded memory: running mean and variance, and a KLL quantile sketch
+ * (Karnin, Lang and Liberty, Optimal quantile approximation in streams, 2016).
+ *
+ * Up to k values are kept exactly, so quantiles are exact for small samples. Beyond
+ * that, memory is O(k) and the rank error of quantiles is roughly 1.7/k^0.9 (about 1%
+ * for k=200). Sketches can be merged, e.g. when clade sets are built in multiple threads.
+ */
+public class HeightSketch {
+	public final static int DEFAULT_SIZE = 200;
+	/** ratio of capacities of consecutive levels **/
+	final static double CAPACITY_RATIO = 2.0 / 3.0;
+
+	final int k;
+
+	long count = 0;
+	double mean = 0, m2 = 0;
+	double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+	/** items at level h represent 2^h values each **/
+	double [][] levels;
+	int [] sizes;
+	/**
+	 * state of the splitmix64 generator that decides whether odd or even items survive
+	 * compaction; a fixed seed so results are reproducible, and a plain long instead of
+	 * a Random object since there is a sketch per clade
+	 */
+	long coin = 1;
+
+	public HeightSketch() {
+		this(DEFAULT_SIZE);
+	}
+
+	/** @param k accuracy parameter: number of values kept exactly, larger is more accurate **/
+	public HeightSketch(int k) {
+		this.k = Math.max(8, k);
+		levels = new double[1][];
+		levels[0] = new double[Math.min(16, this.k)];
+		sizes = new int[1];
+	}
+
+	public void add(double value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+
+		append(0, value);
+		compress();
+	}
+
+	/** add values of other sketch to this one **/
+	public void merge(HeightSketch other) {
+		if (other.count == 0) {
+			return;
+		}
+		// combine means and variances (Chan et al.)
+		long n = count + other.count;
+		double delta = other.mean - mean;
+		m2 += other.m2 + delta * delta * count * other.count / n;
+		mean += delta * other.count / n;
+		count = n;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+		compress();
+	}
+
+	private void append(int level, double value) {
+		while (level >= levels.length) {
+			levels = Arrays.copyOf(levels, levels.length + 1);
+			sizes = Arrays.copyOf(sizes, sizes.length + 1);
+			levels[levels.length - 1] = new double[8];
+		}
+		if (sizes[level] == levels[level].length) {
+			levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+		}
+		levels[level][sizes[level]++] = value;
+	}
+
+	private int capacity(int level) {
+		int depth = levels.length - 1 - level;
+		return Math.max(2, (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+	}
+
+	/** compact levels that are over capacity, promoting half of their items to the next level **/
+	private void compress() {
+		for (int h = 0; h < levels.length && retainedItems() > totalCapacity(); h++) {
+			if (sizes[h] >= capacity(h)) {
+				double [] level = levels[h];
+				int size = sizes[h];
+				Arrays.sort(level, 0, size);
+				int start = flipCoin();
+				// odd number of items: keep the last one at this level
+				int end = size % 2 == 0 ? size : size - 1;
+				for (int i = start; i < end; i += 2) {
+					append(h + 1, level[i]);
+				}
+				if (end < size) {
+					level[0] = level[end];
+					sizes[h] = 1;
+				} else {
+					sizes[h] = 0;
+				}
+			}
+		}
+	}
+
+	/** @return 0 or 1, from the top bit of the next splitmix64 output **/
+	private int flipCoin() {
+		long z = (coin += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int) ((z ^ (z >>> 31)) >>> 63);
+	}
+
+	private int retainedItems() {
+		int n = 0;
+		for (int size : sizes) {
+			n += size;
+		}
+		return n;
+	}
+
+	private int totalCapacity() {
+		int n = 0;
+		for (int h = 0; h < levels.length; h++) {
+			n += capacity(h);
+		}
+		return n;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public double getVariance() {
+		return count > 1 ? m2 / (count - 1) : 0;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @param q quantile, between 0 and 1
+	 * @return (approximately) the value at position floor(q * count) in the sorted values,
+	 * which is exact as long as no more than k values were added
+	 */
+	public double quantile(double q) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		int n = retainedItems();
+		double [] values = new double[n];
+		long [] weights = new long[n];
+		int j = 0;
+		for (int h = 0; h < levels.length; h++) {
+			for (int i = 0; i < sizes[h]; i++) {
+				values[j] = levels[h][i];
+				weights[j] = 1L << h;
+				j++;
+			}
+		}
+		Integer [] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Double.compare(values[i1], values[i2]));
+
+		long target = (long) (q * count);
+		long cumulative = 0;
+		for (int i : order) {
+			cumulative += weights[i];
+			if (cumulative > target) {
+				return values[i];
+			}
+		}
+		return max;
+	}
+
+} // class HeightSketch
@@ -1,134 +1,221 @@
 package babel.tools.utils;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
 
+import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 
 public class MemoryFriendlyTreeSet extends TreeFileParser {
 //	Tree [] trees;
 //	int current = 0;
-	int lineNr;
     //public Map<String, String> translationMap = null;
     //public List<String> taxa;
 
     // label count origin for NEXUS trees
     int origin = -1;
 
-    BufferedReader fin;
+    /** index of tree statements in the file, built in a single pass **/
+    TreeSetSource source;
+    /** buffer for tree statements parsed into CompactTrees **/
+    byte [] buffer;
+
+    /** interval at which a followed file is checked for new trees, in milliseconds **/
+    final static long POLL_INTERVAL = 1000;
+    /** whether taxa still have to be set up once the header of a followed file is written **/
+    boolean headerPending = false;
 
     public MemoryFriendlyTreeSet(String inputFileName, int burninPercentage) throws IOException  {
+    	this(inputFileName, burninPercentage, false);
+    }
+
+    /**
+     * @param follow whether the file may still be growing, e.g. when it is written by a running MCMC chain.
+     * Trees appended later are picked up by refresh() or waitForTrees(). Burn-in is based on the number
+     * of trees in the file at the time the tree set is created. If the translate block, or the first tree
+     * when there is none, is not written yet, taxa are only available once waitForTrees() returned true.
+     */
+    public MemoryFriendlyTreeSet(String inputFileName, int burninPercentage, boolean follow) throws IOException  {
     	super(inputFileName, burninPercentage);
-		countTrees(inputFileName, burninPercentage);
-        fin = new BufferedReader(new FileReader(inputFileName));
-	}
+    	if (follow) {
+    		// an index would be out of date as soon as the file grows
+    		source = new TreeSetSource(inputFileName, true);
+    		if (source.hasHeader()) {
+    			initFromSource();
+    		} else {
+    			headerPending = true;
+    		}
+    	} else {
+    		source = readIndex(inputFileName);
+    		if (source == null) {
+    			source = new TreeSetSource(inputFileName);
+    			initFromSource();
+    			writeIndex(inputFileName, source);
+    		}
+    	}
 
+        burninCount = Math.max(0, (burninPercentage * totalTrees)/100);
 
-	@Override
-	public void reset() throws FileNotFoundException  {
-		currentTree = 0;
-        fin = new BufferedReader(new FileReader(new File(fileName)));
-        lineNr = 0;
-        try {
-            if (isNexus) {
-                while (currentTree < burninCount && fin.ready()) {
-        			String str = nextLine();
-                    if (str == null) {
-                        return;
-                    }
-                    if (str.trim().toLowerCase().startsWith("tree ")) {
-                    	currentTree++;
-                    }
-                }
-            } else {
-                while (fin.ready() && currentTree < burninCount) {
-                    final String str = nextLine();
-                    if (str == null) {
-                        return;
-                    }
-                    if (str.trim().length() > 2 && !str.trim().startsWith("#")) {
-                    	currentTree++;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Around line " + lineNr + "\n" + e.getMessage());
-        }
-    } // parseFile
+        Log.warning("Processing " + (totalTrees - burninCount) + " trees from file" +
+                (burninPercentage > 0 ? " after ignoring first " + burninPercentage + "% = " + burninCount + " trees." : "."));
+	}
 
     /**
-     * read next line from Nexus file that is not a comment and not empty 
-     * @throws IOException *
+     * create tree set that shares taxa and tree statements with another tree set,
+     * e.g. to parse trees of the same file in another thread
      */
-    String nextLine() throws IOException  {
-        String str = readLine();
-        if (str == null) {
-            return null;
-        }
-        if (str.matches("^\\s*\\[.*")) {
-            final int start = str.indexOf('[');
-            int end = str.indexOf(']', start);
-            while (end < 0) {
-                str += readLine();
-                end = str.indexOf(']', start);
-            }
-            str = str.substring(0, start) + str.substring(end + 1);
-            if (str.matches("^\\s*$")) {
-                return nextLine();
-            }
-        }
-        if (str.matches("^\\s*$")) {
-            return nextLine();
-        }
-        return str;
+    public MemoryFriendlyTreeSet(MemoryFriendlyTreeSet other) {
+    	super(other);
+    	source = other.source;
+    	totalTrees = other.totalTrees;
+    	burninCount = other.burninCount;
     }
 
-    /**
-     * read line from nexus file *
-     */
-    String readLine() throws IOException {
-        if (!fin.ready()) {
-            return null;
-        }
-        lineNr++;
-        return fin.readLine();
+    /** set up taxa from the tree statement index, instead of counting trees **/
+    void initFromSource() throws IOException {
+    	isNexus = source.isNexus();
+    	totalTrees = source.getTreeCount();
+    	String translateBlock = source.getTranslateBlock();
+    	if (translateBlock != null) {
+    		parseTranslateBlock(new BufferedReader(new StringReader(translateBlock)));
+    	} else if (totalTrees > 0) {
+    		// no translate block, so taxa names are in the trees
+    		String str = source.getTree(0);
+    		if (str.indexOf('(') > 0) {
+    			str = str.substring(str.indexOf('('));
+    		}
+    		collectTaxaNames(str);
+    	}
+    }
+
+	@Override
+	public void reset() {
+		// burn-in is skipped by jumping straight to the first tree after burn-in
+		currentTree = burninCount;
     }
-    
+
+	/** skip the next n trees, e.g. for thinning **/
+	public void skip(int n) {
+		currentTree = Math.min(totalTrees, currentTree + n);
+	}
+
+	/** number of trees after burn-in **/
+	public int size() {
+		return totalTrees - burninCount;
+	}
+
+	/**
+	 * pick up trees appended to a followed file since the last refresh
+	 * @return number of new trees
+	 */
+	public int refresh() throws IOException {
+		int count = source.refresh();
+		if (headerPending) {
+			if (!source.hasHeader()) {
+				return 0;
+			}
+			initFromSource();
+			headerPending = false;
+		}
+		totalTrees = source.getTreeCount();
+		return count;
+	}
+
+	/** whether no more trees are expected: the file is not followed, or the chain finished writing it **/
+	public boolean isComplete() {
+		return source.isComplete();
+	}
+
+	/**
+	 * wait until new trees are appended to a followed file
+	 * @param timeout maximum time to wait, in milliseconds
+	 * @return true if there are trees available, false if the file is complete or the timeout expired
+	 */
+	public boolean waitForTrees(long timeout) throws IOException {
+		long end = System.currentTimeMillis() + timeout;
+		while (!hasNext()) {
+			refresh();
+			if (hasNext()) {
+				break;
+			}
+			if (isComplete() || System.currentTimeMillis() >= end) {
+				return false;
+			}
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		return true;
+	}
+
+	/** whether trees can be read in any order at little cost, e.g. by threads reading blocks of trees **/
+	public boolean isRandomAccess() {
+		return source.isRandomAccess();
+	}
+
+	/** number of trees in the file, including burn-in **/
+	public int getTreeCount() {
+		return totalTrees;
+	}
+
+	/** index in the file of the tree returned by the next call to next() **/
+	public int getPosition() {
+		return currentTree;
+	}
+
 	@Override
 	public boolean hasNext() {
 		return currentTree < totalTrees;
 	}
-	
+
 	@Override
 	public Tree next() throws IOException {
-		String str = nextLine();
-		if (str == null) {
+		if (currentTree >= totalTrees) {
 			return null;
 		}
-		Node root = null;
-		if (isNexus) {
-            if (str.trim().toLowerCase().startsWith("tree ")) {
-				root = parseNewick(str);
-            }
-		} else {
-			if (str.trim().length() > 2 && !str.trim().startsWith("#")) {
-				root = parseNewick(str);
-			}
+		return get(currentTree++);
+	}
+
+	/** random access to tree i in the file, counting from the start of the file (so including burn-in) **/
+	public Tree get(int i) throws IOException {
+		return toTree(source.getTree(i));
+	}
+
+	/**
+	 * next tree as CompactTree, which is much cheaper than next() when only topology and heights are required
+	 * @param tree tree to reuse, or null to create a new one
+	 */
+	public CompactTree nextCompact(CompactTree tree) throws IOException {
+		if (currentTree >= totalTrees) {
+			return null;
 		}
-		if (root != null) {
-			double h = getMaxHeight(root);
-			normalise(root, h);
-			Tree tree = new Tree(root);
-			tree.m_taxonset.setValue(taxonset, tree);
-			currentTree++;
-			return tree;
+		return getCompact(currentTree++, tree);
+	}
+
+	/** random access to tree i in the file as CompactTree **/
+	public CompactTree getCompact(int i, CompactTree tree) throws IOException {
+		buffer = source.getTreeBytes(i, buffer);
+		return parseCompact(buffer, source.getTreeLength(i), tree);
+	}
+
+	/** convert tree statement to tree **/
+	Tree toTree(String str) {
+		Node root = parseNewick(str);
+		if (root == null) {
+			return null;
 		}
+		double h = getMaxHeight(root);
+		normalise(root, h);
+		Tree tree = new Tree(root);
+		tree.m_taxonset.setValue(taxonset, tree);
+		return tree;
+	}
 
-		return next();
-	} 
-} // class MemoryFriendlyTreeSet
\ No newline at end of file
+	public void close() throws IOException {
+		source.close();
+	}
+} // class MemoryFriendlyTreeSet
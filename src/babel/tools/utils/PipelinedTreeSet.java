@@ -0,0 +1,279 @@
+package babel.tools.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Tree set that parses trees in a pipeline:
+ * a reader thread slices tree statements from the file into a bounded queue,
+ * a number of worker threads parse them into trees, and next() returns the
+ * trees in the order they appear in the file.
+ *
+ * At most queueDepth trees are in the pipeline at any time, so memory use is
+ * bounded irrespective of the size of the tree file.
+ */
+public class PipelinedTreeSet extends MemoryFriendlyTreeSet {
+	final static int DEFAULT_QUEUE_DEPTH_PER_THREAD = 64;
+
+	/** tree statement with its position in the file **/
+	final static class RawTree {
+		final int index;
+		final String statement;
+		RawTree(int index, String statement) {
+			this.index = index;
+			this.statement = statement;
+		}
+	}
+	final static RawTree END_OF_TREES = new RawTree(-1, null);
+
+	int threads;
+	int queueDepth;
+
+	/** running pipeline, null if none **/
+	Pipeline pipeline;
+
+	public PipelinedTreeSet(String inputFileName, int burninPercentage, int threads) throws IOException {
+		this(inputFileName, burninPercentage, threads, DEFAULT_QUEUE_DEPTH_PER_THREAD * Math.max(1, threads));
+	}
+
+	public PipelinedTreeSet(String inputFileName, int burninPercentage, int threads, int queueDepth) throws IOException {
+		this(inputFileName, burninPercentage, false, threads, queueDepth);
+	}
+
+	public PipelinedTreeSet(String inputFileName, int burninPercentage, boolean follow, int threads) throws IOException {
+		this(inputFileName, burninPercentage, follow, threads, DEFAULT_QUEUE_DEPTH_PER_THREAD * Math.max(1, threads));
+	}
+
+	public PipelinedTreeSet(String inputFileName, int burninPercentage, boolean follow, int threads, int queueDepth) throws IOException {
+		super(inputFileName, burninPercentage, follow);
+		this.threads = Math.max(1, threads);
+		this.queueDepth = Math.max(1, queueDepth);
+	}
+
+	/**
+	 * Reader and worker threads parsing trees first,...,end-1. Threads are never interrupted,
+	 * since interrupting a thread doing I/O on a FileChannel closes the channel shared by all
+	 * copies of the tree set. Instead, they check a cancel flag and receive poison pills.
+	 */
+	final class Pipeline {
+		final int end;
+		final BlockingQueue<RawTree> queue;
+		/** parsed trees waiting to be consumed, keyed on index in the file **/
+		final Map<Integer, Tree> parsed = new HashMap<>();
+		/** limits number of trees in the pipeline **/
+		final Semaphore available;
+		final Thread reader;
+		final Thread [] workers;
+		volatile boolean cancelled = false;
+		volatile Throwable failure;
+		/** index of the next tree to be consumed; trees below it are dropped. Guarded by parsed **/
+		int position;
+
+		Pipeline(int first, int end) {
+			this.end = end;
+			position = first;
+			// room for the poison pills on top of the trees in the pipeline, so the reader never blocks on the queue
+			queue = new ArrayBlockingQueue<>(queueDepth + threads);
+			available = new Semaphore(queueDepth);
+
+			reader = new Thread(() -> {
+				try {
+					for (int i = first; i < end; i++) {
+						available.acquire();
+						if (cancelled) {
+							break;
+						}
+						queue.put(new RawTree(i, source.getTree(i)));
+					}
+				} catch (InterruptedException e) {
+					// not expected, since threads are not interrupted
+				} catch (Throwable e) {
+					fail(e);
+				}
+				for (int i = 0; i < threads; i++) {
+					queue.offer(END_OF_TREES);
+				}
+			}, "tree-reader");
+			reader.setDaemon(true);
+
+			workers = new Thread[threads];
+			for (int k = 0; k < threads; k++) {
+				// every worker has its own parser, since parsers keep state while parsing
+				final MemoryFriendlyTreeSet parser = new MemoryFriendlyTreeSet(PipelinedTreeSet.this);
+				workers[k] = new Thread(() -> {
+					try {
+						while (true) {
+							RawTree raw = queue.take();
+							if (raw == END_OF_TREES) {
+								return;
+							}
+							if (cancelled) {
+								continue;
+							}
+							Tree tree = parser.toTree(raw.statement);
+							synchronized (parsed) {
+								if (raw.index < position) {
+									// skipped while being parsed
+									available.release();
+								} else {
+									parsed.put(raw.index, tree);
+									parsed.notifyAll();
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						// not expected, since threads are not interrupted
+					} catch (Throwable e) {
+						fail(e);
+					}
+				}, "tree-parser-" + k);
+				workers[k].setDaemon(true);
+			}
+
+			reader.start();
+			for (Thread worker : workers) {
+				worker.start();
+			}
+		}
+
+		private void fail(Throwable e) {
+			failure = e;
+			synchronized (parsed) {
+				parsed.notifyAll();
+			}
+		}
+
+		/** wait for tree i, dropping trees between the previous tree taken and i **/
+		Tree take(int i) throws IOException {
+			Tree tree;
+			synchronized (parsed) {
+				while (position < i) {
+					if (parsed.remove(position) != null) {
+						available.release();
+					}
+					position++;
+				}
+				while (!parsed.containsKey(i)) {
+					if (failure != null) {
+						throw new IOException("Could not parse tree " + i + ": " + failure.getMessage(), failure);
+					}
+					try {
+						parsed.wait();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				tree = parsed.remove(i);
+				position = i + 1;
+			}
+			available.release();
+			return tree;
+		}
+
+		/** let threads finish what they are doing, and wait till they are done **/
+		void stop() {
+			cancelled = true;
+			// wake up the reader if it waits for room in the pipeline
+			available.release(queueDepth + 1);
+			join(reader);
+			// the reader has finished, so the only trees left in the queue are ones nobody wants
+			queue.clear();
+			for (int i = 0; i < threads; i++) {
+				queue.offer(END_OF_TREES);
+			}
+			for (Thread worker : workers) {
+				join(worker);
+			}
+		}
+	}
+
+	/** wait for thread to finish, keeping the interrupt status of the calling thread **/
+	private static void join(Thread thread) {
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** stop reader and worker threads, if any **/
+	private void stop() {
+		if (pipeline != null) {
+			pipeline.stop();
+			pipeline = null;
+		}
+	}
+
+	@Override
+	public void reset() {
+		stop();
+		super.reset();
+	}
+
+	@Override
+	public void skip(int n) {
+		super.skip(n);
+		// trees skipped are dropped from the pipeline when the next tree is taken,
+		// unless the pipeline is so far behind that starting a new one is cheaper
+		if (pipeline != null && currentTree - pipeline.position > queueDepth) {
+			stop();
+		}
+	}
+
+	@Override
+	public Tree next() throws IOException {
+		if (currentTree >= totalTrees) {
+			return null;
+		}
+		if (pipeline == null || currentTree >= pipeline.end) {
+			// trees may have been added by a refresh since the pipeline started
+			stop();
+			pipeline = new Pipeline(currentTree, totalTrees);
+		}
+		Tree tree;
+		try {
+			tree = pipeline.take(currentTree);
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+		currentTree++;
+		if (currentTree >= pipeline.end) {
+			stop();
+		}
+		return tree;
+	}
+
+	@Override
+	public int refresh() throws IOException {
+		// a running pipeline continues up to the trees present when it started,
+		// and next() starts a new one for trees added since
+		return super.refresh();
+	}
+
+	@Override
+	public CompactTree nextCompact(CompactTree tree) throws IOException {
+		// compact trees are cheap to parse, so are not worth the pipeline
+		stop();
+		return super.nextCompact(tree);
+	}
+
+	@Override
+	public void close() throws IOException {
+		stop();
+		super.close();
+	}
+
+} // class PipelinedTreeSet
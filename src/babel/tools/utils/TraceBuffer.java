@@ -0,0 +1,171 @@
+package babel.tools.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table of trace values, with one row added per sample (e.g. per tree in a tree set).
+ *
+ * Values are stored column by column in primitive chunks of CHUNK_SIZE rows, so the
+ * table grows without copying or boxing. When more than maxValuesInMemory values are
+ * held, complete chunks are spilled to a temporary file, in which every chunk is stored
+ * as its columns one after another. That way memory use stays flat for long traces with
+ * many columns, and a column or chunk can be read back without reading whole rows.
+ *
+ * Methods are synchronized, so traces can be read (e.g. to report ESSs or save a log)
+ * while another thread adds rows. Rows below size() never change.
+ */
+public class TraceBuffer implements Closeable {
+	public final static int CHUNK_SIZE = 4096;
+	/** 4M values, i.e. 32MB per buffer **/
+	public final static long DEFAULT_MAX_VALUES_IN_MEMORY = 1L << 22;
+
+	final int columnCount;
+	final long maxValuesInMemory;
+
+	/** chunks indexed by chunk number, then column; null for chunks that are spilled **/
+	private final List<double [][]> chunks = new ArrayList<>();
+	private int size = 0;
+	/** number of chunks in memory **/
+	private int chunksInMemory = 0;
+
+	private File spillFile;
+	private FileChannel spillChannel;
+	/** holds one column of a chunk while spilling or reading back **/
+	private ByteBuffer ioBuffer;
+
+	public TraceBuffer(int columnCount) {
+		this(columnCount, DEFAULT_MAX_VALUES_IN_MEMORY);
+	}
+
+	/**
+	 * @param columnCount number of values per row
+	 * @param maxValuesInMemory number of values above which complete chunks are spilled to disk
+	 */
+	public TraceBuffer(int columnCount, long maxValuesInMemory) {
+		this.columnCount = columnCount;
+		this.maxValuesInMemory = maxValuesInMemory;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	/** number of rows **/
+	public synchronized int size() {
+		return size;
+	}
+
+	/** add a row of at least getColumnCount() values **/
+	public synchronized void add(double [] row) throws IOException {
+		int i = size % CHUNK_SIZE;
+		if (i == 0) {
+			chunks.add(new double[columnCount][CHUNK_SIZE]);
+			chunksInMemory++;
+		}
+		double [][] chunk = chunks.get(chunks.size() - 1);
+		for (int j = 0; j < columnCount; j++) {
+			chunk[j][i] = row[j];
+		}
+		size++;
+		if (i == CHUNK_SIZE - 1 && (long) chunksInMemory * CHUNK_SIZE * columnCount > maxValuesInMemory) {
+			spill();
+		}
+	}
+
+	/** write chunks that are in memory, which are all complete, to the spill file **/
+	private void spill() throws IOException {
+		if (spillChannel == null) {
+			spillFile = File.createTempFile("trace", ".bin");
+			spillFile.deleteOnExit();
+			spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			ioBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE * Double.BYTES);
+		}
+		for (int k = chunks.size() - chunksInMemory; k < chunks.size(); k++) {
+			double [][] chunk = chunks.get(k);
+			for (int j = 0; j < columnCount; j++) {
+				ioBuffer.clear();
+				ioBuffer.asDoubleBuffer().put(chunk[j]);
+				long position = offset(k, j);
+				while (ioBuffer.hasRemaining()) {
+					position += spillChannel.write(ioBuffer, position);
+				}
+			}
+			chunks.set(k, null);
+		}
+		chunksInMemory = 0;
+	}
+
+	/** position of column of chunk in the spill file **/
+	private long offset(int chunk, int column) {
+		return ((long) chunk * columnCount + column) * CHUNK_SIZE * Double.BYTES;
+	}
+
+	/** number of chunks, the last of which may be partly filled **/
+	public synchronized int getChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * copy values of column in chunk into values, which needs room for CHUNK_SIZE values
+	 * @return number of valid values in the chunk
+	 */
+	public synchronized int getChunk(int chunk, int column, double [] values) throws IOException {
+		int n = Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+		double [][] c = chunks.get(chunk);
+		if (c != null) {
+			System.arraycopy(c[column], 0, values, 0, n);
+			return n;
+		}
+		ioBuffer.clear();
+		long position = offset(chunk, column);
+		while (ioBuffer.hasRemaining()) {
+			int read = spillChannel.read(ioBuffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of trace spill file " + spillFile.getPath());
+			}
+			position += read;
+		}
+		ioBuffer.flip();
+		DoubleBuffer doubles = ioBuffer.asDoubleBuffer();
+		doubles.get(values, 0, n);
+		return n;
+	}
+
+	/** @return copy of the first n values of column, n at most size() **/
+	public synchronized double [] getColumn(int column, int n) throws IOException {
+		double [] values = new double[n];
+		double [] chunk = new double[CHUNK_SIZE];
+		for (int k = 0; k * CHUNK_SIZE < n; k++) {
+			getChunk(k, column, chunk);
+			System.arraycopy(chunk, 0, values, k * CHUNK_SIZE, Math.min(CHUNK_SIZE, n - k * CHUNK_SIZE));
+		}
+		return values;
+	}
+
+	/** @return copy of column **/
+	public synchronized double [] getColumn(int column) throws IOException {
+		return getColumn(column, size);
+	}
+
+	/** release memory and remove spill file, if any **/
+	@Override
+	public synchronized void close() throws IOException {
+		chunks.clear();
+		chunksInMemory = 0;
+		size = 0;
+		if (spillChannel != null) {
+			spillChannel.close();
+			spillChannel = null;
+			spillFile.delete();
+		}
+	}
+
+} // class TraceBuffer
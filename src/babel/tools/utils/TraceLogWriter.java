@@ -0,0 +1,87 @@
+package babel.tools.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes trace buffers side by side as tab separated file that can be read by Tracer.
+ * Rows are written chunk by chunk, so only one chunk of every column needs to be in
+ * memory at a time, even when the buffers were spilled to disk.
+ */
+public class TraceLogWriter {
+	private final List<TraceBuffer> buffers = new ArrayList<>();
+	private final List<String []> labels = new ArrayList<>();
+
+	/** add buffer, with one label for each of its columns **/
+	public void add(TraceBuffer buffer, String... labels) {
+		if (labels.length != buffer.getColumnCount()) {
+			throw new IllegalArgumentException("Expected " + buffer.getColumnCount() + " labels, but got " + labels.length);
+		}
+		buffers.add(buffer);
+		this.labels.add(labels);
+	}
+
+	/** number of rows all buffers have values for **/
+	public int getRowCount() {
+		int min = Integer.MAX_VALUE;
+		for (TraceBuffer buffer : buffers) {
+			min = Math.min(min, buffer.size());
+		}
+		return buffers.size() == 0 ? 0 : min;
+	}
+
+	/**
+	 * write rows all buffers have values for to file
+	 * @return number of rows written
+	 */
+	public int write(File file) throws IOException {
+		int rowCount = getRowCount();
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		write(out, rowCount);
+		out.close();
+		return rowCount;
+	}
+
+	/** write header and first rowCount rows, which should not exceed getRowCount() **/
+	public void write(PrintStream out, int rowCount) throws IOException {
+		// header
+		out.print("Sample\t");
+		for (String [] columnLabels : labels) {
+			for (String label : columnLabels) {
+				out.print(label + "\t");
+			}
+		}
+		out.println();
+
+		// tab separated data
+		double [][][] chunks = new double[buffers.size()][][];
+		for (int b = 0; b < chunks.length; b++) {
+			chunks[b] = new double[buffers.get(b).getColumnCount()][TraceBuffer.CHUNK_SIZE];
+		}
+		StringBuilder row = new StringBuilder();
+		for (int k = 0; k * TraceBuffer.CHUNK_SIZE < rowCount; k++) {
+			for (int b = 0; b < chunks.length; b++) {
+				for (int j = 0; j < chunks[b].length; j++) {
+					buffers.get(b).getChunk(k, j, chunks[b][j]);
+				}
+			}
+			int n = Math.min(TraceBuffer.CHUNK_SIZE, rowCount - k * TraceBuffer.CHUNK_SIZE);
+			for (int i = 0; i < n; i++) {
+				row.setLength(0);
+				row.append(k * TraceBuffer.CHUNK_SIZE + i).append('\t');
+				for (double [][] chunk : chunks) {
+					for (double [] column : chunk) {
+						row.append(column[i]).append('\t');
+					}
+				}
+				out.println(row);
+			}
+		}
+	}
+
+} // class TraceLogWriter
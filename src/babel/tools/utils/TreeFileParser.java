@@ -21,13 +21,21 @@
 package babel.tools.utils;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
@@ -83,6 +91,26 @@ public class TreeFileParser {
 		this.fileName = sFileName;
 	} // c'tor
 
+	/** create parser that shares taxa with another parser, e.g. for parsing trees in another thread **/
+	TreeFileParser(TreeFileParser other) {
+		m_sLabels = other.m_sLabels;
+		m_fLongitude = other.m_fLongitude;
+		m_fLatitude = other.m_fLatitude;
+		m_nNrOfLabels = other.m_nNrOfLabels;
+		m_nOffset = other.m_nOffset;
+		m_nBurnIn = other.m_nBurnIn;
+		m_bIsLabelledNewick = other.m_bIsLabelledNewick;
+		m_bAllowSingleChild = other.m_bAllowSingleChild;
+		taxonset = other.taxonset;
+		isNexus = other.isNexus;
+		fileName = other.fileName;
+	} // c'tor
+
+	/** taxa names, in the order used for numbering leaves **/
+	public List<String> getTaxa() {
+		return Collections.unmodifiableList(m_sLabels);
+	}
+
 	public Tree [] parseFile() throws Exception {
 		if (totalTrees < 0) {
 			countTrees(fileName, m_nBurnIn);
@@ -131,7 +159,7 @@ public class TreeFileParser {
 		long nFileSize = file.length();
 		
 		// parse Newick tree file
-		BufferedReader fin = new BufferedReader(new FileReader(sFile));
+		BufferedReader fin = BlockGzipInput.newReader(sFile);
 		String sStr = fin.readLine();
 		nFileSize -= sStr.length();
 		// grab translate block
@@ -146,7 +174,7 @@ public class TreeFileParser {
 			m_bIsLabelledNewick = true;
 			// could not find translate block, assume it is a list of Newick trees instead of Nexus file
 			fin.close();
-			fin = new BufferedReader(new FileReader(sFile));
+			fin = BlockGzipInput.newReader(sFile);
 
 			int nBurnIn = m_nBurnIn;
 			if (m_bBurnInIsPercentage) {
@@ -571,12 +599,283 @@ public class TreeFileParser {
 	 }
 
 	 
+	 /** work space for parseCompact, reused between trees **/
+	 int [] m_tmpLeft, m_tmpRight, m_tmpLabel, m_tmpIndex, m_stack;
+	 boolean [] m_stackIsFirstChild;
+	 double [] m_tmpLength;
+
+	 /**
+	  * Parse Newick tree directly into a CompactTree without creating Node objects.
+	  * Meta data is ignored. Multifurcations are resolved by pairwise merging as in parseNewick.
+	  * @param chars bytes containing the tree statement, e.g. "tree STATE_0 = (1:0.1,2:0.1);"
+	  * @param length number of bytes in chars that are used
+	  * @param tree tree to reuse, or null to create a new one
+	  * @return tree, or null if chars do not contain a tree
+	  */
+	 protected CompactTree parseCompact(byte [] chars, int length, CompactTree tree) {
+		int i = 0;
+		while (i < length && chars[i] != '(') {
+			i++;
+		}
+		if (i == length) {
+			return null;
+		}
+		int maxNodes = 2 * Math.max(m_nNrOfLabels, 1) + 2;
+		if (m_tmpLeft == null || m_tmpLeft.length < maxNodes) {
+			m_tmpLeft = new int[maxNodes];
+			m_tmpRight = new int[maxNodes];
+			m_tmpLabel = new int[maxNodes];
+			m_tmpIndex = new int[maxNodes];
+			m_stack = new int[maxNodes];
+			m_stackIsFirstChild = new boolean[maxNodes];
+			m_tmpLength = new double[maxNodes];
+		}
+
+		// first pass: build tree with nodes numbered in order of creation
+		int nodes = 0;
+		int sp = 0;
+		nodes = newCompactNode(nodes);
+		m_stack[sp] = 0;
+		m_stackIsFirstChild[sp++] = true;
+		boolean isLabel = true;
+		try {
+		while (i < length) {
+			byte c = chars[i];
+			switch (c) {
+			case ' ':
+			case '\t':
+			case '\r':
+			case '\n':
+				i++;
+				break;
+			case '(':
+			case ',':
+				m_stack[sp] = nodes;
+				m_stackIsFirstChild[sp++] = (c == '(');
+				nodes = newCompactNode(nodes);
+				isLabel = true;
+				i++;
+				break;
+			case ':':
+				isLabel = false;
+				i++;
+				break;
+			case '[':
+				while (i < length && chars[i] != ']') {
+					i++;
+				}
+				i++;
+				break;
+			case ')':
+				if (m_stackIsFirstChild[sp - 1]) {
+					throw new IllegalArgumentException("Node with single child found.");
+				}
+				// process multi(i.e. more than 2)-child nodes by pairwise merging.
+				while (!m_stackIsFirstChild[sp - 2]) {
+					int right = m_stack[--sp];
+					int left = m_stack[--sp];
+					int parent = nodes;
+					nodes = newCompactNode(nodes);
+					m_tmpLeft[parent] = left;
+					m_tmpRight[parent] = right;
+					m_stack[sp] = parent;
+					m_stackIsFirstChild[sp++] = false;
+				}
+				// last two nodes on stack merged into single parent node
+				int right = m_stack[--sp];
+				int left = m_stack[--sp];
+				int parent = m_stack[sp - 1];
+				m_tmpLeft[parent] = left;
+				m_tmpRight[parent] = right;
+				i++;
+				break;
+			case ';':
+				i = length;
+				break;
+			default:
+				int start = i;
+				while (i < length && !isDelimiter(chars[i])) {
+					i++;
+				}
+				if (isLabel) {
+					m_tmpLabel[m_stack[sp - 1]] = getLabelIndex(chars, start, i);
+				} else {
+					m_tmpLength[m_stack[sp - 1]] = parseDouble(chars, start, i);
+				}
+			}
+		}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Tree has more leafs than taxa in tree file, or is malformed: " + new String(chars, 0, Math.min(length, 200)));
+		}
+		int tmpRoot = m_stack[sp - 1];
+
+		// second pass: number leafs by taxon and internal nodes in post-order
+		if (tree == null) {
+			tree = new CompactTree(m_nNrOfLabels);
+		} else {
+			tree.setLeafCount(m_nNrOfLabels);
+		}
+		int leafCount = m_nNrOfLabels;
+		int [] order = m_tmpIndex;
+		int orderCount = 0;
+		sp = 0;
+		m_stack[sp++] = tmpRoot;
+		while (sp > 0) {
+			int node = m_stack[--sp];
+			order[orderCount++] = node;
+			if (m_tmpLeft[node] >= 0) {
+				m_stack[sp++] = m_tmpLeft[node];
+				m_stack[sp++] = m_tmpRight[node];
+			}
+		}
+		// reverse of order is post-order; m_stack is reused to map temporary to final node numbers
+		int [] map = m_stack;
+		int next = leafCount;
+		for (int k = orderCount - 1; k >= 0; k--) {
+			int node = order[k];
+			int index;
+			if (m_tmpLeft[node] < 0) {
+				index = m_tmpLabel[node];
+				if (index < 0 || index >= leafCount) {
+					throw new IllegalArgumentException("Leaf without valid taxon label found");
+				}
+			} else {
+				index = next++;
+				int left = map[m_tmpLeft[node]];
+				int right = map[m_tmpRight[node]];
+				tree.left[index] = left;
+				tree.right[index] = right;
+				tree.parent[left] = index;
+				tree.parent[right] = index;
+			}
+			map[node] = index;
+			tree.height[index] = m_tmpLength[node];
+		}
+		tree.nodeCount = next;
+		tree.root = next - 1;
+		tree.parent[tree.root] = -1;
+
+		// convert branch lengths to heights: first calculate distance from top of root branch...
+		double [] height = tree.height;
+		for (int k = tree.root; k >= leafCount; k--) {
+			height[tree.left[k]] += height[k];
+			height[tree.right[k]] += height[k];
+		}
+		double max = 0;
+		for (int k = 0; k < leafCount; k++) {
+			if (tree.parent[k] >= 0) {
+				max = Math.max(max, height[k]);
+			}
+		}
+		// ...then heights relative to the leaf furthest away from the root
+		for (int k = 0; k < tree.nodeCount; k++) {
+			height[k] = max - height[k];
+		}
+		return tree;
+	 }
+
+	 private int newCompactNode(int nodes) {
+		 if (nodes == m_tmpLeft.length) {
+			 throw new ArrayIndexOutOfBoundsException();
+		 }
+		 m_tmpLeft[nodes] = -1;
+		 m_tmpRight[nodes] = -1;
+		 m_tmpLabel[nodes] = -1;
+		 m_tmpLength[nodes] = 0;
+		 return nodes + 1;
+	 }
+
+	 private boolean isDelimiter(byte c) {
+		 return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '(' || c == ')' || c == '[' ||
+				 c == ':' || c == ',' || c == ';';
+	 }
+
+	 /** as getLabelIndex(String), but without creating a String for numeric labels **/
+	 private int getLabelIndex(byte [] chars, int start, int end) {
+		 if (!m_bIsLabelledNewick && end - start < 10) {
+			 int value = 0;
+			 int k = start;
+			 while (k < end && chars[k] >= '0' && chars[k] <= '9') {
+				 value = value * 10 + (chars[k] - '0');
+				 k++;
+			 }
+			 if (k == end && k > start) {
+				 return value - m_nOffset;
+			 }
+		 }
+		 try {
+			 return getLabelIndex(new String(chars, start, end - start, StandardCharsets.UTF_8));
+		 } catch (Exception e) {
+			 throw new IllegalArgumentException(e.getMessage());
+		 }
+	 }
+
+	 private final static double [] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	 /**
+	  * parse decimal number without creating a String.
+	  * Uses exact arithmetic when mantissa and exponent are small enough (which covers
+	  * branch lengths as written by BEAST), and falls back on Double.parseDouble otherwise.
+	  */
+	 static double parseDouble(byte [] chars, int start, int end) {
+		 int k = start;
+		 boolean negative = false;
+		 if (k < end && (chars[k] == '-' || chars[k] == '+')) {
+			 negative = chars[k] == '-';
+			 k++;
+		 }
+		 long mantissa = 0;
+		 int digits = 0, decimals = 0;
+		 boolean seenDot = false;
+		 for (; k < end; k++) {
+			 byte c = chars[k];
+			 if (c >= '0' && c <= '9') {
+				 mantissa = mantissa * 10 + (c - '0');
+				 if (mantissa != 0) {
+					 digits++;
+				 }
+				 if (seenDot) {
+					 decimals++;
+				 }
+			 } else if (c == '.' && !seenDot) {
+				 seenDot = true;
+			 } else {
+				 break;
+			 }
+		 }
+		 int exponent = 0;
+		 if (k < end && (chars[k] == 'e' || chars[k] == 'E')) {
+			 k++;
+			 boolean negativeExponent = false;
+			 if (k < end && (chars[k] == '-' || chars[k] == '+')) {
+				 negativeExponent = chars[k] == '-';
+				 k++;
+			 }
+			 for (; k < end && chars[k] >= '0' && chars[k] <= '9'; k++) {
+				 exponent = exponent * 10 + (chars[k] - '0');
+				 if (exponent > 1000) {
+					 break;
+				 }
+			 }
+			 if (negativeExponent) {
+				 exponent = -exponent;
+			 }
+		 }
+		 exponent -= decimals;
+		 if (k != end || digits > 15 || exponent < -22 || exponent > 22) {
+			 return Double.parseDouble(new String(chars, start, end - start, StandardCharsets.ISO_8859_1));
+		 }
+		 double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		 return negative ? -value : value;
+	 }
+
      /** determine number of trees in the file,
  	 * and number of trees to skip as burnin
  	 * @throws IOException
  	 * @throws FileNotFoundException **/
  	 void countTrees(String inputFileName, int burninPercentage) throws IOException  {
-         BufferedReader fin = new BufferedReader(new FileReader(new File(inputFileName)));
+         BufferedReader fin = BlockGzipInput.newReader(inputFileName);
          if (!fin.ready()) {
         	 fin.close();
          	 throw new IOException("File appears empty");
@@ -622,7 +921,7 @@ public class TreeFileParser {
                  (burninPercentage > 0 ? " after ignoring first " + burninPercentage + "% = " + burninCount + " trees." : "."));
 		}
  	
-     private void parseTranslateBlock(BufferedReader fin) throws IOException {
+     void parseTranslateBlock(BufferedReader fin) throws IOException {
          String line = fin.readLine();
          final StringBuilder translateBlock = new StringBuilder();
          while (line != null && !line.trim().toLowerCase().equals(";")) {
@@ -663,7 +962,7 @@ public class TreeFileParser {
 
  	 
  	 
-	private void collectTaxaNames(String str) {
+	void collectTaxaNames(String str) {
 		int i = 0;
 		while (i < str.length()) {
 			char c = str.charAt(i);
@@ -708,7 +1007,7 @@ public class TreeFileParser {
         createTaxonSet();
 	}
 	
-	private void createTaxonSet() {
+	void createTaxonSet() {
 		taxonset = new TaxonSet();
 		for (String id : m_sLabels) {
 			Taxon taxon = new Taxon(id);
@@ -718,6 +1017,130 @@ public class TreeFileParser {
 	}
 
 
+	/** extension of the sidecar file containing the tree statement index **/
+	public final static String INDEX_EXTENSION = ".idx";
+	final static String INDEX_MAGIC = "BabelTreeIndex";
+	final static int INDEX_VERSION = 2;
+	/** set system property babel.tree.index=false to prevent reading and writing of index files **/
+	static boolean useIndexFile = !"false".equals(System.getProperty("babel.tree.index"));
+
+	/**
+	 * Try to restore the tree statement index and taxa from the sidecar index file.
+	 * The index is only used when file size and modification time of the tree file
+	 * match the ones recorded in the index.
+	 * @return source for tree statements, or null if there is no valid index
+	 */
+	TreeSetSource readIndex(String inputFileName) {
+		File treeFile = new File(inputFileName);
+		File indexFile = new File(inputFileName + INDEX_EXTENSION);
+		if (!useIndexFile || !indexFile.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (!in.readUTF().equals(INDEX_MAGIC) || in.readInt() != INDEX_VERSION) {
+				return null;
+			}
+			if (in.readLong() != treeFile.length() || in.readLong() != treeFile.lastModified()) {
+				Log.warning("Index " + indexFile.getPath() + " is out of date and will be recreated");
+				return null;
+			}
+			long contentSize = in.readLong();
+			boolean isNexus = in.readBoolean();
+			long translateStart = in.readLong();
+			long translateEnd = in.readLong();
+			int offset = in.readInt();
+			int labelCount = in.readInt();
+			Vector<String> labels = new Vector<>();
+			for (int i = 0; i < labelCount; i++) {
+				labels.add(in.readUTF());
+			}
+			int treeCount = in.readInt();
+			long [] treeStart = new long[treeCount];
+			long [] treeEnd = new long[treeCount];
+			for (int i = 0; i < treeCount; i++) {
+				treeStart[i] = in.readLong();
+				treeEnd[i] = in.readLong();
+			}
+			int memberCount = in.readInt();
+			long [] memberStart = new long[memberCount];
+			long [] memberOffset = new long[memberCount];
+			for (int i = 0; i < memberCount; i++) {
+				memberStart[i] = in.readLong();
+				memberOffset[i] = in.readLong();
+			}
+
+			m_sLabels = labels;
+			m_nNrOfLabels = labels.size();
+			m_nOffset = offset;
+			this.isNexus = isNexus;
+			totalTrees = treeCount;
+			createTaxonSet();
+			TreeSetSource source = new TreeSetSource(inputFileName, contentSize, treeStart, treeEnd, isNexus, translateStart, translateEnd);
+			if (source.gzip != null) {
+				source.gzip.setMembers(memberStart, memberOffset);
+			}
+			return source;
+		} catch (IOException e) {
+			Log.warning("Could not read index " + indexFile.getPath() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Write tree statement index and taxa to sidecar index file, so that later runs
+	 * over the same tree file do not need to scan the file or parse the translate block.
+	 * Only MemoryFriendlyTreeSet uses the index: parseFile() reads all trees anyway.
+	 * No index is written for files without trees, or when the directory of the tree
+	 * file (or an existing index) is not writable, and failure to write is not fatal.
+	 */
+	void writeIndex(String inputFileName, TreeSetSource source) {
+		if (!useIndexFile || source.treeCount == 0) {
+			return;
+		}
+		File treeFile = new File(inputFileName);
+		File indexFile = new File(inputFileName + INDEX_EXTENSION);
+		File dir = indexFile.getAbsoluteFile().getParentFile();
+		if (dir == null || !dir.canWrite() || (indexFile.exists() && !indexFile.canWrite())) {
+			return;
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.writeUTF(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(treeFile.length());
+			out.writeLong(treeFile.lastModified());
+			out.writeLong(source.fileSize);
+			out.writeBoolean(source.isNexus);
+			out.writeLong(source.translateStart);
+			out.writeLong(source.translateEnd);
+			out.writeInt(m_nOffset);
+			// no labels if taxa are only known once trees are parsed
+			if (m_sLabels == null) {
+				out.writeInt(0);
+			} else {
+				out.writeInt(m_sLabels.size());
+				for (String label : m_sLabels) {
+					out.writeUTF(label);
+				}
+			}
+			out.writeInt(source.treeCount);
+			for (int i = 0; i < source.treeCount; i++) {
+				out.writeLong(source.treeStart[i]);
+				out.writeLong(source.treeEnd[i]);
+			}
+			// compressed block boundaries, so random access into compressed files works without a scan
+			BlockGzipInput gzip = source.gzip;
+			int memberCount = gzip == null ? 0 : gzip.memberCount;
+			out.writeInt(memberCount);
+			for (int i = 0; i < memberCount; i++) {
+				out.writeLong(gzip.memberStart[i]);
+				out.writeLong(gzip.memberOffset[i]);
+			}
+		} catch (IOException e) {
+			Log.warning("Could not write index " + indexFile.getPath() + ": " + e.getMessage());
+			indexFile.delete();
+		}
+	}
+
 	public boolean hasNext() {
 		return false;
 	}
@@ -0,0 +1,379 @@
+package babel.tools.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Random access to the tree statements in a NEXUS or Newick tree file.
+ *
+ * The file is scanned once through memory mapped regions of the file channel,
+ * recording the byte offsets of every tree statement (and of the translate block
+ * in NEXUS files). After that, tree i can be obtained by mapping only the bytes
+ * of that tree, so skipping burn-in, resetting and thinning do not require
+ * re-reading the file.
+ *
+ * Files with a .gz or .bgz extension are decompressed on the fly, and offsets refer to the
+ * uncompressed content. Random access then goes through BlockGzipInput, which is fast for
+ * block compressed (bgzip) files, and for plain gzip files when trees are read in order.
+ *
+ * In follow mode, the file can still be growing (e.g. written by a running MCMC chain):
+ * only complete lines are classified, and refresh() scans whatever was appended since
+ * the previous scan.
+ */
+public class TreeSetSource implements Closeable {
+	/** size of the regions mapped when scanning the file, and of the read window afterwards **/
+	final static long REGION_SIZE = 1L << 26;
+	/** number of non-white space characters at the start of a line used to classify the line **/
+	final static int PREFIX_SIZE = 16;
+
+	FileChannel channel;
+	/** size of the file, or of its uncompressed content for compressed files **/
+	long fileSize;
+	/** decompressor for compressed files, null for plain text files **/
+	BlockGzipInput gzip;
+
+	/** byte offsets of start (inclusive) and end (exclusive) of tree statements **/
+	long [] treeStart, treeEnd;
+	int treeCount = 0;
+
+	boolean isNexus = false;
+	/** start and end of translate block, if any (excluding the line containing "translate") **/
+	long translateStart = -1, translateEnd = -1;
+
+	/** whether the file may still be growing **/
+	boolean follow = false;
+	/** number of bytes scanned so far **/
+	long scanned = 0;
+	/** whether the end of the trees block was seen (NEXUS only) **/
+	boolean complete = false;
+
+	/** currently mapped window used for reading trees **/
+	MappedByteBuffer window;
+	long windowStart = 0, windowEnd = 0;
+
+	public TreeSetSource(String fileName) throws IOException {
+		this(fileName, false);
+	}
+
+	/**
+	 * @param follow whether the file may still be growing, in which case the last line is only
+	 * classified once it is terminated, and refresh() picks up trees that are appended later
+	 */
+	public TreeSetSource(String fileName, boolean follow) throws IOException {
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		fileSize = channel.size();
+		if (fileSize == 0) {
+			channel.close();
+			throw new IOException("File appears empty");
+		}
+		if (BlockGzipInput.isCompressed(fileName)) {
+			// compressed files are archived results, not written by running chains
+			gzip = new BlockGzipInput(channel);
+			follow = false;
+		}
+		this.follow = follow;
+		treeStart = new long[1024];
+		treeEnd = new long[1024];
+		scan();
+	}
+
+	/**
+	 * construct from an index created earlier, so the file does not need to be scanned
+	 * the index should be validated against the file by the caller
+	 */
+	TreeSetSource(String fileName, long contentSize, long [] treeStart, long [] treeEnd, boolean isNexus, long translateStart, long translateEnd) throws IOException {
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		fileSize = contentSize;
+		if (BlockGzipInput.isCompressed(fileName)) {
+			gzip = new BlockGzipInput(channel);
+		}
+		this.treeStart = treeStart;
+		this.treeEnd = treeEnd;
+		this.treeCount = treeStart.length;
+		this.isNexus = isNexus;
+		this.translateStart = translateStart;
+		this.translateEnd = translateEnd;
+	}
+
+	/** state of the scanner for the line currently being processed **/
+	private byte [] prefix = new byte[PREFIX_SIZE];
+	private int prefixLength;
+	private long contentStart, contentEnd;
+	private byte lastNonWhiteSpace;
+	private boolean seenFirstLine, inTranslate;
+	private int commentDepth, commentDepthAtLineStart;
+	/** whether the line has content other than white space and comments **/
+	private boolean hasUncommentedContent;
+
+	/**
+	 * single pass over the file classifying lines as they are encountered,
+	 * without converting them to Strings
+	 */
+	void scan() throws IOException {
+		contentStart = -1;
+		if (gzip != null) {
+			scanCompressed();
+		} else {
+			scan(fileSize);
+		}
+		if (follow) {
+			// scanner state is kept for refresh()
+			return;
+		}
+		// last line may not be terminated by a new line
+		endOfLine(fileSize);
+		if (inTranslate) {
+			translateEnd = fileSize;
+		}
+		prefix = null;
+	}
+
+	/** continue scanning up to byte offset end **/
+	private void scan(long end) throws IOException {
+		for (long regionStart = scanned; regionStart < end; regionStart += REGION_SIZE) {
+			long regionSize = Math.min(REGION_SIZE, end - regionStart);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+			for (int i = 0; i < regionSize; i++) {
+				scan(buf.get(i), regionStart + i);
+			}
+		}
+		scanned = end;
+	}
+
+	/** scan uncompressed content of a compressed file, which also records where compressed blocks start **/
+	private void scanCompressed() throws IOException {
+		byte [] buf = new byte[BlockGzipInput.BUFFER_SIZE];
+		long pos = 0;
+		int n;
+		while ((n = gzip.read(buf, 0, buf.length)) > 0) {
+			for (int i = 0; i < n; i++) {
+				scan(buf[i], pos + i);
+			}
+			pos += n;
+		}
+		fileSize = pos;
+		scanned = pos;
+	}
+
+	/** process byte b at offset pos **/
+	private void scan(byte b, long pos) {
+		if (b == '\n') {
+			endOfLine(pos);
+			return;
+		}
+		if (b == '[') {
+			commentDepth++;
+		} else if (b == ']' && commentDepth > 0) {
+			commentDepth--;
+		}
+		if (b != ' ' && b != '\t' && b != '\r') {
+			if (commentDepth == 0 && b != ']') {
+				hasUncommentedContent = true;
+			}
+			if (contentStart < 0) {
+				contentStart = pos;
+			}
+			contentEnd = pos + 1;
+			lastNonWhiteSpace = b;
+			if (prefixLength < PREFIX_SIZE) {
+				prefix[prefixLength++] = b;
+			}
+		} else if (contentStart >= 0 && prefixLength < PREFIX_SIZE) {
+			prefix[prefixLength++] = b;
+		}
+	}
+
+	/**
+	 * scan bytes appended to the file since the last scan (follow mode only)
+	 * @return number of new trees
+	 */
+	public synchronized int refresh() throws IOException {
+		if (!follow) {
+			return 0;
+		}
+		long size = channel.size();
+		if (size <= scanned) {
+			return 0;
+		}
+		int count = treeCount;
+		fileSize = size;
+		scan(size);
+		return treeCount - count;
+	}
+
+	/**
+	 * whether no more trees are expected, i.e. the file is not followed, or the end of
+	 * the trees block of a NEXUS file was written
+	 */
+	public boolean isComplete() {
+		return !follow || complete;
+	}
+
+	/** classify the line that ends at byte offset pos **/
+	private void endOfLine(long pos) {
+		if (contentStart >= 0) {
+			if (!seenFirstLine) {
+				isNexus = startsWithIgnoreCase("#nexus");
+				seenFirstLine = true;
+			}
+			if (inTranslate) {
+				if (lastNonWhiteSpace == ';') {
+					translateEnd = Math.min(pos + 1, fileSize);
+					inTranslate = false;
+				}
+			} else if (commentDepthAtLineStart == 0) {
+				if (isNexus) {
+					if (startsWithIgnoreCase("tree ")) {
+						addTree(contentStart, contentEnd);
+					} else if (treeCount > 0 && startsWithIgnoreCase("end")) {
+						complete = true;
+					} else if (translateStart < 0 && startsWithIgnoreCase("translate")) {
+						translateStart = Math.min(pos + 1, fileSize);
+						inTranslate = true;
+					}
+				} else if (contentEnd - contentStart > 2 && prefix[0] != '#' && hasUncommentedContent && commentDepth == 0) {
+					// lines with only comments, or with a comment continuing on the next line, are no trees
+					addTree(contentStart, contentEnd);
+				}
+			}
+		}
+		contentStart = -1;
+		contentEnd = -1;
+		prefixLength = 0;
+		hasUncommentedContent = false;
+		commentDepthAtLineStart = commentDepth;
+	}
+
+	private void addTree(long start, long end) {
+		if (treeCount == treeStart.length) {
+			treeStart = Arrays.copyOf(treeStart, treeCount * 2);
+			treeEnd = Arrays.copyOf(treeEnd, treeCount * 2);
+		}
+		treeStart[treeCount] = start;
+		treeEnd[treeCount] = end;
+		treeCount++;
+	}
+
+	private boolean startsWithIgnoreCase(String str) {
+		if (prefixLength < str.length()) {
+			return false;
+		}
+		for (int i = 0; i < str.length(); i++) {
+			if (Character.toLowerCase((char) prefix[i]) != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** number of tree statements in the file **/
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	/** whether trees can be read in any order at little cost, which is not the case for plain gzip files **/
+	public boolean isRandomAccess() {
+		return gzip == null || gzip.isRandomAccess(fileSize);
+	}
+
+	public boolean isNexus() {
+		return isNexus;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/** byte offset of the start of tree statement i **/
+	public long getOffset(int i) {
+		return treeStart[i];
+	}
+
+	/** @return tree statement i, including "tree STATE_xyz = " prefix for NEXUS files **/
+	public String getTree(int i) throws IOException {
+		return getString(treeStart[i], treeEnd[i]);
+	}
+
+	/** number of bytes in tree statement i **/
+	public int getTreeLength(int i) {
+		return (int) (treeEnd[i] - treeStart[i]);
+	}
+
+	/**
+	 * copy bytes of tree statement i into buffer, without creating a String
+	 * @param buffer to copy into, can be null
+	 * @return buffer, or a larger one if buffer is too small to contain the tree
+	 */
+	public synchronized byte [] getTreeBytes(int i, byte [] buffer) throws IOException {
+		int length = getTreeLength(i);
+		if (buffer == null || buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer == null ? 0 : buffer.length * 2)];
+		}
+		if (gzip != null) {
+			gzip.readFully(treeStart[i], buffer, 0, length);
+		} else {
+			ByteBuffer buf = getWindow(treeStart[i], treeEnd[i]);
+			buf.get(buffer, 0, length);
+		}
+		return buffer;
+	}
+
+	/**
+	 * whether taxa can be set up, i.e. the file is not followed, or the translate block of a
+	 * followed file was terminated or its first tree was written
+	 */
+	public boolean hasHeader() {
+		return !follow || treeCount > 0 || translateEnd >= 0;
+	}
+
+	/** @return content of translate block, or null if there is none **/
+	public String getTranslateBlock() throws IOException {
+		if (translateStart < 0) {
+			return null;
+		}
+		if (translateEnd < 0) {
+			throw new IOException("Translate block is not complete yet");
+		}
+		return getString(translateStart, translateEnd);
+	}
+
+	private synchronized String getString(long start, long end) throws IOException {
+		byte [] bytes = new byte[(int) (end - start)];
+		if (gzip != null) {
+			gzip.readFully(start, bytes, 0, bytes.length);
+		} else {
+			getWindow(start, end).get(bytes);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** @return buffer positioned at start, mapping a new window if start...end is not in the current one **/
+	private ByteBuffer getWindow(long start, long end) throws IOException {
+		if (start < windowStart || end > windowEnd) {
+			windowStart = start;
+			windowEnd = Math.min(fileSize, start + Math.max(REGION_SIZE, end - start));
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+		}
+		ByteBuffer buf = window.duplicate();
+		buf.position((int)(start - windowStart));
+		return buf;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		if (gzip != null) {
+			gzip.close();
+		} else {
+			channel.close();
+		}
+	}
+
+} // class TreeSetSource
@@ -0,0 +1,41 @@
+package babel.util;
+
+import java.io.PrintStream;
+
+import babel.evolution.substitutionmodel.CachesEigenDecompositions;
+import babel.evolution.substitutionmodel.EigenDecompositionCache;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+
+@Description("Logs the fraction of eigen decompositions a substitution model took from its cache "
+		+ "instead of calculating them, and reports the hit and miss counts at the end of the run")
+public class EigenDecompositionCacheLogger extends BEASTObject implements Loggable {
+	public Input<CachesEigenDecompositions> modelInput = new Input<>("model", "substitution model that caches eigen decompositions", Validate.REQUIRED);
+
+	EigenDecompositionCache cache;
+
+	@Override
+	public void initAndValidate() {
+		cache = modelInput.get().getEigenDecompositionCache();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		out.append((getID() == null ? "eigenCache" : getID()) + ".hitRate\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		out.append(cache.getHitRate() + "\t");
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		Log.info((getID() == null ? "" : getID() + " ") + cache.toString());
+	}
+
+}
@@ -2,7 +2,6 @@ package babel.util;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
@@ -18,6 +17,7 @@ import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import babel.tools.utils.BlockGzipInput;
 import beast.base.core.Log;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.FilteredAlignment;
@@ -91,7 +91,7 @@ public class NexusParser {
     public void parseFile(final File file) throws IOException {
         final String fileName = file.getName().replaceAll(".*[\\/\\\\]", "").replaceAll("\\..*", "");
 
-        parseFile(fileName, new FileReader(file));
+        parseFile(fileName, BlockGzipInput.newReader(file));
     }
 
     /**
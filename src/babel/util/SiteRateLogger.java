@@ -4,13 +4,13 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import babel.evolution.likelihood.PartialsTreeLikelihood;
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
-import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.JukesCantor;
 import beast.base.evolution.tree.Node;
@@ -24,7 +24,7 @@ public class SiteRateLogger extends BEASTObject implements Loggable {
 
 	int from, to;
 
-	class MyTreeLikelihood extends TreeLikelihood {
+	class MyTreeLikelihood extends PartialsTreeLikelihood {
 		
 		double [] partials = null;
 		
@@ -34,14 +34,15 @@ public class SiteRateLogger extends BEASTObject implements Loggable {
 			
 			Node root = treeInput.get().getRoot();
 			int stateCount = data.getDataType().getStateCount();
-			int categoryCount = m_siteModel.getCategoryCount();
+			SiteModel.Base siteModel = getSiteModel();
+			int categoryCount = siteModel.getCategoryCount();
 			int patternCount = data.getPatternCount();
 			if (partials == null) {
 				partials = new double[patternCount * stateCount * categoryCount];
 			}
-			likelihoodCore.getNodePartials(root.getNr(), partials);
+			getNodePartials(root.getNr(), partials);
 			
-            final double[] frequencies = m_siteModel.getSubstitutionModel().getFrequencies();
+            final double[] frequencies = siteModel.getSubstitutionModel().getFrequencies();
             
 			double [] rateProbs = new double[categoryCount];
             for (int l = 0; l < categoryCount; l++) {
@@ -56,8 +57,8 @@ public class SiteRateLogger extends BEASTObject implements Loggable {
 			double rate = 0;
 			double sum = 0;
 			double sum2 = 0;
-			final double[] proportions = m_siteModel.getCategoryProportions(null);
-			double [] rates = m_siteModel.getCategoryRates(root);
+			final double[] proportions = siteModel.getCategoryProportions(null);
+			double [] rates = siteModel.getCategoryRates(root);
             for (int l = 0; l < categoryCount; l++) {
             	rate += rateProbs[l] * proportions[l] * rates[l];
             	// average probability of rate
@@ -81,10 +82,8 @@ public class SiteRateLogger extends BEASTObject implements Loggable {
 	@Override
 	public void initAndValidate() {
 		GenericTreeLikelihood org = likelihoodInput.get();
-		// ensure we do not use BEAGLE
-        boolean forceJava = Boolean.valueOf(System.getProperty("java.only"));
-        System.setProperty("java.only", "true");
-        // create new treelikelihood for which we can obtain its internal state
+        // create new treelikelihood for which we can obtain its internal state,
+        // from BEAGLE if available, otherwise from the java likelihood core
 		likelihood = new MyTreeLikelihood();
 		likelihood.initByName(                    
 				"data", org.getInput("data").get(), 
@@ -94,7 +93,6 @@ public class SiteRateLogger extends BEASTObject implements Loggable {
                 "useAmbiguities", org.getInput("useAmbiguities").get(), 
 //                "useTipLikelihoods", org.getInput("useTipLikelihoods").get(),
                 "scaling", org.getInput("scaling").get().toString());
-		System.setProperty("java.only", "" + forceJava);
 		
 		siteCount = ((Alignment)org.getInput("data").get()).getSiteCount();
 		
@@ -138,7 +136,7 @@ public class SiteRateLogger extends BEASTObject implements Loggable {
 	@Override
 	public void log(long sample, PrintStream out) {
 		// refresh all internal data structures
-		likelihood.calculateLogP();
+		likelihood.recalculateLogP();
 		for (int i = from; i < to; i++) {
 			out.append(likelihood.getSiteRate(i));
 			out.append('\t');
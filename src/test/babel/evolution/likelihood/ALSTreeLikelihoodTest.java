@@ -0,0 +1,201 @@
+package test.babel.evolution.likelihood;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import babel.evolution.datatype.MutationDeathType;
+import babel.evolution.likelihood.ALSTreeLikelihood;
+import babel.evolution.likelihood.AnyTipObservationProcess;
+import babel.evolution.substitutionmodel.ComplexMutationDeathModel;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.UCRelaxedClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Runs ALSTreeLikelihood, with a relaxed clock on the tree likelihood only like in
+ * examples/testSDollo.xml, through the store/propose/accept-or-restore cycle of an MCMC
+ * chain with tree, clock and death rate moves. The observation process only recalculates
+ * the nodes that changed, so after every step the likelihood is compared with one of a
+ * freshly created observation process.
+ */
+public class ALSTreeLikelihoodTest {
+	final static String[] TAXA = { "A", "B", "C", "D", "E", "F", "G", "H", "I" };
+	final static String TREE = "(((((A:0.2,B:0.2):0.3,C:0.5):0.4,(D:0.6,E:0.6):0.3):0.3,F:1.2):0.3,((G:0.4,H:0.4):0.5,I:0.9):0.6):0.0";
+	// enough sites for several hundred patterns, so patterns span many words of the bit
+	// packed inclusion and more than one chunk when evaluated on multiple threads
+	final static int SITE_COUNT = 1000;
+
+	private String javaOnly;
+
+	@Before
+	public void setUp() {
+		javaOnly = System.getProperty("java.only");
+		System.setProperty("java.only", "true");
+	}
+
+	@After
+	public void tearDown() {
+		if (javaOnly == null) {
+			System.clearProperty("java.only");
+		} else {
+			System.setProperty("java.only", javaOnly);
+		}
+	}
+
+	/** random presence (1) and absence (0) of cognates, each present in at least one language **/
+	static Alignment alignment() {
+		Random random = new Random(11);
+		StringBuilder[] data = new StringBuilder[TAXA.length];
+		for (int i = 0; i < TAXA.length; i++) {
+			data[i] = new StringBuilder();
+		}
+		for (int site = 0; site < SITE_COUNT; site++) {
+			int present = random.nextInt(TAXA.length);
+			for (int i = 0; i < TAXA.length; i++) {
+				data[i].append(i == present || random.nextInt(3) == 0 ? '1' : '0');
+			}
+		}
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < TAXA.length; i++) {
+			sequences.add(new Sequence(TAXA[i], data[i].toString()));
+		}
+		MutationDeathType dataType = new MutationDeathType();
+		dataType.initByName("extantCode", "1");
+		Alignment alignment = new Alignment();
+		alignment.initByName("sequence", sequences, "userDataType", dataType);
+		return alignment;
+	}
+
+	/** likelihood with its own observation process, clock and site model **/
+	static ALSTreeLikelihood likelihood(Alignment alignment, Tree tree, RealParameter mu, IntegerParameter rateCategories, int threads) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.5 0.5");
+		ComplexMutationDeathModel substModel = new ComplexMutationDeathModel();
+		substModel.initByName("frequencies", frequencies, "deathprob", mu);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", substModel, "shape", "0.5", "gammaCategoryCount", 4);
+
+		AnyTipObservationProcess observationProcess = new AnyTipObservationProcess();
+		observationProcess.initByName("tree", tree, "data", alignment, "siteModel", siteModel, "mu", mu,
+				"integrateGainRate", true, "threads", threads);
+
+		LogNormalDistributionModel distr = new LogNormalDistributionModel();
+		distr.initByName("M", "1.0", "S", "0.6", "meanInRealSpace", true);
+		UCRelaxedClockModel clock = new UCRelaxedClockModel();
+		clock.initByName("rateCategories", rateCategories, "distr", distr, "tree", tree);
+
+		ALSTreeLikelihood likelihood = new ALSTreeLikelihood();
+		likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteModel, "branchRateModel", clock,
+				"observationprocess", observationProcess);
+		return likelihood;
+	}
+
+	/** log likelihood of the current state calculated from scratch **/
+	private double fullLogP(Alignment alignment, Tree tree, RealParameter mu, IntegerParameter rateCategories) {
+		return likelihood(alignment, tree.copy(), new RealParameter(mu.getValue() + ""),
+				new IntegerParameter(rateCategories.getValues()), 1).calculateLogP();
+	}
+
+	/** one rate category per branch **/
+	private IntegerParameter rateCategories(Tree tree) {
+		int branchCount = tree.getNodeCount() - 1;
+		Integer[] categories = new Integer[branchCount];
+		for (int i = 0; i < branchCount; i++) {
+			categories[i] = i;
+		}
+		return new IntegerParameter(categories);
+	}
+
+	/** tree, clock or death rate move **/
+	private void propose(Tree tree, IntegerParameter rateCategories, RealParameter mu, Random random) {
+		switch (random.nextInt(3)) {
+		case 0:
+			JavaChainTest.proposeNodeHeight(tree, random);
+			break;
+		case 1:
+			// swap rate categories of two branches, which changes no node of the tree
+			int branchCount = rateCategories.getDimension();
+			int i = random.nextInt(branchCount), j = random.nextInt(branchCount);
+			int category = rateCategories.getValue(i);
+			rateCategories.setValue(i, rateCategories.getValue(j));
+			rateCategories.setValue(j, category);
+			break;
+		default:
+			mu.setValue(0.05 + random.nextDouble());
+		}
+	}
+
+	@Test
+	public void testStoreRestore() {
+		Alignment alignment = alignment();
+		Tree tree = new TreeParser(TREE);
+		RealParameter mu = new RealParameter("0.3");
+		IntegerParameter rateCategories = rateCategories(tree);
+		State state = new State();
+		state.initByName("stateNode", tree, "stateNode", mu, "stateNode", rateCategories);
+		state.initialise();
+
+		JavaChainTest.runChain(state, likelihood(alignment, tree, mu, rateCategories, 1),
+				random -> propose(tree, rateCategories, mu, random),
+				() -> fullLogP(alignment, tree, mu, rateCategories), 300);
+	}
+
+	/**
+	 * Patterns are split in the same chunks whatever the number of threads, and every chunk
+	 * sums in the same order, so evaluating on several threads gives exactly the likelihood
+	 * of a single thread, also when only the contributions of changed nodes are updated.
+	 */
+	@Test
+	public void testThreads() {
+		Alignment alignment = alignment();
+		Tree tree = new TreeParser(TREE);
+		RealParameter mu = new RealParameter("0.3");
+		IntegerParameter rateCategories = rateCategories(tree);
+		State state = new State();
+		state.initByName("stateNode", tree, "stateNode", mu, "stateNode", rateCategories);
+		state.initialise();
+
+		ALSTreeLikelihood single = likelihood(alignment, tree, mu, rateCategories, 1);
+		ALSTreeLikelihood multi = likelihood(alignment, tree, mu, rateCategories, 4);
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", single, "distribution", multi);
+		state.setPosterior(posterior);
+		state.robustlyCalcPosterior(posterior);
+		assertEquals(single.getCurrentLogP(), multi.getCurrentLogP(), 0.0);
+
+		Random random = new Random(131);
+		for (int sample = 0; sample < 200; sample++) {
+			state.store(sample);
+			propose(tree, rateCategories, mu, random);
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			assertEquals("sample " + sample, single.calculateLogP(), multi.calculateLogP(), 0.0);
+
+			if (random.nextBoolean()) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+				assertEquals("sample " + sample, single.getCurrentLogP(), multi.getCurrentLogP(), 0.0);
+			}
+			state.setEverythingDirty(false);
+		}
+	}
+
+}
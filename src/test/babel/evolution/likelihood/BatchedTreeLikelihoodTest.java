@@ -0,0 +1,85 @@
+package test.babel.evolution.likelihood;
+
+import org.junit.Test;
+
+import babel.evolution.likelihood.BatchedTreeLikelihood;
+import babel.evolution.substitutionmodel.ComplexMutationDeathModel;
+import babel.evolution.substitutionmodel.Ordinal;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Runs BatchedTreeLikelihood through an MCMC chain with tree and death rate moves, with
+ * the likelihood from scratch calculated by TreeLikelihood, which calculates transition
+ * probabilities branch by branch. Under a strict clock, all branches to update share
+ * their category rates, so matrices are calculated in a single batch.
+ */
+public class BatchedTreeLikelihoodTest extends JavaChainTest {
+
+	private Frequencies frequencies() {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.4 0.6");
+		return frequencies;
+	}
+
+	private SubstitutionModel substitutionModel(boolean mutationDeath, RealParameter deathRate) {
+		if (mutationDeath) {
+			ComplexMutationDeathModel model = new ComplexMutationDeathModel();
+			model.initByName("frequencies", frequencies(), "deathprob", deathRate);
+			return model;
+		}
+		Ordinal model = new Ordinal();
+		model.initByName("stateNumber", 2, "frequencies", frequencies());
+		return model;
+	}
+
+	private <T extends TreeLikelihood> T likelihood(T likelihood, Alignment alignment, Tree tree, SubstitutionModel substModel) {
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", substModel, "shape", "0.5", "gammaCategoryCount", 4);
+		likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+
+	/** log likelihood of the current state calculated from scratch branch by branch **/
+	private double fullLogP(Alignment alignment, Tree tree, boolean mutationDeath, RealParameter deathRate) {
+		RealParameter deathRateCopy = new RealParameter(deathRate.getValue() + "");
+		return likelihood(new TreeLikelihood(), alignment, tree.copy(), substitutionModel(mutationDeath, deathRateCopy)).calculateLogP();
+	}
+
+	private void runChain(boolean mutationDeath) {
+		Alignment alignment = alignment();
+		Tree tree = new TreeParser(TREE);
+		RealParameter deathRate = new RealParameter("0.2");
+		State state = new State();
+		state.initByName("stateNode", tree, "stateNode", deathRate);
+		state.initialise();
+
+		BatchedTreeLikelihood likelihood = likelihood(new BatchedTreeLikelihood(), alignment, tree,
+				substitutionModel(mutationDeath, deathRate));
+		runChain(state, likelihood, random -> {
+			if (mutationDeath && random.nextInt(3) == 0) {
+				deathRate.setValue(random.nextDouble());
+			} else {
+				proposeNodeHeight(tree, random);
+			}
+		}, () -> fullLogP(alignment, tree, mutationDeath, deathRate), 200);
+	}
+
+	@Test
+	public void testOrdinal() {
+		runChain(false);
+	}
+
+	@Test
+	public void testMutationDeathModel() {
+		runChain(true);
+	}
+
+}
@@ -0,0 +1,121 @@
+package test.babel.evolution.likelihood;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+
+/**
+ * Base of tests that run likelihoods on the java likelihood core through the
+ * store/propose/accept-or-restore cycle of an MCMC chain, where only the parts that
+ * changed are recalculated, and compare with a likelihood calculated from scratch after
+ * every step. Also holds a small binary data set shared by the likelihood tests.
+ */
+public abstract class JavaChainTest {
+	final static String[] TAXA = { "A", "B", "C", "D", "E" };
+	final static String[] SEQUENCES = {
+			"0110100101",
+			"0100110101",
+			"1010100011",
+			"1011001001",
+			"0011001110" };
+	final static String TREE = "(((A:0.3,B:0.3):0.4,C:0.7):0.5,(D:0.6,E:0.6):0.6):0.0";
+
+	private String javaOnly;
+
+	@Before
+	public void setUpJavaOnly() {
+		javaOnly = System.getProperty("java.only");
+		System.setProperty("java.only", "true");
+	}
+
+	@After
+	public void restoreJavaOnly() {
+		if (javaOnly == null) {
+			System.clearProperty("java.only");
+		} else {
+			System.setProperty("java.only", javaOnly);
+		}
+	}
+
+	static Alignment alignment() {
+		return alignment(false);
+	}
+
+	/**
+	 * @param ascertained whether to add a first site absent in all taxa, which is then
+	 * excluded as ascertained
+	 */
+	static Alignment alignment(boolean ascertained) {
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < TAXA.length; i++) {
+			sequences.add(new Sequence(TAXA[i], (ascertained ? "0" : "") + SEQUENCES[i]));
+		}
+		Alignment alignment = new Alignment();
+		if (ascertained) {
+			alignment.initByName("sequence", sequences, "dataType", "binary", "ascertained", true, "excludeto", 1);
+		} else {
+			alignment.initByName("sequence", sequences, "dataType", "binary");
+		}
+		return alignment;
+	}
+
+	/** move height of a random internal node between the height of its oldest child and its parent **/
+	static void proposeNodeHeight(Tree tree, Random random) {
+		Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		double upper = node.isRoot() ? lower + 2.0 : node.getParent().getHeight();
+		node.setHeight(lower + random.nextDouble() * (upper - lower));
+	}
+
+	interface Proposal {
+		/** change state nodes of the state the likelihood depends on **/
+		void propose(Random random);
+	}
+
+	/**
+	 * run a chain of samples steps, accepting or rejecting proposals at random
+	 * @param state initialised state containing the state nodes proposal changes
+	 * @param likelihood the likelihood under test
+	 * @param fullLogP log likelihood of the current state calculated from scratch
+	 */
+	static void runChain(State state, Distribution likelihood, Proposal proposal, DoubleSupplier fullLogP, int samples) {
+		state.setPosterior(likelihood);
+		double logP = state.robustlyCalcPosterior(likelihood);
+		assertEquals(fullLogP.getAsDouble(), logP, 1e-10);
+
+		Random random = new Random(127);
+		for (int sample = 0; sample < samples; sample++) {
+			state.store(sample);
+			proposal.propose(random);
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			double newLogP = likelihood.calculateLogP();
+			assertEquals("sample " + sample, fullLogP.getAsDouble(), newLogP, 1e-10);
+
+			if (random.nextBoolean()) {
+				state.acceptCalculationNodes();
+				logP = newLogP;
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+				assertEquals("sample " + sample, logP, likelihood.getCurrentLogP(), 0.0);
+			}
+			state.setEverythingDirty(false);
+		}
+		assertEquals(fullLogP.getAsDouble(), logP, 1e-10);
+	}
+
+}
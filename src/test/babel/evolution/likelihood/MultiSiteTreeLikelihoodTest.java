@@ -0,0 +1,93 @@
+package test.babel.evolution.likelihood;
+
+import org.junit.Test;
+
+import babel.evolution.likelihood.MultiSiteTreeLikelihood;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Runs MultiSiteTreeLikelihood, which keeps root partials and pattern likelihoods of its
+ * own across restores, through an MCMC chain with tree and root state moves, also on
+ * ascertained data where the root partials of the excluded site are used as well.
+ */
+public class MultiSiteTreeLikelihoodTest extends JavaChainTest {
+
+	private MultiSiteTreeLikelihood likelihood(Alignment alignment, Tree tree, IntegerParameter rootState) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.4 0.6");
+		GeneralSubstitutionModel substModel = new GeneralSubstitutionModel();
+		substModel.initByName("rates", new RealParameter("1.0 1.0"), "frequencies", frequencies);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", substModel, "shape", "0.5", "gammaCategoryCount", 4);
+
+		MultiSiteTreeLikelihood likelihood = new MultiSiteTreeLikelihood();
+		if (rootState == null) {
+			likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteModel);
+		} else {
+			likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteModel, "rootState", rootState);
+		}
+		return likelihood;
+	}
+
+	/** log likelihood of the current state calculated from scratch **/
+	private double fullLogP(Alignment alignment, Tree tree, IntegerParameter rootState) {
+		IntegerParameter rootStateCopy = null;
+		if (rootState != null) {
+			rootStateCopy = new IntegerParameter(rootState.getValue() + "");
+		}
+		return likelihood(alignment, tree.copy(), rootStateCopy).calculateLogP();
+	}
+
+	private void runChain(boolean ascertained, boolean withRootState) {
+		Alignment alignment = alignment(ascertained);
+		Tree tree = new TreeParser(TREE);
+		IntegerParameter rootState = null;
+		State state = new State();
+		if (withRootState) {
+			rootState = new IntegerParameter("0");
+			rootState.setBounds(0, alignment.getPatternCount() - 1);
+			state.initByName("stateNode", tree, "stateNode", rootState);
+		} else {
+			state.initByName("stateNode", tree);
+		}
+		state.initialise();
+
+		final IntegerParameter rootState_ = rootState;
+		runChain(state, likelihood(alignment, tree, rootState), random -> {
+			if (withRootState && random.nextInt(3) == 0) {
+				rootState_.setValue(random.nextInt(alignment.getPatternCount()));
+			} else {
+				proposeNodeHeight(tree, random);
+			}
+		}, () -> fullLogP(alignment, tree, rootState_), 200);
+	}
+
+	@Test
+	public void testStoreRestore() {
+		runChain(false, false);
+	}
+
+	@Test
+	public void testStoreRestoreWithRootState() {
+		runChain(false, true);
+	}
+
+	@Test
+	public void testStoreRestoreAscertained() {
+		runChain(true, false);
+	}
+
+	@Test
+	public void testStoreRestoreAscertainedWithRootState() {
+		runChain(true, true);
+	}
+
+}
@@ -0,0 +1,127 @@
+package test.babel.evolution.likelihood;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import babel.evolution.likelihood.MultiSiteTreeLikelihood;
+import babel.evolution.likelihood.PartialsTreeLikelihood;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Compares partials of PartialsTreeLikelihood calculated by BEAGLE with those of the java
+ * likelihood core, also after the tree changed without the likelihoods being notified,
+ * as happens for likelihoods used by loggers only. MultiSiteTreeLikelihood, which works
+ * from the root partials, is compared on ascertained data, with BEAGLE rescaling partials.
+ */
+public class PartialsTreeLikelihoodTest {
+	final static int CATEGORY_COUNT = 4;
+
+	private PartialsTreeLikelihood likelihood(Alignment alignment, Tree tree, boolean javaOnly) {
+		return likelihood(new PartialsTreeLikelihood(), alignment, tree, javaOnly, "none");
+	}
+
+	private <T extends PartialsTreeLikelihood> T likelihood(T likelihood, Alignment alignment, Tree tree, boolean javaOnly,
+			String scaling, Object... extraInputs) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.4 0.6");
+		GeneralSubstitutionModel substModel = new GeneralSubstitutionModel();
+		substModel.initByName("rates", new RealParameter("1.0 1.0"), "frequencies", frequencies);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", substModel, "shape", "0.5", "gammaCategoryCount", CATEGORY_COUNT);
+
+		String javaOnlyProperty = System.getProperty("java.only");
+		System.setProperty("java.only", javaOnly + "");
+		try {
+			List<Object> inputs = new ArrayList<>(Arrays.asList("data", alignment, "tree", tree, "siteModel", siteModel, "scaling", scaling));
+			inputs.addAll(Arrays.asList(extraInputs));
+			likelihood.initByName(inputs.toArray());
+		} finally {
+			if (javaOnlyProperty == null) {
+				System.clearProperty("java.only");
+			} else {
+				System.setProperty("java.only", javaOnlyProperty);
+			}
+		}
+		return likelihood;
+	}
+
+	private void assertSamePartials(PartialsTreeLikelihood expected, PartialsTreeLikelihood actual, Tree tree, int patternCount) {
+		int size = patternCount * 2;
+		double[] expectedPartials = new double[size];
+		double[] actualPartials = new double[size];
+		expected.getRootPartials(expectedPartials);
+		actual.getRootPartials(actualPartials);
+		for (int k = 0; k < size; k++) {
+			assertEquals("root entry " + k, expectedPartials[k], actualPartials[k], 1e-12);
+		}
+
+		expectedPartials = new double[size * CATEGORY_COUNT];
+		actualPartials = new double[size * CATEGORY_COUNT];
+		for (Node node : tree.getInternalNodes()) {
+			expected.getNodePartials(node.getNr(), expectedPartials);
+			actual.getNodePartials(node.getNr(), actualPartials);
+			for (int k = 0; k < size * CATEGORY_COUNT; k++) {
+				assertEquals("node " + node.getNr() + " entry " + k, expectedPartials[k], actualPartials[k], 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testBeagleAgainstJava() {
+		Alignment alignment = JavaChainTest.alignment();
+		Tree tree = new TreeParser(JavaChainTest.TREE);
+		PartialsTreeLikelihood beagleLikelihood = likelihood(alignment, tree, false);
+		Assume.assumeTrue("BEAGLE not available", beagleLikelihood.usesBeagle());
+		PartialsTreeLikelihood javaLikelihood = likelihood(alignment, tree, true);
+
+		double logP = javaLikelihood.recalculateLogP();
+		assertEquals(logP, beagleLikelihood.recalculateLogP(), 1e-10);
+		assertSamePartials(javaLikelihood, beagleLikelihood, tree, alignment.getPatternCount());
+
+		// change node heights behind the likelihoods' back, like the MCMC does for logged likelihoods
+		tree.getNode(0).getParent().setHeight(0.5);
+		tree.getRoot().setHeight(1.5);
+		tree.setEverythingDirty(false);
+
+		double newLogP = javaLikelihood.recalculateLogP();
+		assertEquals(likelihood(alignment, tree.copy(), true).calculateLogP(), newLogP, 1e-10);
+		assertEquals(newLogP, beagleLikelihood.recalculateLogP(), 1e-10);
+		assertSamePartials(javaLikelihood, beagleLikelihood, tree, alignment.getPatternCount());
+	}
+
+	private void assertMultiSiteBeagleAgainstJava(Object... extraInputs) {
+		Alignment alignment = JavaChainTest.alignment(true);
+		Tree tree = new TreeParser(JavaChainTest.TREE);
+		// BEAGLE rescales partials at every node, so its root partials are off by the scale factors
+		MultiSiteTreeLikelihood beagleLikelihood = likelihood(new MultiSiteTreeLikelihood(), alignment, tree, false, "always", extraInputs);
+		Assume.assumeTrue("BEAGLE not available", beagleLikelihood.usesBeagle());
+		MultiSiteTreeLikelihood javaLikelihood = likelihood(new MultiSiteTreeLikelihood(), alignment, tree, true, "none", extraInputs);
+
+		assertEquals(javaLikelihood.calculateLogP(), beagleLikelihood.calculateLogP(), 1e-10);
+	}
+
+	@Test
+	public void testMultiSiteAscertainedBeagleAgainstJava() {
+		assertMultiSiteBeagleAgainstJava();
+	}
+
+	@Test
+	public void testMultiSiteAscertainedWithRootStateBeagleAgainstJava() {
+		assertMultiSiteBeagleAgainstJava("rootState", new IntegerParameter("2"));
+	}
+
+}
@@ -0,0 +1,92 @@
+package test.babel.evolution.substitutionmodel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import babel.evolution.substitutionmodel.BatchedSubstitutionModel;
+import babel.evolution.substitutionmodel.ComplexMutationDeathModel;
+import babel.evolution.substitutionmodel.Ordinal;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Compares transition probability matrices calculated in one batched call with those
+ * calculated branch by branch.
+ */
+public class BatchedTransitionProbabilitiesTest {
+	final static double[] BRANCH_LENGTHS = { 0.0, 1e-4, 0.1, 0.5, 1.0, 2.5, 10.0 };
+	final static double[] RATES = { 0.1, 0.6, 1.0, 2.3 };
+
+	private Frequencies frequencies(String freqs) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		return frequencies;
+	}
+
+	private Ordinal ordinal(String freqs) {
+		Ordinal model = new Ordinal();
+		model.initByName("stateNumber", freqs.split(" ").length, "frequencies", frequencies(freqs));
+		return model;
+	}
+
+	private void assertBatchedEqualsPerBranch(SubstitutionModel model, int n) {
+		double[] matrices = new double[BRANCH_LENGTHS.length * RATES.length * n * n];
+		((BatchedSubstitutionModel) model).getTransitionProbabilities(BRANCH_LENGTHS, BRANCH_LENGTHS.length, RATES, matrices);
+
+		double[] matrix = new double[n * n];
+		for (int b = 0; b < BRANCH_LENGTHS.length; b++) {
+			for (int c = 0; c < RATES.length; c++) {
+				model.getTransitionProbabilities(null, BRANCH_LENGTHS[b], 0.0, RATES[c], matrix);
+				int offset = (b * RATES.length + c) * n * n;
+				for (int i = 0; i < n * n; i++) {
+					assertEquals("t=" + BRANCH_LENGTHS[b] + " rate=" + RATES[c] + " entry " + i, matrix[i], matrices[offset + i], 1e-12);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testOrdinal() {
+		for (String freqs : new String[] { "0.4 0.6", "0.5 0.3 0.2", "0.1 0.2 0.3 0.25 0.15" }) {
+			assertBatchedEqualsPerBranch(ordinal(freqs), freqs.split(" ").length);
+		}
+	}
+
+	@Test
+	public void testBatchUsesFirstBranches() {
+		// only branchCount branch lengths are used, the rest of the matrices is left alone
+		Ordinal model = ordinal("0.5 0.3 0.2");
+		double[] matrices = new double[3 * RATES.length * 9];
+		matrices[matrices.length - 1] = -1;
+		model.getTransitionProbabilities(new double[] { 0.2, 0.7, 1.0 }, 2, RATES, matrices);
+		assertEquals(-1, matrices[matrices.length - 1], 0.0);
+	}
+
+	@Test
+	public void testMutationDeathModel() {
+		for (double deathRate : new double[] { 0.0, 0.1, 0.7 }) {
+			// two states, no model for the live states
+			ComplexMutationDeathModel model = new ComplexMutationDeathModel();
+			model.initByName("frequencies", frequencies("0.6 0.4"), "deathprob", new RealParameter(deathRate + ""));
+			assertBatchedEqualsPerBranch(model, 2);
+
+			// live states with a batched model
+			model = new ComplexMutationDeathModel();
+			model.initByName("frequencies", frequencies("0.3 0.3 0.2 0.2"), "deathprob", new RealParameter(deathRate + ""),
+					"substmodel", ordinal("0.5 0.3 0.2"));
+			assertBatchedEqualsPerBranch(model, 4);
+
+			// live states with a model that is not batched
+			GeneralSubstitutionModel liveModel = new GeneralSubstitutionModel();
+			liveModel.initByName("rates", new RealParameter("1.0 2.0 0.5 1.5 1.0 3.0"), "frequencies", frequencies("0.5 0.3 0.2"));
+			model = new ComplexMutationDeathModel();
+			model.initByName("frequencies", frequencies("0.3 0.3 0.2 0.2"), "deathprob", new RealParameter(deathRate + ""),
+					"substmodel", liveModel);
+			assertBatchedEqualsPerBranch(model, 4);
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package test.babel.evolution.substitutionmodel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import babel.evolution.substitutionmodel.BirthDeathCovarion2;
+import babel.evolution.substitutionmodel.BirthDeathModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Compares the closed form transition probabilities of the pseudo Dollo models
+ * with those obtained through the eigen decomposition of the rate matrix, which for
+ * BirthDeathModel is the normalised matrix of GeneralSubstitutionModel.
+ */
+public class BirthDeathTransitionProbabilitiesTest {
+	final static double[] DISTANCES = { 0.0, 1e-4, 0.1, 0.5, 1.0, 2.5, 10.0 };
+
+	/** P(t) = S.exp(Jt).S^(-1) using the eigen decomposition of the model **/
+	private double[] eigenTransitionProbabilities(GeneralSubstitutionModel model, int n, double distance) {
+		EigenDecomposition eigen = model.getEigenDecomposition(null);
+		double[] evec = eigen.getEigenVectors();
+		double[] ievc = eigen.getInverseEigenVectors();
+		double[] eval = eigen.getEigenValues();
+		if (eval.length > n) {
+			// complex eigen system, imaginary parts should be zero
+			for (int k = n; k < eval.length; k++) {
+				assertEquals(0.0, eval[k], 1e-10);
+			}
+		}
+		double[] matrix = new double[n * n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double sum = 0;
+				for (int k = 0; k < n; k++) {
+					sum += evec[i * n + k] * Math.exp(distance * eval[k]) * ievc[k * n + j];
+				}
+				matrix[i * n + j] = Math.abs(sum);
+			}
+		}
+		return matrix;
+	}
+
+	private BirthDeathModel birthDeathModel(String freqs, double deathRate) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		BirthDeathModel model = new BirthDeathModel();
+		model.initByName("frequencies", frequencies, "deathprob", new RealParameter(deathRate + ""));
+		return model;
+	}
+
+	private void assertRowsSumToOne(double[] matrix, int n) {
+		for (int i = 0; i < n; i++) {
+			double sum = 0;
+			for (int j = 0; j < n; j++) {
+				sum += matrix[i * n + j];
+			}
+			assertEquals(1.0, sum, 1e-12);
+		}
+	}
+
+	/**
+	 * GeneralSubstitutionModel with the relative rates BirthDeathModel sets up, which gives
+	 * the transition probabilities the java likelihood core used before the closed form
+	 */
+	private GeneralSubstitutionModel eigenBirthDeathModel(String freqs, double deathRate) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		String rates = freqs.split(" ").length == 3
+				? "1 0 " + (-deathRate) + " " + deathRate + " 0 0"
+				: "1 0 0 0 " + deathRate + " 0 0 0 0 0 0 0";
+		GeneralSubstitutionModel model = new GeneralSubstitutionModel();
+		model.initByName("frequencies", frequencies, "rates", new RealParameter(rates));
+		return model;
+	}
+
+	@Test
+	public void testBirthDeathModel() {
+		for (String freqs : new String[] { "0.5 0.3 0.2", "0.2 0.3 0.5", "0.4 0.3 0.2 0.1" }) {
+			int n = freqs.split(" ").length;
+			for (double deathRate : new double[] { 0.0, 0.05, 0.5, 0.9 }) {
+				BirthDeathModel model = birthDeathModel(freqs, deathRate);
+				GeneralSubstitutionModel eigenModel = eigenBirthDeathModel(freqs, deathRate);
+				for (double distance : DISTANCES) {
+					double[] matrix = new double[n * n];
+					double[] expected = new double[n * n];
+					model.getTransitionProbabilities(null, distance, 0.0, 1.0, matrix);
+					eigenModel.getTransitionProbabilities(null, distance, 0.0, 1.0, expected);
+					for (int i = 0; i < n * n; i++) {
+						assertEquals(freqs + " deathprob=" + deathRate + " t=" + distance + " entry " + i, expected[i], matrix[i], 1e-9);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBirthDeathModelEqualRates() {
+		// birth and death rate coincide, where the eigen decomposition of getRateMatrix() is
+		// degenerate, so compare with a death rate close to the birth rate
+		BirthDeathModel model = birthDeathModel("0.5 0.3 0.2", 1.0);
+		BirthDeathModel nearby = birthDeathModel("0.5 0.3 0.2", 1.0 - 1e-9);
+		for (double distance : DISTANCES) {
+			double[] matrix = new double[9];
+			double[] expected = new double[9];
+			model.getTransitionProbabilities(null, distance, 0.0, 1.0, matrix);
+			nearby.getTransitionProbabilities(null, distance, 0.0, 1.0, expected);
+			for (int i = 0; i < 9; i++) {
+				assertEquals(expected[i], matrix[i], 1e-8);
+			}
+		}
+	}
+
+	@Test
+	public void testBirthDeathModelValues() {
+		// transition probabilities for death rate 0.5 at t = 1 of the java likelihood core
+		// through the eigen system of GeneralSubstitutionModel. For 3 states the normalised
+		// matrix has a negative off-diagonal entry, so entries are absolute values.
+		double[][] expected = {
+				{ 0.6620029550825685, 0.9373645980866262, 0.7246383569959421,
+				  0.7811371650721884, 0.7440439420473707, 1.0370932230248178,
+				  0.0, 0.0, 1.0 },
+				{ 0.1353352832366127, 0.5671227536939689, 0.2975419630694184, 0.0,
+				  0.0, 0.513417119032592, 0.486582880967408, 0.0,
+				  0.0, 0.0, 1.0, 0.0,
+				  0.0, 0.0, 0.0, 1.0 } };
+		String[] freqs = { "0.5 0.3 0.2", "0.4 0.3 0.2 0.1" };
+		for (int k = 0; k < freqs.length; k++) {
+			int n = freqs[k].split(" ").length;
+			BirthDeathModel model = birthDeathModel(freqs[k], 0.5);
+			double[] matrix = new double[n * n];
+			model.getTransitionProbabilities(null, 1.0, 0.0, 1.0, matrix);
+			for (int i = 0; i < n * n; i++) {
+				assertEquals(freqs[k] + " entry " + i, expected[k][i], matrix[i], 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testBirthDeathCovarion2() {
+		double[][] parameters = {
+				// birth, death, switch rate 1, switch rate 2
+				{ 1.0, 0.5, 0.3, 0.6 },
+				{ 0.2, 0.25, 1.0, 1.1 },
+				{ 2.0, 0.01, 0.05, 3.0 },
+				{ 0.5, 1.5, 0.0, 0.4 } };
+		for (double[] p : parameters) {
+			BirthDeathCovarion2 model = new BirthDeathCovarion2();
+			model.initByName(
+					"deathprob", new RealParameter(p[0] + " " + p[1]),
+					"switchRate", new RealParameter(p[2] + " " + p[3]),
+					"vfrequencies", new RealParameter("0.3 0.3 0.4"),
+					"hfrequencies", new RealParameter("0.5 0.5"),
+					"originLength", new RealParameter("1.0"));
+			for (double distance : DISTANCES) {
+				for (double rate : new double[] { 0.5, 1.0 }) {
+					double[] matrix = new double[25];
+					model.getTransitionProbabilities(null, distance, 0.0, rate, matrix);
+					double[] expected = eigenTransitionProbabilities(model, 5, distance * rate);
+					for (int i = 0; i < 25; i++) {
+						assertEquals("t=" + distance * rate + " entry " + i, expected[i], matrix[i], 1e-8);
+					}
+					assertRowsSumToOne(matrix, 5);
+				}
+			}
+		}
+	}
+
+}
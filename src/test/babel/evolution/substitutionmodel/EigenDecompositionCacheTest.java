@@ -0,0 +1,66 @@
+package test.babel.evolution.substitutionmodel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import babel.evolution.substitutionmodel.EigenDecompositionCache;
+import babel.evolution.substitutionmodel.Ordinal;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Checks that the per branch transition probabilities of NStatesNoRatesSubstitutionModel
+ * go through the eigen decomposition cache, so that the rate matrix restored after a
+ * rejected move is found in the cache instead of being decomposed again.
+ */
+public class EigenDecompositionCacheTest {
+	final static int N = 4;
+
+	private double[] transitionProbabilities(Ordinal model) {
+		double[] matrix = new double[N * N];
+		model.getTransitionProbabilities(null, 0.7, 0.0, 1.0, matrix);
+		return matrix;
+	}
+
+	@Test
+	public void testRestoreIsCacheHit() {
+		RealParameter freqs = new RealParameter("0.1 0.2 0.3 0.4");
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		Ordinal model = new Ordinal();
+		model.initByName("stateNumber", N, "frequencies", frequencies);
+
+		State state = new State();
+		state.initByName("stateNode", freqs);
+		state.initialise();
+		state.setPosterior(model);
+
+		EigenDecompositionCache cache = model.getEigenDecompositionCache();
+		double[] original = transitionProbabilities(model);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0, cache.getHitCount());
+
+		// propose new frequencies: a new rate matrix
+		state.store(0);
+		freqs.setValue(0, 0.25);
+		freqs.setValue(3, 0.25);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		transitionProbabilities(model);
+		assertEquals(2, cache.getMissCount());
+		assertEquals(0, cache.getHitCount());
+
+		// reject: the restored frequencies give the rate matrix seen before
+		state.restore();
+		state.checkCalculationNodesDirtiness();
+		double[] restored = transitionProbabilities(model);
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		for (int i = 0; i < N * N; i++) {
+			assertEquals(original[i], restored[i], 0.0);
+		}
+	}
+
+}